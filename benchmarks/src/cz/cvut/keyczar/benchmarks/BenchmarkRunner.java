@@ -0,0 +1,62 @@
+package cz.cvut.keyczar.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Runs the benchmarks once per thread count with the GC profiler attached, so
+ * every result carries gc.alloc.rate.norm next to its throughput.
+ *
+ * Usage:
+ * <pre>
+ *   java -jar benchmarks/target/benchmarks.jar [JMH options]
+ * </pre>
+ * Any standard JMH command line option (e.g. a benchmark regexp or
+ * -p payloadSize=16) is honoured. The thread counts default to 1, 4 and the
+ * number of available processors and can be overridden with
+ * -Dbenchmark.threads=1,2,8. Results of each run are written to
+ * jmh-result-[threads].json.
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args)
+      throws RunnerException, CommandLineOptionException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    for (int threads : threadCounts()) {
+      ChainedOptionsBuilder options = new OptionsBuilder()
+          .parent(commandLine)
+          .addProfiler(GCProfiler.class)
+          .threads(threads)
+          .resultFormat(ResultFormatType.JSON)
+          .result("jmh-result-" + threads + ".json");
+      if (commandLine.getIncludes().isEmpty()) {
+        options.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+      }
+      new Runner(options.build()).run();
+    }
+  }
+
+  private static Set<Integer> threadCounts() {
+    Set<Integer> counts = new LinkedHashSet<Integer>();
+    String property = System.getProperty("benchmark.threads");
+    if (property != null) {
+      for (String count : property.split(",")) {
+        counts.add(Integer.parseInt(count.trim()));
+      }
+    } else {
+      counts.add(1);
+      counts.add(4);
+      counts.add(Runtime.getRuntime().availableProcessors());
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,60 @@
+package cz.cvut.keyczar.benchmarks;
+
+import cz.cvut.keyczar.MockKeyczarReader;
+import cz.cvut.keyczar.enums.CipherMode;
+import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.KeyStatus;
+import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.exceptions.KeyczarException;
+import cz.cvut.keyczar.interfaces.KeyczarReader;
+import cz.cvut.keyczar.jce.EcCore;
+
+import java.security.Security;
+
+/**
+ * Builds in-memory key sets for the benchmarks, so that every KeyType can be
+ * measured without shipping key files for it.
+ */
+final class KeySets {
+
+  private KeySets() {
+    // Don't new me.
+  }
+
+  /**
+   * Generates a key set holding a single primary key of the given type.
+   *
+   * @param purpose purpose of the key set
+   * @param type type of the generated key
+   * @return a reader serving the generated key set
+   * @throws KeyczarException if the key cannot be generated
+   */
+  static KeyczarReader generate(KeyPurpose purpose, KeyType type)
+      throws KeyczarException {
+    if (type == KeyType.EC_PRIV && Security.getProvider(EcCore.NAME) == null) {
+      // EC keys are only served by the bundled GooKey provider
+      Security.addProvider(new EcCore());
+    }
+    MockKeyczarReader reader =
+      new MockKeyczarReader("benchmark", purpose, type);
+    reader.addKey(1, KeyStatus.PRIMARY);
+    return reader;
+  }
+
+  /**
+   * Generates a key set holding a single primary AES key of the default size
+   * in the given cipher mode.
+   *
+   * @param purpose purpose of the key set
+   * @param mode cipher mode of the generated key
+   * @return a reader serving the generated key set
+   * @throws KeyczarException if the key cannot be generated
+   */
+  static KeyczarReader generate(KeyPurpose purpose, CipherMode mode)
+      throws KeyczarException {
+    MockKeyczarReader reader =
+      new MockKeyczarReader("benchmark", purpose, KeyType.AES);
+    reader.addKey(1, KeyStatus.PRIMARY, KeyType.AES.defaultSize(), mode);
+    return reader;
+  }
+}
@@ -0,0 +1,90 @@
+package cz.cvut.keyczar.benchmarks;
+
+import cz.cvut.keyczar.Crypter;
+import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.exceptions.KeyczarException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Crypter#encrypt(ByteBuffer, ByteBuffer)} and
+ * {@link Crypter#decrypt(ByteBuffer, ByteBuffer)} for public key sets.
+ *
+ * RSA-OAEP can only encrypt inputs shorter than the modulus, so these key sets
+ * are measured with token-sized payloads only.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublicKeyCrypterBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class KeySet {
+    @Param({"RSA_PRIV"})
+    KeyType keyType;
+
+    Crypter crypter;
+
+    @Setup
+    public void setUp() throws KeyczarException {
+      crypter = new Crypter(
+          KeySets.generate(KeyPurpose.DECRYPT_AND_ENCRYPT, keyType));
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Payload {
+    @Param({"16", "128"})
+    int payloadSize;
+
+    ByteBuffer plaintext;
+    ByteBuffer ciphertext;
+    ByteBuffer output;
+
+    @Setup
+    public void setUp(KeySet keySet) throws KeyczarException {
+      byte[] data = new byte[payloadSize];
+      new Random(payloadSize).nextBytes(data);
+      plaintext = ByteBuffer.wrap(data);
+      ciphertext = ByteBuffer.wrap(keySet.crypter.encrypt(data));
+      output = ByteBuffer.allocate(
+          Math.max(keySet.crypter.ciphertextSize(payloadSize),
+              ciphertext.capacity()));
+    }
+  }
+
+  @Benchmark
+  public ByteBuffer encrypt(KeySet keySet, Payload payload)
+      throws KeyczarException {
+    payload.plaintext.rewind();
+    payload.output.clear();
+    keySet.crypter.encrypt(payload.plaintext, payload.output);
+    return payload.output;
+  }
+
+  @Benchmark
+  public ByteBuffer decrypt(KeySet keySet, Payload payload)
+      throws KeyczarException {
+    payload.ciphertext.rewind();
+    payload.output.clear();
+    keySet.crypter.decrypt(payload.ciphertext, payload.output);
+    return payload.output;
+  }
+}
@@ -0,0 +1,93 @@
+package cz.cvut.keyczar.benchmarks;
+
+import cz.cvut.keyczar.Crypter;
+import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.exceptions.KeyczarException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link Crypter#encryptSegmented(byte[], int)} and decryption of
+ * segmented ciphertexts against the single-pass {@link Crypter#encrypt(byte[])}
+ * and {@link Crypter#decrypt(byte[])} for large payloads, with segments
+ * processed on pools of different sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentedCrypterBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class KeySet {
+    @Param({"1", "4", "16"})
+    int parallelism;
+
+    @Param({"1048576", "67108864"})
+    int payloadSize;
+
+    @Param({"65536", "1048576"})
+    int segmentSize;
+
+    ForkJoinPool pool;
+    Crypter crypter;
+    byte[] plaintext;
+    byte[] ciphertext;
+    byte[] segmentedCiphertext;
+
+    @Setup
+    public void setUp() throws KeyczarException {
+      pool = new ForkJoinPool(parallelism);
+      crypter = new Crypter(
+          KeySets.generate(KeyPurpose.DECRYPT_AND_ENCRYPT, KeyType.AES));
+      crypter.setForkJoinPool(pool);
+      plaintext = new byte[payloadSize];
+      new Random(payloadSize).nextBytes(plaintext);
+      ciphertext = crypter.encrypt(plaintext);
+      segmentedCiphertext = crypter.encryptSegmented(plaintext, segmentSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+      pool.shutdown();
+    }
+  }
+
+  @Benchmark
+  public byte[] encrypt(KeySet keySet) throws KeyczarException {
+    return keySet.crypter.encrypt(keySet.plaintext);
+  }
+
+  @Benchmark
+  public byte[] decrypt(KeySet keySet) throws KeyczarException {
+    return keySet.crypter.decrypt(keySet.ciphertext);
+  }
+
+  @Benchmark
+  public byte[] encryptSegmented(KeySet keySet) throws KeyczarException {
+    return keySet.crypter.encryptSegmented(keySet.plaintext,
+        keySet.segmentSize);
+  }
+
+  @Benchmark
+  public byte[] decryptSegmented(KeySet keySet) throws KeyczarException {
+    return keySet.crypter.decrypt(keySet.segmentedCiphertext);
+  }
+}
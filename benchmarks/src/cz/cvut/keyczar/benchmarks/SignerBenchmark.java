@@ -0,0 +1,92 @@
+package cz.cvut.keyczar.benchmarks;
+
+import cz.cvut.keyczar.Signer;
+import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.enums.StreamPoolStrategy;
+import cz.cvut.keyczar.exceptions.KeyczarException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Signer#sign(ByteBuffer, ByteBuffer)} and
+ * {@link Signer#verify(ByteBuffer, ByteBuffer)} for every signing KeyType.
+ *
+ * The signer is shared by all benchmark threads, the way a service shares one
+ * instance between request handlers; only the buffers are per thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignerBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class KeySet {
+    @Param({"HMAC_SHA1", "DSA_PRIV", "RSA_PRIV", "EC_PRIV"})
+    KeyType keyType;
+
+    @Param({"QUEUE", "THREAD_LOCAL"})
+    StreamPoolStrategy streamPool;
+
+    Signer signer;
+
+    @Setup
+    public void setUp() throws KeyczarException {
+      signer = new Signer(
+          KeySets.generate(KeyPurpose.SIGN_AND_VERIFY, keyType));
+      signer.setStreamPool(streamPool);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Payload {
+    @Param({"16", "256", "4096", "65536"})
+    int payloadSize;
+
+    ByteBuffer input;
+    ByteBuffer output;
+    ByteBuffer signature;
+
+    @Setup
+    public void setUp(KeySet keySet) throws KeyczarException {
+      byte[] data = new byte[payloadSize];
+      new Random(payloadSize).nextBytes(data);
+      input = ByteBuffer.wrap(data);
+      output = ByteBuffer.allocate(keySet.signer.digestSize());
+      signature = ByteBuffer.wrap(keySet.signer.sign(data));
+    }
+  }
+
+  @Benchmark
+  public ByteBuffer sign(KeySet keySet, Payload payload)
+      throws KeyczarException {
+    payload.input.rewind();
+    payload.output.clear();
+    keySet.signer.sign(payload.input, payload.output);
+    return payload.output;
+  }
+
+  @Benchmark
+  public boolean verify(KeySet keySet, Payload payload)
+      throws KeyczarException {
+    payload.input.rewind();
+    payload.signature.rewind();
+    return keySet.signer.verify(payload.input, payload.signature);
+  }
+}
@@ -17,9 +17,12 @@
 package cz.cvut.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import cz.cvut.keyczar.enums.CipherMode;
 import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.exceptions.InvalidSignatureException;
 import cz.cvut.keyczar.exceptions.KeyczarException;
 import cz.cvut.keyczar.exceptions.ShortBufferException;
 import cz.cvut.keyczar.interfaces.DecryptingStream;
@@ -30,17 +33,30 @@ import cz.cvut.keyczar.interfaces.VerifyingStream;
 import cz.cvut.keyczar.util.Base64Coder;
 import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Wrapping class for AES keys. Currently the default is to use CBC mode.
  *
+ * CBC ciphertexts are authenticated with the key's HMAC key, which takes a
+ * second pass over the ciphertext. Keys in GCM mode encrypt and authenticate
+ * in a single pass instead, and their ciphertexts are laid out as:
+ * <pre>
+ *   header | 12 byte nonce | ciphertext | 16 byte GCM tag
+ * </pre>
+ * The header is authenticated as additional data and no HMAC is appended. The
+ * HMAC key of a GCM key only contributes to its hash identifier.
+ *
  * @author steveweis@gmail.com (Steve Weis)
  * @author arkajit.dey@gmail.com (Arkajit Dey)
  *
@@ -50,6 +66,7 @@ class AesKey extends KeyczarKey {
   private int blockSize;
 
   private static final String AES_ALGORITHM = "AES";
+  private static final String DERIVATION_ALGORITHM = "HmacSHA256";
   private static final CipherMode DEFAULT_MODE = CipherMode.CBC;
 
   @Expose private String aesKeyString = "";
@@ -63,11 +80,16 @@ class AesKey extends KeyczarKey {
   }
 
   static AesKey generate(int keySize) throws KeyczarException {
+    return generate(keySize, DEFAULT_MODE);
+  }
+
+  static AesKey generate(int keySize, CipherMode mode)
+      throws KeyczarException {
     AesKey key = new AesKey();
     key.size = keySize;
     byte[] aesBytes = Util.rand(key.size() / 8);
     key.aesKeyString = Base64Coder.encode(aesBytes);
-    key.mode = DEFAULT_MODE;
+    key.mode = mode;
     key.hmacKey = HmacKey.generate();
     key.init();
     return key;
@@ -84,12 +106,36 @@ class AesKey extends KeyczarKey {
   }
 
   static AesKey read(String input) throws KeyczarException {
-    AesKey key = Util.gson().fromJson(input, AesKey.class);
+    AesKey key = KeyczarJson.fromJson(input, new AesKey());
     key.hmacKey.init();
     key.init();
     return key;
   }
 
+  @Override
+  public void writeFields(JsonWriter out) throws IOException {
+    out.name("aesKeyString").value(aesKeyString);
+    out.name("hmacKey");
+    KeyczarJson.write(out, hmacKey);
+    out.name("mode");
+    KeyczarJson.writeEnum(out, mode);
+    super.writeFields(out);
+  }
+
+  @Override
+  public boolean readField(String name, JsonReader in) throws IOException {
+    if (name.equals("aesKeyString")) {
+      aesKeyString = KeyczarJson.nextString(in);
+    } else if (name.equals("hmacKey")) {
+      hmacKey = KeyczarJson.read(in, new HmacKey());
+    } else if (name.equals("mode")) {
+      mode = KeyczarJson.nextEnum(in, CipherMode.class);
+    } else {
+      return super.readField(name, in);
+    }
+    return true;
+  }
+
   private void init() throws KeyczarException {
     byte[] aesBytes = Base64Coder.decode(aesKeyString);
     aesKey = new SecretKeySpec(aesBytes, AES_ALGORITHM);
@@ -99,8 +145,33 @@ class AesKey extends KeyczarKey {
     System.arraycopy(fullHash, 0, hash, 0, hash.length);
   }
 
+  CipherMode getMode() {
+    return mode;
+  }
+
+  /**
+   * Derives a fresh AES key of the same size from this key and the given
+   * salt, as HMAC-SHA256 of the salt keyed with this key's AES bytes.
+   *
+   * @param salt A random salt chosen for a single ciphertext
+   * @return The derived key
+   * @throws KeyczarException If HMAC-SHA256 is not available
+   */
+  Key deriveKey(byte[] salt) throws KeyczarException {
+    try {
+      Mac mac = Mac.getInstance(DERIVATION_ALGORITHM);
+      mac.init(new SecretKeySpec(aesKey.getEncoded(), DERIVATION_ALGORITHM));
+      return new SecretKeySpec(mac.doFinal(salt), 0, blockSize, AES_ALGORITHM);
+    } catch (GeneralSecurityException e) {
+      throw new KeyczarException(e);
+    }
+  }
+
   @Override
   Stream getStream() throws KeyczarException {
+    if (mode == CipherMode.GCM) {
+      return new AesGcmStream();
+    }
     return new AesStream();
   }
 
@@ -108,6 +179,8 @@ class AesKey extends KeyczarKey {
     private Cipher encryptingCipher;
     private Cipher decryptingCipher;
     private SigningStream signStream;
+    // Reused for the random IV preimage of every encryption
+    private final ByteBuffer ivPreImage = ByteBuffer.allocate(blockSize);
     boolean ivRead = false;
 
     public AesStream() throws KeyczarException  {
@@ -148,10 +221,10 @@ class AesKey extends KeyczarKey {
 
     public int initEncrypt(ByteBuffer output) throws KeyczarException {
       // Generate a random value and encrypt it. This will be the IV.
-      byte[] ivPreImage = new byte[blockSize];
-      Util.rand(ivPreImage);
+      ivPreImage.clear();
+      Util.rand(ivPreImage.array());
       try {
-        return encryptingCipher.update(ByteBuffer.wrap(ivPreImage), output);
+        return encryptingCipher.update(ivPreImage, output);
       } catch (javax.crypto.ShortBufferException e) {
         throw new ShortBufferException(e);
       }
@@ -221,4 +294,149 @@ class AesKey extends KeyczarKey {
       return mode.getOutputSize(blockSize, inputLen);
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Encrypts and authenticates in a single pass with AES-GCM. A fresh nonce is
+   * chosen for every ciphertext, so the Ciphers are initialized once per
+   * operation.
+   */
+  private class AesGcmStream implements EncryptingStream, DecryptingStream {
+    private final Cipher encryptingCipher;
+    private final Cipher decryptingCipher;
+    private final byte[] header = new byte[Keyczar.HEADER_SIZE];
+    // Ciphertext passed to the decrypting Cipher, which holds it until the
+    // tag has been checked
+    private int pendingDecrypt = 0;
+
+    public AesGcmStream() throws KeyczarException {
+      try {
+        encryptingCipher = Cipher.getInstance(mode.getMode());
+        decryptingCipher = Cipher.getInstance(mode.getMode());
+      } catch (GeneralSecurityException e) {
+        throw new KeyczarException(e);
+      }
+      copyHeader(ByteBuffer.wrap(header));
+    }
+
+    public SigningStream getSigningStream() {
+      return NoSignatureStream.INSTANCE;
+    }
+
+    public VerifyingStream getVerifyingStream() {
+      return NoSignatureStream.INSTANCE;
+    }
+
+    public int initEncrypt(ByteBuffer output) throws KeyczarException {
+      byte[] nonce = new byte[CipherMode.GCM_NONCE_SIZE];
+      Util.rand(nonce);
+      init(encryptingCipher, Cipher.ENCRYPT_MODE, nonce);
+      output.put(nonce);
+      return nonce.length;
+    }
+
+    public void initDecrypt(ByteBuffer input) throws KeyczarException {
+      byte[] nonce = new byte[CipherMode.GCM_NONCE_SIZE];
+      input.get(nonce);
+      init(decryptingCipher, Cipher.DECRYPT_MODE, nonce);
+      pendingDecrypt = 0;
+    }
+
+    private void init(Cipher cipher, int opmode, byte[] nonce)
+        throws KeyczarException {
+      try {
+        cipher.init(opmode, aesKey,
+            new GCMParameterSpec(8 * CipherMode.GCM_TAG_SIZE, nonce));
+      } catch (GeneralSecurityException e) {
+        throw new KeyczarException(e);
+      }
+      // Bind the key hash and format version to the ciphertext
+      cipher.updateAAD(header);
+    }
+
+    public int updateEncrypt(ByteBuffer input, ByteBuffer output)
+        throws KeyczarException {
+      try {
+        return encryptingCipher.update(input, output);
+      } catch (javax.crypto.ShortBufferException e) {
+        throw new ShortBufferException(e);
+      }
+    }
+
+    public int doFinalEncrypt(ByteBuffer input, ByteBuffer output)
+        throws KeyczarException {
+      try {
+        return encryptingCipher.doFinal(input, output);
+      } catch (GeneralSecurityException e) {
+        throw new KeyczarException(e);
+      }
+    }
+
+    public int updateDecrypt(ByteBuffer input, ByteBuffer output)
+        throws KeyczarException {
+      pendingDecrypt += input.remaining();
+      try {
+        return decryptingCipher.update(input, output);
+      } catch (javax.crypto.ShortBufferException e) {
+        throw new ShortBufferException(e);
+      }
+    }
+
+    public int doFinalDecrypt(ByteBuffer input, ByteBuffer output)
+        throws KeyczarException {
+      pendingDecrypt = 0;
+      try {
+        return decryptingCipher.doFinal(input, output);
+      } catch (AEADBadTagException e) {
+        throw new InvalidSignatureException();
+      } catch (GeneralSecurityException e) {
+        throw new KeyczarException(e);
+      }
+    }
+
+    /**
+     * While decrypting, this includes the ciphertext already passed to
+     * {@link #updateDecrypt(ByteBuffer, ByteBuffer)}, since no plaintext is
+     * released until the final call.
+     */
+    public int maxOutputSize(int inputLen) {
+      return mode.getOutputSize(blockSize, pendingDecrypt + inputLen);
+    }
+  }
+
+  /**
+   * Stands in for the HMAC of modes that authenticate ciphertexts themselves.
+   */
+  private static class NoSignatureStream
+      implements SigningStream, VerifyingStream {
+    private static final NoSignatureStream INSTANCE = new NoSignatureStream();
+
+    public int digestSize() {
+      return 0;
+    }
+
+    public void initSign() {
+      // Do nothing
+    }
+
+    public void updateSign(ByteBuffer input) {
+      // Do nothing
+    }
+
+    public void sign(ByteBuffer output) {
+      // Do nothing
+    }
+
+    public void initVerify() {
+      // Do nothing
+    }
+
+    public void updateVerify(ByteBuffer input) {
+      // Do nothing
+    }
+
+    public boolean verify(ByteBuffer signature) {
+      // The tag is checked when decryption completes
+      return true;
+    }
+  }
+}
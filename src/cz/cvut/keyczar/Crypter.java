@@ -16,20 +16,33 @@
 
 package cz.cvut.keyczar;
 
-import org.apache.log4j.Logger;
 import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.Operation;
+import cz.cvut.keyczar.enums.StreamPoolStrategy;
 import cz.cvut.keyczar.exceptions.BadVersionException;
 import cz.cvut.keyczar.exceptions.InvalidSignatureException;
 import cz.cvut.keyczar.exceptions.KeyNotFoundException;
 import cz.cvut.keyczar.exceptions.KeyczarException;
 import cz.cvut.keyczar.exceptions.ShortCiphertextException;
+import cz.cvut.keyczar.exceptions.UnsupportedTypeException;
 import cz.cvut.keyczar.i18n.Messages;
 import cz.cvut.keyczar.interfaces.DecryptingStream;
 import cz.cvut.keyczar.interfaces.KeyczarReader;
 import cz.cvut.keyczar.interfaces.VerifyingStream;
 import cz.cvut.keyczar.util.Base64Coder;
+import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Crypters may both encrypt and decrypt data using sets of symmetric or private
@@ -40,9 +53,9 @@ import java.nio.ByteBuffer;
  */
 public class Crypter extends Encrypter {
   private static final int DECRYPT_CHUNK_SIZE = 1024;
-  private static final Logger logger = Logger.getLogger(Crypter.class);
   private static final StreamCache<DecryptingStream> CRYPT_CACHE
-    = new StreamCache<DecryptingStream>();
+    = StreamCache.create(StreamPoolStrategy.QUEUE);
+  private StreamCache<DecryptingStream> cryptCache = CRYPT_CACHE;
 
   /**
    * Initialize a new Crypter with a KeyczarReader. The corresponding key set
@@ -71,7 +84,35 @@ public class Crypter extends Encrypter {
   }
 
   /**
-   * Decrypt the given byte array of ciphertext
+   * Selects how this Crypter pools the streams it encrypts and decrypts with.
+   * By default decrypting streams are pooled in queues shared by all
+   * Crypters. This should be called before the Crypter is shared between
+   * threads.
+   *
+   * @param strategy The stream pooling strategy
+   */
+  @Override
+  public void setStreamPool(StreamPoolStrategy strategy) {
+    super.setStreamPool(strategy);
+    cryptCache = strategy == StreamPoolStrategy.QUEUE
+        ? CRYPT_CACHE : StreamCache.<DecryptingStream>create(strategy);
+  }
+
+  /**
+   * Returns the counters of the cache holding this Crypter's decrypting
+   * streams. Unless another pool was selected, the cache is shared by all
+   * Crypters.
+   *
+   * @return A snapshot of the decrypting stream cache counters
+   */
+  public StreamCacheStats getDecryptCacheStats() {
+    return cryptCache.stats();
+  }
+
+  /**
+   * Decrypt the given byte array of ciphertext. Segmented ciphertexts, as
+   * produced by {@link #encryptSegmented(byte[], int)}, are recognized by
+   * their version byte and decrypted in parallel.
    *
    * @param input The input ciphertext
    * @return The decrypted plaintext
@@ -80,6 +121,9 @@ public class Crypter extends Encrypter {
    * error occurs.
    */
   public byte[] decrypt(byte[] input) throws KeyczarException {
+    if (input.length > 0 && input[0] == SegmentedCiphertext.FORMAT_VERSION) {
+      return decryptSegmented(input);
+    }
     ByteBuffer output = ByteBuffer.allocate(input.length);
     decrypt(ByteBuffer.wrap(input), output);
     output.reset();
@@ -88,6 +132,79 @@ public class Crypter extends Encrypter {
     return outputBytes;
   }
 
+  private byte[] decryptSegmented(byte[] input) throws KeyczarException {
+    long start = startTimer();
+    if (input.length < HEADER_SIZE) {
+      throw new ShortCiphertextException(input.length);
+    }
+    int hash = Util.readInt(input, 1);
+    KeyczarKey key = getKey(hash);
+    if (key == null) {
+      throw new KeyNotFoundException(hash);
+    }
+    if (!(key instanceof AesKey)) {
+      throw new UnsupportedTypeException(key.getType());
+    }
+    byte[] plaintext =
+      SegmentedCiphertext.decrypt((AesKey) key, input, forkJoinPool);
+    record(Operation.DECRYPT, key, input.length, start);
+    return plaintext;
+  }
+
+  /**
+   * Opens a segmented ciphertext, as produced by
+   * {@link #encryptSegmented(byte[], int)}, for random access. Reads from the
+   * returned channel decrypt and verify only the segments they cover, so any
+   * range of the plaintext can be read without processing the whole
+   * ciphertext.
+   *
+   * @param input The channel holding the ciphertext, which is read from its
+   * start. It is closed when the returned channel is closed, or right away
+   * if opening fails.
+   * @return A read-only channel over the plaintext
+   * @throws KeyczarException If the header is malformed, the last segment
+   * does not verify, the decryption key is not found, or reading fails
+   * @see SegmentedDecryptingChannel
+   */
+  public SegmentedDecryptingChannel openSegmented(SeekableByteChannel input)
+      throws KeyczarException {
+    boolean opened = false;
+    try {
+      byte[] header = new byte[SegmentedCiphertext.HEADER_SIZE];
+      input.position(0);
+      if (!Util.readFully(input, ByteBuffer.wrap(header))) {
+        throw new ShortCiphertextException((int) input.size());
+      }
+      if (header[0] != SegmentedCiphertext.FORMAT_VERSION) {
+        throw new BadVersionException(header[0]);
+      }
+      int hash = Util.readInt(header, 1);
+      KeyczarKey key = getKey(hash);
+      if (key == null) {
+        throw new KeyNotFoundException(hash);
+      }
+      if (!(key instanceof AesKey)) {
+        throw new UnsupportedTypeException(key.getType());
+      }
+      SegmentedDecryptingChannel channel =
+          new SegmentedDecryptingChannel((AesKey) key, header, input);
+      opened = true;
+      return channel;
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("Keyczar.StreamError"), e);
+    } finally {
+      if (!opened) {
+        // Nothing took ownership of the input
+        try {
+          input.close();
+        } catch (IOException e) {
+          // Already failing with a more useful exception
+        }
+      }
+    }
+  }
+
   /**
    * Decrypt the given ciphertext input ByteBuffer and write the decrypted
    * plaintext to the output ByteBuffer
@@ -101,8 +218,8 @@ public class Crypter extends Encrypter {
   public void decrypt(ByteBuffer input, ByteBuffer output)
       throws KeyczarException {
     ByteBuffer inputCopy = input.asReadOnlyBuffer();
-    logger.info(
-        Messages.getString("Crypter.Decrypting", inputCopy.remaining()));
+    long start = startTimer();
+    int length = inputCopy.remaining();
     if (inputCopy.remaining() < HEADER_SIZE) {
       throw new ShortCiphertextException(inputCopy.remaining());
     }
@@ -111,8 +228,7 @@ public class Crypter extends Encrypter {
       throw new BadVersionException(version);
     }
 
-    byte[] hash = new byte[KEY_HASH_SIZE];
-    inputCopy.get(hash);
+    int hash = Util.readInt(inputCopy);
     KeyczarKey key = getKey(hash);
     if (key == null) {
       throw new KeyNotFoundException(hash);
@@ -121,7 +237,7 @@ public class Crypter extends Encrypter {
     // The input to decrypt is now positioned at the start of the ciphertext
     inputCopy.mark();
 
-    DecryptingStream cryptStream = CRYPT_CACHE.get(key);
+    DecryptingStream cryptStream = cryptCache.get(key);
     if (cryptStream == null) {
       cryptStream = (DecryptingStream) key.getStream();
     }
@@ -167,7 +283,262 @@ public class Crypter extends Encrypter {
     inputCopy.reset();
     cryptStream.doFinalDecrypt(inputCopy, output);
     output.limit(output.position());
-    CRYPT_CACHE.put(key, cryptStream);
+    cryptCache.put(key, cryptStream);
+    record(Operation.DECRYPT, key, length, start);
+  }
+
+  /**
+   * Decrypt a ciphertext read from the input stream and write the plaintext
+   * to the output stream. The ciphertext is processed in fixed-size chunks,
+   * so memory use does not depend on its length.
+   *
+   * The signature at the end of the ciphertext can only be checked once all
+   * of it has been read, so plaintext is written to the output before it is
+   * known to be authentic. If this method throws, everything it wrote must be
+   * discarded.
+   *
+   * Keys in GCM mode are the exception: the JCE holds back all plaintext until
+   * the tag has been checked, so nothing unauthenticated is written, but the
+   * whole plaintext is buffered in memory.
+   *
+   * Neither stream is closed.
+   *
+   * @param input The stream to read the ciphertext from
+   * @param output The stream to write the plaintext to
+   * @throws KeyczarException If the input is malformed, the ciphertext
+   * signature does not verify, the decryption key is not found, a JCE error
+   * occurs, or reading or writing fails.
+   */
+  public void decrypt(InputStream input, OutputStream output)
+      throws KeyczarException {
+    decrypt(Channels.newChannel(input), Channels.newChannel(output));
+  }
+
+  /**
+   * Decrypt a ciphertext read from the input channel and write the plaintext
+   * to the output channel. As with {@link #decrypt(InputStream, OutputStream)}
+   * the plaintext is written before the signature is checked, and must be
+   * discarded if this method throws.
+   *
+   * Neither channel is closed.
+   *
+   * @param input The channel to read the ciphertext from
+   * @param output The channel to write the plaintext to
+   * @throws KeyczarException If the input is malformed, the ciphertext
+   * signature does not verify, the decryption key is not found, a JCE error
+   * occurs, or reading or writing fails.
+   */
+  public void decrypt(ReadableByteChannel input, WritableByteChannel output)
+      throws KeyczarException {
+    try {
+      decryptStream(input, output);
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("Keyczar.StreamError"), e);
+    }
+  }
+
+  private void decryptStream(ReadableByteChannel input,
+      WritableByteChannel output) throws KeyczarException, IOException {
+    long start = startTimer();
+    // Large enough for the header, the IV and a long signature
+    ByteBuffer inputChunk = ByteBuffer.allocate(4 * DECRYPT_CHUNK_SIZE);
+    boolean more = Util.readFully(input, inputChunk);
+    inputChunk.flip();
+    long length = inputChunk.remaining();
+    if (inputChunk.remaining() < HEADER_SIZE) {
+      throw new ShortCiphertextException(inputChunk.remaining());
+    }
+    byte version = inputChunk.get();
+    if (version != FORMAT_VERSION) {
+      throw new BadVersionException(version);
+    }
+
+    int hash = Util.readInt(inputChunk);
+    KeyczarKey key = getKey(hash);
+    if (key == null) {
+      throw new KeyNotFoundException(hash);
+    }
+
+    DecryptingStream cryptStream = cryptCache.get(key);
+    if (cryptStream == null) {
+      cryptStream = (DecryptingStream) key.getStream();
+    }
+    VerifyingStream verifyStream = cryptStream.getVerifyingStream();
+    int digestSize = verifyStream.digestSize();
+    if (inputChunk.remaining() < digestSize) {
+      throw new ShortCiphertextException(inputChunk.remaining());
+    }
+    ByteBuffer outputChunk =
+      ByteBuffer.allocate(cryptStream.maxOutputSize(inputChunk.capacity()));
+
+    // The last digestSize bytes read may be the signature, so they are held
+    // back until more input arrives
+    ByteBuffer ciphertext = inputChunk.duplicate();
+    ciphertext.limit(inputChunk.limit() - digestSize);
+
+    // Initialize the crypt stream. This may read an IV if any.
+    cryptStream.initDecrypt(ciphertext);
+
+    // Verify the header and IV if any
+    ByteBuffer headerAndIvToVerify = inputChunk.duplicate();
+    headerAndIvToVerify.position(0);
+    headerAndIvToVerify.limit(ciphertext.position());
+    verifyStream.initVerify();
+    verifyStream.updateVerify(headerAndIvToVerify);
+
+    while (more) {
+      ByteBuffer ciphertextToVerify = ciphertext.duplicate();
+      cryptStream.updateDecrypt(ciphertext, outputChunk);
+      verifyStream.updateVerify(ciphertextToVerify);
+      outputChunk.flip();
+      Util.writeFully(outputChunk, output);
+      outputChunk.clear();
+
+      // Move the held back bytes to the front and read after them
+      inputChunk.position(ciphertext.limit());
+      inputChunk.compact();
+      int heldBack = inputChunk.position();
+      more = Util.readFully(input, inputChunk);
+      length += inputChunk.position() - heldBack;
+      inputChunk.flip();
+      ciphertext = inputChunk.duplicate();
+      ciphertext.limit(inputChunk.limit() - digestSize);
+    }
+
+    inputChunk.position(ciphertext.limit());
+    ByteBuffer signature = inputChunk.slice();
+    verifyStream.updateVerify(ciphertext.duplicate());
+    if (!verifyStream.verify(signature)) {
+      throw new InvalidSignatureException();
+    }
+    outputChunk = finalOutput(cryptStream, ciphertext.remaining(), outputChunk);
+    cryptStream.doFinalDecrypt(ciphertext, outputChunk);
+    outputChunk.flip();
+    Util.writeFully(outputChunk, output);
+    cryptCache.put(key, cryptStream);
+    record(Operation.DECRYPT, key, length, start);
+  }
+
+  /**
+   * Decrypt the input file and write the plaintext to the output file, which
+   * is created or truncated. The input is memory-mapped and the mapped regions
+   * are verified and decrypted directly, so the ciphertext is never copied
+   * into the heap. Files larger than 2 GB are mapped one window at a time.
+   *
+   * Unlike {@link #decrypt(InputStream, OutputStream)}, the whole signature is
+   * verified before anything is decrypted, so no unauthenticated plaintext is
+   * ever written. Keys in GCM mode are verified while decrypting instead, and
+   * buffer the whole plaintext in memory until the tag has been checked.
+   *
+   * @param input The file holding the ciphertext
+   * @param output The file to write the plaintext to
+   * @throws KeyczarException If the input is malformed, the ciphertext
+   * signature does not verify, the decryption key is not found, a JCE error
+   * occurs, or a file cannot be read or written.
+   */
+  public void decryptFile(Path input, Path output) throws KeyczarException {
+    decryptFile(input, output, FileWindows.DEFAULT_WINDOW_SIZE);
+  }
+
+  void decryptFile(Path input, Path output, int windowSize)
+      throws KeyczarException {
+    long start = startTimer();
+    try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+      long size = in.size();
+      if (size < HEADER_SIZE) {
+        throw new ShortCiphertextException((int) size);
+      }
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      Util.readFully(in, header);
+      header.flip();
+      byte version = header.get();
+      if (version != FORMAT_VERSION) {
+        throw new BadVersionException(version);
+      }
+
+      int hash = Util.readInt(header);
+      KeyczarKey key = getKey(hash);
+      if (key == null) {
+        throw new KeyNotFoundException(hash);
+      }
+
+      DecryptingStream cryptStream = cryptCache.get(key);
+      if (cryptStream == null) {
+        cryptStream = (DecryptingStream) key.getStream();
+      }
+      VerifyingStream verifyStream = cryptStream.getVerifyingStream();
+      int digestSize = verifyStream.digestSize();
+      if (size - HEADER_SIZE < digestSize) {
+        throw new ShortCiphertextException((int) (size - HEADER_SIZE));
+      }
+      long signatureStart = size - digestSize;
+
+      // Verify the header, IV and ciphertext before decrypting any of it
+      verifyStream.initVerify();
+      FileWindows windows =
+        new FileWindows(in, 0, signatureStart, windowSize);
+      while (windows.hasNext()) {
+        verifyStream.updateVerify(windows.next());
+      }
+      ByteBuffer signature = in.map(FileChannel.MapMode.READ_ONLY,
+          signatureStart, digestSize);
+      if (!verifyStream.verify(signature)) {
+        throw new InvalidSignatureException();
+      }
+
+      // A direct buffer is written to the file without another copy
+      ByteBuffer outputChunk = ByteBuffer.allocateDirect(
+          cryptStream.maxOutputSize(FileWindows.CHUNK_SIZE));
+      try (FileChannel out = FileChannel.open(output,
+          StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING)) {
+        windows = new FileWindows(in, HEADER_SIZE, signatureStart, windowSize);
+        boolean first = true;
+        while (windows.hasNext()) {
+          ByteBuffer window = windows.next();
+          if (first) {
+            // Initialize the crypt stream. This may read an IV if any.
+            cryptStream.initDecrypt(window);
+            first = false;
+          }
+          while (window.hasRemaining()) {
+            ByteBuffer ciphertextChunk = window.slice();
+            ciphertextChunk.limit(
+                Math.min(FileWindows.CHUNK_SIZE, window.remaining()));
+            cryptStream.updateDecrypt(ciphertextChunk, outputChunk);
+            window.position(window.position() + ciphertextChunk.limit());
+            outputChunk.flip();
+            Util.writeFully(outputChunk, out);
+            outputChunk.clear();
+          }
+        }
+        outputChunk = finalOutput(cryptStream, 0, outputChunk);
+        cryptStream.doFinalDecrypt(ByteBuffer.allocate(0), outputChunk);
+        outputChunk.flip();
+        Util.writeFully(outputChunk, out);
+      }
+      cryptCache.put(key, cryptStream);
+      record(Operation.DECRYPT, key, size, start);
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("Keyczar.FileError", input), e);
+    }
+  }
+
+  /**
+   * Returns an empty buffer large enough for the final decryption step. Modes
+   * that authenticate ciphertexts themselves, like GCM, release no plaintext
+   * until the final step, so it may need more room than a single chunk.
+   */
+  private static ByteBuffer finalOutput(DecryptingStream cryptStream,
+      int inputLen, ByteBuffer output) {
+    int size = cryptStream.maxOutputSize(inputLen);
+    if (size <= output.capacity()) {
+      return output;
+    }
+    return output.isDirect()
+        ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
   }
 
   /**
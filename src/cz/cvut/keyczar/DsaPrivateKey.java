@@ -17,6 +17,8 @@
 package cz.cvut.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import cz.cvut.keyczar.enums.KeyType;
 import cz.cvut.keyczar.exceptions.KeyczarException;
@@ -24,8 +26,8 @@ import cz.cvut.keyczar.interfaces.SigningStream;
 import cz.cvut.keyczar.interfaces.Stream;
 import cz.cvut.keyczar.interfaces.VerifyingStream;
 import cz.cvut.keyczar.util.Base64Coder;
-import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
@@ -133,11 +135,31 @@ class DsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
   }
 
   static DsaPrivateKey read(String input) throws KeyczarException {
-    DsaPrivateKey key = Util.gson().fromJson(input, DsaPrivateKey.class);
+    DsaPrivateKey key = KeyczarJson.fromJson(input, new DsaPrivateKey());
     key.init();
     return key;
   }
 
+  @Override
+  public void writeFields(JsonWriter out) throws IOException {
+    out.name("publicKey");
+    KeyczarJson.write(out, publicKey);
+    out.name("x").value(x);
+    super.writeFields(out);
+  }
+
+  @Override
+  public boolean readField(String name, JsonReader in) throws IOException {
+    if (name.equals("publicKey")) {
+      publicKey = KeyczarJson.read(in, new DsaPublicKey());
+    } else if (name.equals("x")) {
+      x = KeyczarJson.nextString(in);
+    } else {
+      return super.readField(name, in);
+    }
+    return true;
+  }
+
   private class DsaSigningStream implements SigningStream, VerifyingStream {
     private Signature signature;
     private VerifyingStream verifyingStream;
@@ -17,6 +17,8 @@
 package cz.cvut.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import cz.cvut.keyczar.enums.KeyType;
 import cz.cvut.keyczar.exceptions.KeyczarException;
@@ -25,6 +27,7 @@ import cz.cvut.keyczar.interfaces.VerifyingStream;
 import cz.cvut.keyczar.util.Base64Coder;
 import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
@@ -64,10 +67,35 @@ class DsaPublicKey extends KeyczarPublicKey {
   }
 
   static DsaPublicKey read(String input) throws KeyczarException {
-    DsaPublicKey key = Util.gson().fromJson(input, DsaPublicKey.class);
+    DsaPublicKey key = KeyczarJson.fromJson(input, new DsaPublicKey());
     key.init();
     return key;
   }
+
+  @Override
+  public void writeFields(JsonWriter out) throws IOException {
+    out.name("y").value(y);
+    out.name("p").value(p);
+    out.name("q").value(q);
+    out.name("g").value(g);
+    super.writeFields(out);
+  }
+
+  @Override
+  public boolean readField(String name, JsonReader in) throws IOException {
+    if (name.equals("y")) {
+      y = KeyczarJson.nextString(in);
+    } else if (name.equals("p")) {
+      p = KeyczarJson.nextString(in);
+    } else if (name.equals("q")) {
+      q = KeyczarJson.nextString(in);
+    } else if (name.equals("g")) {
+      g = KeyczarJson.nextString(in);
+    } else {
+      return super.readField(name, in);
+    }
+    return true;
+  }
   
   @Override
   public byte[] hash() {
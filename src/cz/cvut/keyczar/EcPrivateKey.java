@@ -17,6 +17,8 @@
 package cz.cvut.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import cz.cvut.keyczar.enums.KeyType;
 import cz.cvut.keyczar.exceptions.KeyczarException;
@@ -25,8 +27,8 @@ import cz.cvut.keyczar.interfaces.Stream;
 import cz.cvut.keyczar.interfaces.VerifyingStream;
 import cz.cvut.keyczar.jce.EcCore;
 import cz.cvut.keyczar.util.Base64Coder;
-import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
@@ -119,11 +121,31 @@ class EcPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
   }
 
   static EcPrivateKey read(String input) throws KeyczarException {
-    EcPrivateKey key = Util.gson().fromJson(input, EcPrivateKey.class);
+    EcPrivateKey key = KeyczarJson.fromJson(input, new EcPrivateKey());
     key.init();
     return key;
   }
 
+  @Override
+  public void writeFields(JsonWriter out) throws IOException {
+    out.name("publicKey");
+    KeyczarJson.write(out, publicKey);
+    out.name("pkcs8").value(pkcs8);
+    super.writeFields(out);
+  }
+
+  @Override
+  public boolean readField(String name, JsonReader in) throws IOException {
+    if (name.equals("publicKey")) {
+      publicKey = KeyczarJson.read(in, new EcPublicKey());
+    } else if (name.equals("pkcs8")) {
+      pkcs8 = KeyczarJson.nextString(in);
+    } else {
+      return super.readField(name, in);
+    }
+    return true;
+  }
+
   private class EcSigningStream implements SigningStream, VerifyingStream {
     private Signature signature;
     private VerifyingStream verifyingStream;
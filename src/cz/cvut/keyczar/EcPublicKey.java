@@ -17,6 +17,8 @@
 package cz.cvut.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import cz.cvut.keyczar.enums.KeyType;
 import cz.cvut.keyczar.exceptions.KeyczarException;
@@ -25,6 +27,7 @@ import cz.cvut.keyczar.interfaces.VerifyingStream;
 import cz.cvut.keyczar.util.Base64Coder;
 import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
@@ -84,11 +87,26 @@ class EcPublicKey extends KeyczarPublicKey {
   }
 
   static EcPublicKey read(String input) throws KeyczarException {
-    EcPublicKey key = Util.gson().fromJson(input, EcPublicKey.class);
+    EcPublicKey key = KeyczarJson.fromJson(input, new EcPublicKey());
     key.init();
     return key;
   }
 
+  @Override
+  public void writeFields(JsonWriter out) throws IOException {
+    out.name("x509").value(x509);
+    super.writeFields(out);
+  }
+
+  @Override
+  public boolean readField(String name, JsonReader in) throws IOException {
+    if (name.equals("x509")) {
+      x509 = KeyczarJson.nextString(in);
+      return true;
+    }
+    return super.readField(name, in);
+  }
+
   private class EcVerifyingStream implements VerifyingStream {
     private Signature signature;
 
@@ -16,17 +16,30 @@
 
 package cz.cvut.keyczar;
 
-import org.apache.log4j.Logger;
 import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.Operation;
+import cz.cvut.keyczar.enums.StreamPoolStrategy;
 import cz.cvut.keyczar.exceptions.KeyczarException;
 import cz.cvut.keyczar.exceptions.NoPrimaryKeyException;
+import cz.cvut.keyczar.exceptions.UnsupportedTypeException;
 import cz.cvut.keyczar.i18n.Messages;
 import cz.cvut.keyczar.interfaces.EncryptingStream;
 import cz.cvut.keyczar.interfaces.KeyczarReader;
 import cz.cvut.keyczar.interfaces.SigningStream;
 import cz.cvut.keyczar.util.Base64Coder;
+import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Encrypters are used strictly to encrypt data. Typically, Encrypters will read
@@ -40,11 +53,13 @@ import java.nio.ByteBuffer;
  *
  */
 public class Encrypter extends Keyczar {
-  private static final Logger ENCRYPTER_LOGGER =
-    Logger.getLogger(Encrypter.class);
   private static final int ENCRYPT_CHUNK_SIZE = 1024;
-  private final StreamQueue<EncryptingStream> ENCRYPT_QUEUE =
-    new StreamQueue<EncryptingStream>();
+  // Encrypters of a registered key set share its pool by default
+  private StreamCache<EncryptingStream> encryptCache = sharedKeySet != null
+      ? sharedKeySet.encryptCache : StreamCache.<EncryptingStream>create(
+          StreamPoolStrategy.QUEUE);
+  // Encrypts and decrypts the segments of segmented ciphertexts
+  ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
 
   /**
    * Initialize a new Encrypter with a KeyczarReader. The corresponding key set
@@ -75,6 +90,39 @@ public class Encrypter extends Keyczar {
     super(fileLocation);
   }
   
+  /**
+   * Selects how this Encrypter pools the streams it encrypts with. This should
+   * be called before the Encrypter is shared between threads.
+   *
+   * @param strategy The stream pooling strategy
+   */
+  public void setStreamPool(StreamPoolStrategy strategy) {
+    encryptCache = StreamCache.create(strategy);
+  }
+
+  /**
+   * Selects the pool that encrypts and decrypts the segments of segmented
+   * ciphertexts. By default the common pool is used.
+   *
+   * @param pool The pool to process segments on
+   */
+  public void setForkJoinPool(ForkJoinPool pool) {
+    if (pool == null) {
+      throw new NullPointerException();
+    }
+    forkJoinPool = pool;
+  }
+
+  /**
+   * Returns the counters of the cache holding this Encrypter's encrypting
+   * streams.
+   *
+   * @return A snapshot of the encrypting stream cache counters
+   */
+  public StreamCacheStats getEncryptCacheStats() {
+    return encryptCache.stats();
+  }
+
   /**
    * Returns the size of the ciphertext output that would result from encrypting
    * an input of the given length.
@@ -84,19 +132,19 @@ public class Encrypter extends Keyczar {
    * @throws KeyczarException If the key set contains no primary encrypting key.
    */
   public int ciphertextSize(int inputLength) throws KeyczarException {
-    EncryptingStream cryptStream = ENCRYPT_QUEUE.poll();
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    EncryptingStream cryptStream = encryptCache.get(encryptingKey);
     if (cryptStream == null) {
-      KeyczarKey encryptingKey = getPrimaryKey();
-      if (encryptingKey == null) {
-        throw new NoPrimaryKeyException();
-      }
       cryptStream = (EncryptingStream) encryptingKey.getStream();
     }
     SigningStream signStream = cryptStream.getSigningStream();
 
     int outputSize = HEADER_SIZE + cryptStream.maxOutputSize(inputLength) +
         signStream.digestSize();
-    ENCRYPT_QUEUE.add(cryptStream);
+    encryptCache.put(encryptingKey, cryptStream);
     return outputSize;
   }
 
@@ -117,6 +165,53 @@ public class Encrypter extends Keyczar {
     return outputBytes;
   }
 
+  /**
+   * Encrypt the given input byte array into the segmented ciphertext format,
+   * using segments of {@link SegmentedCiphertext#DEFAULT_SEGMENT_SIZE} bytes.
+   *
+   * @param input The input to encrypt
+   * @return The segmented ciphertext
+   * @throws KeyczarException If the primary key is not an AES key, or a JCE
+   * error occurs
+   * @see #encryptSegmented(byte[], int)
+   */
+  public byte[] encryptSegmented(byte[] input) throws KeyczarException {
+    return encryptSegmented(input, SegmentedCiphertext.DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Encrypt the given input byte array into the segmented ciphertext format.
+   * The input is split into segments which are encrypted and authenticated
+   * independently, in parallel on the pool set with
+   * {@link #setForkJoinPool(ForkJoinPool)}. A Crypter recognizes the format by
+   * its version byte and decrypts it in parallel as well.
+   *
+   * Only AES keys can produce segmented ciphertexts. Each ciphertext is
+   * encrypted with AES-GCM under a key derived from the primary key and a
+   * random salt, whatever mode the primary key itself uses.
+   *
+   * @param input The input to encrypt
+   * @param segmentSize The number of plaintext bytes per segment
+   * @return The segmented ciphertext
+   * @throws KeyczarException If the primary key is not an AES key, or a JCE
+   * error occurs
+   */
+  public byte[] encryptSegmented(byte[] input, int segmentSize)
+      throws KeyczarException {
+    long start = startTimer();
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    if (!(encryptingKey instanceof AesKey)) {
+      throw new UnsupportedTypeException(encryptingKey.getType());
+    }
+    byte[] ciphertext = SegmentedCiphertext.encrypt((AesKey) encryptingKey,
+        input, segmentSize, forkJoinPool);
+    record(Operation.ENCRYPT, encryptingKey, input.length, start);
+    return ciphertext;
+  }
+
   /**
    * Encrypt the given input ByteBuffer.
    *
@@ -127,12 +222,13 @@ public class Encrypter extends Keyczar {
    */
   public void encrypt(ByteBuffer input, ByteBuffer output)
       throws KeyczarException {
-    ENCRYPTER_LOGGER.info(Messages.getString("Encrypter.Encrypting", input.remaining()));
+    long start = startTimer();
+    int length = input.remaining();
     KeyczarKey encryptingKey = getPrimaryKey();
     if (encryptingKey == null) {
       throw new NoPrimaryKeyException() ;
     }
-    EncryptingStream cryptStream = ENCRYPT_QUEUE.poll();
+    EncryptingStream cryptStream = encryptCache.get(encryptingKey);
     if (cryptStream == null) {
       cryptStream = (EncryptingStream) encryptingKey.getStream();
     }
@@ -169,7 +265,176 @@ public class Encrypter extends Keyczar {
     signStream.updateSign(outputToSign);
     // Sign the final block of ciphertext output
     signStream.sign(output);
-    ENCRYPT_QUEUE.add(cryptStream);
+    encryptCache.put(encryptingKey, cryptStream);
+    record(Operation.ENCRYPT, encryptingKey, length, start);
+  }
+
+  /**
+   * Encrypt everything read from the input stream and write the ciphertext to
+   * the output stream. The input is processed in fixed-size chunks, so memory
+   * use does not depend on its length. The ciphertext has the same format as
+   * the one produced by {@link #encrypt(byte[])}.
+   *
+   * Neither stream is closed.
+   *
+   * @param input The stream to read plaintext from
+   * @param output The stream to write the ciphertext to
+   * @throws KeyczarException If there is a JCE exception, the key set does
+   * not contain a primary encrypting key, or reading or writing fails.
+   */
+  public void encrypt(InputStream input, OutputStream output)
+      throws KeyczarException {
+    encrypt(Channels.newChannel(input), Channels.newChannel(output));
+  }
+
+  /**
+   * Encrypt everything read from the input channel and write the ciphertext
+   * to the output channel.
+   *
+   * Neither channel is closed.
+   *
+   * @param input The channel to read plaintext from
+   * @param output The channel to write the ciphertext to
+   * @throws KeyczarException If there is a JCE exception, the key set does
+   * not contain a primary encrypting key, or reading or writing fails.
+   * @see #encrypt(InputStream, OutputStream)
+   */
+  public void encrypt(ReadableByteChannel input, WritableByteChannel output)
+      throws KeyczarException {
+    long start = startTimer();
+    long length = 0;
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    EncryptingStream cryptStream = encryptCache.get(encryptingKey);
+    if (cryptStream == null) {
+      cryptStream = (EncryptingStream) encryptingKey.getStream();
+    }
+    SigningStream signStream = cryptStream.getSigningStream();
+    signStream.initSign();
+
+    ByteBuffer inputChunk = ByteBuffer.allocate(ENCRYPT_CHUNK_SIZE);
+    // Room for the header and IV, a chunk of ciphertext and the signature
+    ByteBuffer outputChunk = ByteBuffer.allocate(HEADER_SIZE
+        + cryptStream.maxOutputSize(ENCRYPT_CHUNK_SIZE)
+        + signStream.digestSize());
+    encryptingKey.copyHeader(outputChunk);
+    cryptStream.initEncrypt(outputChunk);
+
+    try {
+      while (Util.readFully(input, inputChunk)) {
+        inputChunk.flip();
+        length += inputChunk.remaining();
+        cryptStream.updateEncrypt(inputChunk, outputChunk);
+        inputChunk.clear();
+        signAndWrite(signStream, outputChunk, output);
+      }
+
+      inputChunk.flip();
+      length += inputChunk.remaining();
+      finishEncrypt(cryptStream, signStream, inputChunk, outputChunk, output);
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("Keyczar.StreamError"), e);
+    }
+    encryptCache.put(encryptingKey, cryptStream);
+    record(Operation.ENCRYPT, encryptingKey, length, start);
+  }
+
+  /**
+   * Encrypt the input file and write the ciphertext to the output file, which
+   * is created or truncated. The input is memory-mapped and the mapped regions
+   * are encrypted directly, so the plaintext is never copied into the heap.
+   * Files larger than 2 GB are mapped one window at a time. The ciphertext
+   * has the same format as the one produced by {@link #encrypt(byte[])}.
+   *
+   * @param input The file to encrypt
+   * @param output The file to write the ciphertext to
+   * @throws KeyczarException If there is a JCE exception, the key set does
+   * not contain a primary encrypting key, or a file cannot be read or written.
+   */
+  public void encryptFile(Path input, Path output) throws KeyczarException {
+    encryptFile(input, output, FileWindows.DEFAULT_WINDOW_SIZE);
+  }
+
+  void encryptFile(Path input, Path output, int windowSize)
+      throws KeyczarException {
+    long start = startTimer();
+    long length;
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    EncryptingStream cryptStream = encryptCache.get(encryptingKey);
+    if (cryptStream == null) {
+      cryptStream = (EncryptingStream) encryptingKey.getStream();
+    }
+    SigningStream signStream = cryptStream.getSigningStream();
+    signStream.initSign();
+
+    // A direct buffer is written to the file without another copy
+    ByteBuffer outputChunk = ByteBuffer.allocateDirect(HEADER_SIZE
+        + cryptStream.maxOutputSize(FileWindows.CHUNK_SIZE)
+        + signStream.digestSize());
+    encryptingKey.copyHeader(outputChunk);
+    cryptStream.initEncrypt(outputChunk);
+
+    try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      length = in.size();
+      FileWindows windows = new FileWindows(in, 0, length, windowSize);
+      while (windows.hasNext()) {
+        ByteBuffer window = windows.next();
+        while (window.hasRemaining()) {
+          ByteBuffer inputChunk = window.slice();
+          inputChunk.limit(Math.min(FileWindows.CHUNK_SIZE, window.remaining()));
+          cryptStream.updateEncrypt(inputChunk, outputChunk);
+          window.position(window.position() + inputChunk.limit());
+          signAndWrite(signStream, outputChunk, out);
+        }
+      }
+      finishEncrypt(cryptStream, signStream, ByteBuffer.allocate(0),
+          outputChunk, out);
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("Keyczar.FileError", input), e);
+    }
+    encryptCache.put(encryptingKey, cryptStream);
+    record(Operation.ENCRYPT, encryptingKey, length, start);
+  }
+
+  /**
+   * Encrypts the final input, appends the signature and writes the remaining
+   * ciphertext to the output.
+   */
+  private static void finishEncrypt(EncryptingStream cryptStream,
+      SigningStream signStream, ByteBuffer input, ByteBuffer outputChunk,
+      WritableByteChannel output) throws KeyczarException, IOException {
+    cryptStream.doFinalEncrypt(input, outputChunk);
+    outputChunk.flip();
+    signStream.updateSign(outputChunk);
+    // Append the signature after the final block of ciphertext
+    outputChunk.position(outputChunk.limit());
+    outputChunk.limit(outputChunk.limit() + signStream.digestSize());
+    signStream.sign(outputChunk);
+    outputChunk.flip();
+    Util.writeFully(outputChunk, output);
+  }
+
+  /**
+   * Signs the ciphertext in the given buffer, writes it to the output and
+   * clears the buffer.
+   */
+  private static void signAndWrite(SigningStream signStream,
+      ByteBuffer ciphertext, WritableByteChannel output)
+      throws KeyczarException, IOException {
+    ciphertext.flip();
+    signStream.updateSign(ciphertext);
+    ciphertext.rewind();
+    Util.writeFully(ciphertext, output);
+    ciphertext.clear();
   }
 
   /**
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps a region of a file into memory one window at a time. A single
+ * MappedByteBuffer can span at most 2 GB, so larger files are processed as a
+ * sequence of consecutive windows.
+ */
+class FileWindows {
+  /** Size of the windows used by the public file operations. */
+  static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+  /**
+   * Size of the pieces a window is encrypted or decrypted in, which bounds
+   * the size of the output buffer.
+   */
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private final FileChannel channel;
+  private final long end;
+  private final int windowSize;
+  private long position;
+
+  /**
+   * @param channel The channel of the file to map
+   * @param start Offset of the first byte of the region
+   * @param end Offset just past the last byte of the region
+   * @param windowSize Maximum number of bytes mapped at once
+   */
+  FileWindows(FileChannel channel, long start, long end, int windowSize) {
+    if (start < 0 || end < start || windowSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.channel = channel;
+    this.position = start;
+    this.end = end;
+    this.windowSize = windowSize;
+  }
+
+  boolean hasNext() {
+    return position < end;
+  }
+
+  /**
+   * Maps the next window of the region read-only.
+   *
+   * @return The mapped window
+   * @throws IOException If the file cannot be mapped
+   */
+  MappedByteBuffer next() throws IOException {
+    long size = Math.min(windowSize, end - position);
+    MappedByteBuffer window =
+      channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    position += size;
+    return window;
+  }
+}
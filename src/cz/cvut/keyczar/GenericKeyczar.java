@@ -1,5 +1,6 @@
 package cz.cvut.keyczar;
 
+import cz.cvut.keyczar.enums.CipherMode;
 import cz.cvut.keyczar.enums.KeyPurpose;
 import cz.cvut.keyczar.enums.KeyStatus;
 import cz.cvut.keyczar.enums.KeyType;
@@ -25,10 +26,22 @@ import java.util.Set;
 class GenericKeyczar extends Keyczar {
   GenericKeyczar(KeyczarReader reader) throws KeyczarException {
     super(reader);
+    recordHashes();
   }
 
   GenericKeyczar(String location) throws KeyczarException {
     super(location);
+    recordHashes();
+  }
+
+  /**
+   * Records the key hash of every version in the metadata, so key sets
+   * written by KeyczarTool can be indexed without reading their keys.
+   */
+  private void recordHashes() throws KeyczarException {
+    for (KeyVersion version : getVersions()) {
+      version.setHash(getKey(version).hash());
+    }
   }
 
   @Override
@@ -36,6 +49,11 @@ class GenericKeyczar extends Keyczar {
     return true;
   }
 
+  @Override
+  boolean isMutable() {
+    return true;
+  }
+
   KeyMetadata getMetadata() {
     return this.kmd;
   }
@@ -44,8 +62,8 @@ class GenericKeyczar extends Keyczar {
     return Collections.unmodifiableSet(versionMap.keySet());
   }
 
-  KeyczarKey getKey(KeyVersion v) {
-    return versionMap.get(v);
+  KeyczarKey getKey(KeyVersion v) throws KeyczarException {
+    return versionMap.get(v).get();
   }
 
   /**
@@ -123,6 +141,20 @@ class GenericKeyczar extends Keyczar {
    * @throws KeyczarException if key type is unsupported.
    */
   void addVersion(KeyStatus status, int keySize) throws KeyczarException {
+    addVersion(status, keySize, CipherMode.CBC);
+  }
+
+  /**
+   * Adds a new key version like {@link #addVersion(KeyStatus, int)}. If this
+   * is an AES key set, the new key uses the given cipher mode.
+   *
+   * @param status KeyStatus desired for new key version
+   * @param keySize desired key size in bits
+   * @param mode CipherMode of the new key
+   * @throws KeyczarException if key type is unsupported.
+   */
+  void addVersion(KeyStatus status, int keySize, CipherMode mode)
+      throws KeyczarException {
     KeyVersion version = new KeyVersion(numVersions() + 1, status, false);
     if (status == KeyStatus.PRIMARY) {
       if (primaryVersion != null) {
@@ -136,7 +168,7 @@ class GenericKeyczar extends Keyczar {
           keySize, kmd.getType().defaultSize(), kmd.getType().toString()));
     }
     do { // Make sure no keys collide on their identifiers
-      key = KeyczarKey.genKey(kmd.getType(), keySize);
+      key = KeyczarKey.genKey(kmd.getType(), keySize, mode);
     } while (getKey(key.hash()) != null);
     addKey(version, key);
     KEYCZAR_LOGGER.info(Messages.getString("Keyczar.NewVersion", version));
@@ -280,7 +312,7 @@ class GenericKeyczar extends Keyczar {
    * @param location String pathname of destination file
    * @throws KeyczarException if unable to write to file.
    */
-  void writeFile(String data, String location)
+  static void writeFile(String data, String location)
       throws KeyczarException {
     File outputFile = new File(location);
     try {
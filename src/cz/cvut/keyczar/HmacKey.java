@@ -17,6 +17,8 @@
 package cz.cvut.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import cz.cvut.keyczar.enums.KeyType;
 import cz.cvut.keyczar.exceptions.KeyczarException;
 import cz.cvut.keyczar.interfaces.SigningStream;
@@ -25,40 +27,70 @@ import cz.cvut.keyczar.interfaces.VerifyingStream;
 import cz.cvut.keyczar.util.Base64Coder;
 import cz.cvut.keyczar.util.Util;
 
-import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.security.MessageDigest;
 import java.util.concurrent.locks.LockSupport;
 
 /**
  * Wrapping class for HMAC-SHA1 keys
  *
+ * HMAC hashes the key padded with two constants, ipad and opad, before the
+ * message and before the inner hash. Both padded blocks only depend on the
+ * key, so they are hashed once when the key is loaded, and every operation
+ * starts from clones of the resulting SHA-1 states instead of initializing a
+ * Mac and hashing both blocks again.
+ *
  * @author steveweis@gmail.com (Steve Weis)
  * @author arkajit.dey@gmail.com (Arkajit Dey)
  */
 class HmacKey extends KeyczarKey {
     private static final String MAC_ALGORITHM = "HMACSHA1";
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final int BLOCK_SIZE = 64;
+    private static final byte IPAD = 0x36;
+    private static final byte OPAD = 0x5c;
 
     @Expose
     private String hmacKeyString;
 
     private Key hmacKey;
+    // SHA-1 states after hashing the key padded with ipad and opad. They are
+    // never updated again, only cloned.
+    private MessageDigest innerState;
+    private MessageDigest outerState;
     private byte[] hash = new byte[Keyczar.KEY_HASH_SIZE];
     private final long sleepNanos;
+    private final boolean constantTime;
 
+    /*
+     * The "difficulty" system property selects how signatures are compared:
+     * HARDEST, HARD and DEFAULT compare byte by byte, return on the first
+     * mismatch and sleep for 0, 5 and 100000 nanoseconds per matching byte,
+     * while CONSTANT_TIME compares every byte at a fixed cost and never sleeps.
+     */
     public HmacKey() {
         String nanosString = System.getProperty("difficulty", "DEFAULT");
         switch(nanosString){
+            case "CONSTANT_TIME":
+                sleepNanos = 0;
+                constantTime = true;
+                break;
             case "HARDEST":
                 sleepNanos = 0;
+                constantTime = false;
                 break;
             case "HARD":
                 sleepNanos = 5;
+                constantTime = false;
                 break;
             default:
                 sleepNanos = 100000;
+                constantTime = false;
         }
 
     }
@@ -81,6 +113,35 @@ class HmacKey extends KeyczarKey {
         byte[] fullHash = Util.hash(keyBytes);
         System.arraycopy(fullHash, 0, hash, 0, hash.length);
         hmacKey = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
+        try {
+            if (keyBytes.length > BLOCK_SIZE) {
+                keyBytes = MessageDigest.getInstance(DIGEST_ALGORITHM)
+                    .digest(keyBytes);
+            }
+            byte[] paddedKey = new byte[BLOCK_SIZE];
+            innerState = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            outerState = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                byte keyByte = i < keyBytes.length ? keyBytes[i] : 0;
+                paddedKey[i] = (byte) (keyByte ^ IPAD);
+            }
+            innerState.update(paddedKey);
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                paddedKey[i] ^= IPAD ^ OPAD;
+            }
+            outerState.update(paddedKey);
+        } catch (GeneralSecurityException e) {
+            throw new KeyczarException(e);
+        }
+    }
+
+    private static MessageDigest copy(MessageDigest state)
+            throws KeyczarException {
+        try {
+            return (MessageDigest) state.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new KeyczarException(e);
+        }
     }
 
     /*
@@ -107,20 +168,36 @@ class HmacKey extends KeyczarKey {
     }
 
     static HmacKey read(String input) throws KeyczarException {
-        HmacKey key = Util.gson().fromJson(input, HmacKey.class);
+        HmacKey key = KeyczarJson.fromJson(input, new HmacKey());
         key.init();
         return key;
     }
 
+    @Override
+    public void writeFields(JsonWriter out) throws IOException {
+        out.name("hmacKeyString").value(hmacKeyString);
+        super.writeFields(out);
+    }
+
+    @Override
+    public boolean readField(String name, JsonReader in) throws IOException {
+        if (name.equals("hmacKeyString")) {
+            hmacKeyString = KeyczarJson.nextString(in);
+            return true;
+        }
+        return super.readField(name, in);
+    }
+
     private class HmacStream implements VerifyingStream, SigningStream {
-        private Mac hmac;
+        private MessageDigest inner;
+        // Scratch space for the inner hash and the computed MAC, reused by
+        // every operation
+        private final byte[] innerResult;
+        private final byte[] macResult;
 
-        public HmacStream() throws KeyczarException {
-            try {
-                hmac = Mac.getInstance(MAC_ALGORITHM);
-            } catch (GeneralSecurityException e) {
-                throw new KeyczarException(e);
-            }
+        public HmacStream() {
+            innerResult = new byte[innerState.getDigestLength()];
+            macResult = new byte[outerState.getDigestLength()];
         }
 
         public int digestSize() {
@@ -128,39 +205,57 @@ class HmacKey extends KeyczarKey {
         }
 
         public void initSign() throws KeyczarException {
-            try {
-                hmac.init(hmacKey);
-            } catch (GeneralSecurityException e) {
-                throw new KeyczarException(e);
-            }
+            inner = copy(innerState);
         }
 
         public void initVerify() throws KeyczarException {
             initSign();
         }
 
-        public void sign(ByteBuffer output) {
-            output.put(hmac.doFinal());
+        public void sign(ByteBuffer output) throws KeyczarException {
+            computeMac();
+            output.put(macResult);
         }
 
         public void updateSign(ByteBuffer input) {
-            hmac.update(input);
+            inner.update(input);
         }
 
         public void updateVerify(ByteBuffer input) {
             updateSign(input);
         }
 
-        public boolean verify(ByteBuffer signature) {
-            byte[] sigBytes = new byte[signature.remaining()];
-            signature.get(sigBytes);
-            byte[] macResult = hmac.doFinal();
+        private void computeMac() throws KeyczarException {
+            MessageDigest outer = copy(outerState);
+            try {
+                inner.digest(innerResult, 0, innerResult.length);
+                outer.update(innerResult);
+                outer.digest(macResult, 0, macResult.length);
+            } catch (DigestException e) {
+                throw new KeyczarException(e);
+            }
+        }
+
+        public boolean verify(ByteBuffer signature) throws KeyczarException {
+            computeMac();
+            // Compare in place and consume the signature as a copy would
+            int start = signature.position();
+            int length = signature.remaining();
+            signature.position(signature.limit());
 
-            if (macResult.length != sigBytes.length) {
+            if (macResult.length != length) {
                 return false;
             }
+            if (constantTime) {
+                // Accumulate the differences of all bytes without branching
+                int difference = 0;
+                for (int pos = 0; pos < macResult.length; pos++) {
+                    difference |= macResult[pos] ^ signature.get(start + pos);
+                }
+                return difference == 0;
+            }
             for (int pos = 0; pos < macResult.length; pos++) {
-                if (macResult[pos] != sigBytes[pos]) {
+                if (macResult[pos] != signature.get(start + pos)) {
                     return false;
                 }
                 LockSupport.parkNanos(sleepNanos);
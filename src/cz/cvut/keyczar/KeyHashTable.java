@@ -0,0 +1,123 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import cz.cvut.keyczar.util.Util;
+
+/**
+ * Maps the 4-byte key hash identifiers found in ciphertext and signature
+ * headers to keys, or to handles of keys that are read on first use. The
+ * hashes are kept as primitive ints in an open addressing
+ * table with linear probing, so a lookup neither boxes the hash nor allocates
+ * a wrapper object.
+ *
+ * Like the HashMap it replaces, this table is not synchronized. Keys are added
+ * while a table is being built and only looked up once it is published.
+ */
+class KeyHashTable<V> {
+  private static final int INITIAL_CAPACITY = 8;
+
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  private Object[] keys = new Object[INITIAL_CAPACITY];
+  private int size = 0;
+
+  /**
+   * Associates the given key with the given hash identifier, replacing any
+   * key previously stored under the same hash.
+   *
+   * @param hash A big-endian representation of a key hash
+   * @param key The key to store
+   */
+  void put(byte[] hash, V key) {
+    if (hash.length != Keyczar.KEY_HASH_SIZE) {
+      throw new IllegalArgumentException();
+    }
+    if (2 * (size + 1) > keys.length) {
+      resize(2 * keys.length);
+    }
+    if (insert(hashes, keys, Util.toInt(hash), key)) {
+      size++;
+    }
+  }
+
+  /**
+   * @param hash A big-endian representation of a key hash
+   * @return The key with this hash, or null if there is none
+   */
+  V get(byte[] hash) {
+    if (hash.length != Keyczar.KEY_HASH_SIZE) {
+      throw new IllegalArgumentException();
+    }
+    return get(Util.toInt(hash));
+  }
+
+  /**
+   * @param hash A key hash
+   * @return The key with this hash, or null if there is none
+   */
+  @SuppressWarnings("unchecked")
+  V get(int hash) {
+    int mask = keys.length - 1;
+    for (int i = index(hash, mask); keys[i] != null; i = (i + 1) & mask) {
+      if (hashes[i] == hash) {
+        return (V) keys[i];
+      }
+    }
+    return null;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void resize(int capacity) {
+    int[] newHashes = new int[capacity];
+    Object[] newKeys = new Object[capacity];
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != null) {
+        insert(newHashes, newKeys, hashes[i], keys[i]);
+      }
+    }
+    hashes = newHashes;
+    keys = newKeys;
+  }
+
+  /**
+   * @return true if a new slot was taken, false if an existing key with the
+   * same hash was replaced
+   */
+  private static boolean insert(int[] hashes, Object[] keys, int hash,
+      Object key) {
+    int mask = keys.length - 1;
+    int i = index(hash, mask);
+    while (keys[i] != null) {
+      if (hashes[i] == hash) {
+        keys[i] = key;
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+    hashes[i] = hash;
+    keys[i] = key;
+    return true;
+  }
+
+  private static int index(int hash, int mask) {
+    // Spread the high bits into the low bits used as the index
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+}
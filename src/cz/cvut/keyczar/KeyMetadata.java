@@ -17,11 +17,14 @@
 package cz.cvut.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import cz.cvut.keyczar.enums.KeyPurpose;
 import cz.cvut.keyczar.enums.KeyType;
-import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -48,7 +51,7 @@ import java.util.Map;
  * @author arkajit.dey@gmail.com (Arkajit Dey)
  *
  */
-class KeyMetadata {
+class KeyMetadata implements KeyczarJson.Fields {
   @Expose String name = "";
   @Expose KeyPurpose purpose = KeyPurpose.TEST;
   @Expose KeyType type = KeyType.TEST;
@@ -58,9 +61,8 @@ class KeyMetadata {
   protected Map<Integer, KeyVersion> versionMap =
       new HashMap<Integer, KeyVersion>(); // link version number to version
 
-  @SuppressWarnings("unused")
   private KeyMetadata() {
-    // For GSON
+    // For reading JSON
   }
 
   KeyMetadata(String n, KeyPurpose p, KeyType t) {
@@ -71,7 +73,54 @@ class KeyMetadata {
 
   @Override
   public String toString() {
-    return Util.gson().toJson(this);
+    return KeyczarJson.toJson(this);
+  }
+
+  public void writeFields(JsonWriter out) throws IOException {
+    out.name("name").value(name);
+    out.name("purpose");
+    KeyczarJson.writeEnum(out, purpose);
+    out.name("type");
+    KeyczarJson.writeEnum(out, type);
+    out.name("versions");
+    if (versions == null) {
+      out.nullValue();
+    } else {
+      out.beginArray();
+      for (KeyVersion version : versions) {
+        KeyczarJson.write(out, version);
+      }
+      out.endArray();
+    }
+    out.name("encrypted").value(encrypted);
+  }
+
+  public boolean readField(String fieldName, JsonReader in)
+      throws IOException {
+    if (fieldName.equals("name")) {
+      name = KeyczarJson.nextString(in);
+    } else if (fieldName.equals("purpose")) {
+      purpose = KeyczarJson.nextEnum(in, KeyPurpose.class);
+    } else if (fieldName.equals("type")) {
+      type = KeyczarJson.nextEnum(in, KeyType.class);
+    } else if (fieldName.equals("versions")) {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        versions = null;
+      } else {
+        versions = new ArrayList<KeyVersion>();
+        in.beginArray();
+        while (in.hasNext()) {
+          versions.add(KeyVersion.read(in));
+        }
+        in.endArray();
+      }
+    } else if (fieldName.equals("encrypted")) {
+      encrypted = KeyczarJson.nextBoolean(in, encrypted);
+    } else {
+      return false;
+    }
+    return true;
   }
 
   /**
@@ -148,7 +197,7 @@ class KeyMetadata {
    * @return KeyMetadata corresponding to JSON input
    */
   static KeyMetadata read(String jsonString) {
-    KeyMetadata kmd = Util.gson().fromJson(jsonString, KeyMetadata.class);
+    KeyMetadata kmd = KeyczarJson.fromJson(jsonString, new KeyMetadata());
     for (KeyVersion version : kmd.getVersions()) {
       kmd.versionMap.put(version.getVersionNumber(), version);
     }
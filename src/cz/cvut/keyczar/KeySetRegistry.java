@@ -0,0 +1,231 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import cz.cvut.keyczar.enums.StreamPoolStrategy;
+import cz.cvut.keyczar.exceptions.KeyczarException;
+import cz.cvut.keyczar.i18n.Messages;
+import cz.cvut.keyczar.interfaces.EncryptedReader;
+import cz.cvut.keyczar.interfaces.EncryptingStream;
+import cz.cvut.keyczar.interfaces.KeyczarReader;
+import cz.cvut.keyczar.interfaces.SigningStream;
+
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide cache of parsed key sets. Reading a key set through the
+ * registry reads its metadata and keys once, and parses each key once, the
+ * first time any {@link Keyczar} object created from the returned reader uses
+ * it. These objects share the same KeyczarKey objects and their stream pools,
+ * instead of rebuilding the JCE keys.
+ *
+ * <pre>
+ * Verifier verifier = new Verifier(KeySetRegistry.get("/path/to/keys"));
+ * </pre>
+ *
+ * Key sets are cached by their location, or by the identity of the reader
+ * they were read from. A registered key set is never read again, so changes
+ * to the keys, e.g. by KeyczarTool, are only seen after the key set has been
+ * {@link #invalidate(String) invalidated}. Key sets read from a reader are
+ * dropped once the reader is garbage collected; key sets read from a location
+ * stay until they are invalidated.
+ */
+public final class KeySetRegistry {
+  // Both maps are guarded by the class lock
+  private static final Map<String, Entry> LOCATIONS =
+    new HashMap<String, Entry>();
+  private static final Map<KeyczarReader, Entry> READERS =
+    new WeakHashMap<KeyczarReader, Entry>();
+
+  private KeySetRegistry() {
+    // Don't new me.
+  }
+
+  /**
+   * Returns the key set at the given location, reading it with a
+   * {@link KeyczarFileReader} if it is not registered yet.
+   *
+   * @param location Directory containing a key set
+   * @return A reader to create Keyczar objects sharing the key set from
+   * @throws KeyczarException If the key set cannot be read or parsed
+   */
+  public static KeyczarReader get(String location) throws KeyczarException {
+    String path = Paths.get(location).toAbsolutePath().normalize().toString();
+    Entry entry;
+    synchronized (KeySetRegistry.class) {
+      entry = LOCATIONS.get(path);
+      if (entry == null) {
+        entry = new Entry();
+        LOCATIONS.put(path, entry);
+      }
+    }
+    return entry.get(new KeyczarFileReader(path));
+  }
+
+  /**
+   * Returns the key set read from the given reader, reading it if it is not
+   * registered yet. Key sets with encrypted keys must be read from an
+   * {@link EncryptedReader}.
+   *
+   * @param reader A reader to read keys from
+   * @return A reader to create Keyczar objects sharing the key set from
+   * @throws KeyczarException If the key set cannot be read or parsed
+   */
+  public static KeyczarReader get(KeyczarReader reader)
+      throws KeyczarException {
+    if (reader instanceof SharedKeySet) {
+      return reader;
+    }
+    Entry entry;
+    synchronized (KeySetRegistry.class) {
+      entry = READERS.get(reader);
+      if (entry == null) {
+        entry = new Entry();
+        READERS.put(reader, entry);
+      }
+    }
+    return entry.get(reader);
+  }
+
+  /**
+   * Drops the key set at the given location, so it is read again the next
+   * time it is requested. Keyczar objects already created from it are not
+   * affected.
+   *
+   * @param location Directory containing a key set
+   */
+  public static synchronized void invalidate(String location) {
+    LOCATIONS.remove(
+        Paths.get(location).toAbsolutePath().normalize().toString());
+  }
+
+  /**
+   * Drops the key set read from the given reader.
+   *
+   * @param reader A reader the key set was read from
+   */
+  public static synchronized void invalidate(KeyczarReader reader) {
+    READERS.remove(reader);
+  }
+
+  /**
+   * Drops all registered key sets.
+   */
+  public static synchronized void clear() {
+    LOCATIONS.clear();
+    READERS.clear();
+  }
+
+  /**
+   * A registered key set, read at most once. Key sets are read outside of
+   * the registry lock, so reading a large key set does not hold up lookups of
+   * other key sets.
+   */
+  private static final class Entry {
+    private SharedKeySet keySet;
+
+    synchronized SharedKeySet get(KeyczarReader reader)
+        throws KeyczarException {
+      if (keySet == null) {
+        keySet = new SharedKeySet(reader);
+      }
+      return keySet;
+    }
+  }
+
+  /**
+   * A key set whose keys are parsed on first use. It also serves the JSON of
+   * its keys, so Keyczar objects that modify their key set can still create
+   * their own copy. The JSON read for a key is dropped once the key has been
+   * parsed, and written from the parsed key when it is asked for again, so
+   * the key material is not held twice.
+   */
+  static final class SharedKeySet implements KeyczarReader {
+    private final String metadata;
+    // JSON of the keys not parsed yet
+    private final ConcurrentHashMap<Integer, String> keyData =
+      new ConcurrentHashMap<Integer, String>();
+    final KeyMetadata kmd;
+    private final ConcurrentHashMap<Integer, KeyczarKey> keys =
+      new ConcurrentHashMap<Integer, KeyczarKey>();
+    // Default stream pools of the Signers and Encrypters of this key set
+    final StreamCache<SigningStream> signCache =
+      StreamCache.create(StreamPoolStrategy.QUEUE);
+    final StreamCache<EncryptingStream> encryptCache =
+      StreamCache.create(StreamPoolStrategy.QUEUE);
+
+    private SharedKeySet(KeyczarReader reader) throws KeyczarException {
+      metadata = reader.getMetadata();
+      kmd = KeyMetadata.read(metadata);
+      if (kmd.isEncrypted() && !(reader instanceof EncryptedReader)) {
+        throw new KeyczarException(
+            Messages.getString("Keyczar.NeedEncryptedReader"));
+      }
+      // Reading is cheap next to parsing, and the reader is not kept
+      for (KeyVersion version : kmd.getVersions()) {
+        int versionNumber = version.getVersionNumber();
+        keyData.put(versionNumber, reader.getKey(versionNumber));
+      }
+    }
+
+    /**
+     * @param version The version number of a key
+     * @return The parsed key shared by all Keyczar objects of this key set
+     * @throws KeyczarException If the key cannot be parsed
+     */
+    KeyczarKey getParsedKey(int version) throws KeyczarException {
+      KeyczarKey key = keys.get(version);
+      if (key != null) {
+        return key;
+      }
+      synchronized (this) {
+        key = keys.get(version);
+        if (key == null) {
+          key = KeyczarKey.readKey(kmd.getType(), getKey(version));
+          Keyczar.KEYCZAR_LOGGER.info(Messages.getString("Keyczar.ReadVersion",
+              kmd.getVersion(version)));
+          key.versionNumber = version;
+          keys.put(version, key);
+          keyData.remove(version);
+        }
+      }
+      return key;
+    }
+
+    public String getKey(int version) throws KeyczarException {
+      String data = keyData.get(version);
+      if (data == null) {
+        // Parsed keys are stored before their JSON is dropped
+        KeyczarKey key = keys.get(version);
+        if (key != null) {
+          return key.toString();
+        }
+        throw new KeyczarException(
+            Messages.getString("Keyczar.NoSuchVersion", version));
+      }
+      return data;
+    }
+
+    public String getMetadata() {
+      return metadata;
+    }
+  }
+}
@@ -17,10 +17,15 @@
 package cz.cvut.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import cz.cvut.keyczar.enums.KeyStatus;
-import cz.cvut.keyczar.util.Util;
+import cz.cvut.keyczar.exceptions.KeyczarException;
+import cz.cvut.keyczar.i18n.Messages;
+import cz.cvut.keyczar.util.Base64Coder;
 
+import java.io.IOException;
 
 /**
  * A key version consists of the following:
@@ -34,21 +39,24 @@ import cz.cvut.keyczar.util.Util;
  * <ul>
  *   <li>"status": JSON representation of KeyStatus value,
  *   <li>"versionNumber": integer version number,
- *   <li>"exportable": boolean value.
+ *   <li>"exportable": boolean value,
+ *   <li>"hash": web-safe Base64 hash identifier of the version's key. This
+ *       field is optional; key sets written by older versions of KeyczarTool
+ *       don't record it.
  * </ul>
  *
  * @author steveweis@gmail.com (Steve Weis)
  * @author arkajit.dey@gmail.com (Arkajit Dey)
  *
  */
-class KeyVersion {
+class KeyVersion implements KeyczarJson.Fields {
   @Expose private boolean exportable = false;
   @Expose private KeyStatus status = KeyStatus.ACTIVE;
   @Expose private int versionNumber = 0;
+  @Expose private String hash = null;
 
-  @SuppressWarnings("unused")
   private KeyVersion() {
-    // For GSON
+    // For reading JSON
   }
 
   KeyVersion(int v, boolean export) {
@@ -63,7 +71,30 @@ class KeyVersion {
 
   @Override
   public String toString() {
-    return Util.gson().toJson(this);
+    return KeyczarJson.toJson(this);
+  }
+
+  public void writeFields(JsonWriter out) throws IOException {
+    out.name("exportable").value(exportable);
+    out.name("status");
+    KeyczarJson.writeEnum(out, status);
+    out.name("versionNumber").value(versionNumber);
+    out.name("hash").value(hash);
+  }
+
+  public boolean readField(String name, JsonReader in) throws IOException {
+    if (name.equals("exportable")) {
+      exportable = KeyczarJson.nextBoolean(in, exportable);
+    } else if (name.equals("status")) {
+      status = KeyczarJson.nextEnum(in, KeyStatus.class);
+    } else if (name.equals("versionNumber")) {
+      versionNumber = KeyczarJson.nextInt(in, versionNumber);
+    } else if (name.equals("hash")) {
+      hash = KeyczarJson.nextString(in);
+    } else {
+      return false;
+    }
+    return true;
   }
 
   @Override
@@ -93,6 +124,32 @@ class KeyVersion {
     return exportable;
   }
 
+  /**
+   * @return The recorded hash identifier of this version's key, or null if
+   * it was not recorded
+   * @throws KeyczarException If the recorded hash is malformed
+   */
+  byte[] getHash() throws KeyczarException {
+    if (hash == null) {
+      return null;
+    }
+    byte[] decoded = Base64Coder.decode(hash);
+    if (decoded.length != Keyczar.KEY_HASH_SIZE) {
+      throw new KeyczarException(
+          Messages.getString("Keyczar.BadKeyHash", versionNumber));
+    }
+    return decoded;
+  }
+
+  /**
+   * Records the hash identifier of this version's key.
+   *
+   * @param keyHash The key hash identifier
+   */
+  void setHash(byte[] keyHash) {
+    hash = Base64Coder.encode(keyHash);
+  }
+
   /**
    * Updates the status of this KeyVersion to given status if not null.
    * @param status
@@ -102,6 +159,10 @@ class KeyVersion {
   }
 
   static KeyVersion read(String jsonString) {
-    return Util.gson().fromJson(jsonString, KeyVersion.class);
+    return KeyczarJson.fromJson(jsonString, new KeyVersion());
+  }
+
+  static KeyVersion read(JsonReader in) throws IOException {
+    return KeyczarJson.read(in, new KeyVersion());
   }
 }
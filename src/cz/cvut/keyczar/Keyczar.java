@@ -19,12 +19,15 @@ package cz.cvut.keyczar;
 import org.apache.log4j.Logger;
 import cz.cvut.keyczar.enums.KeyPurpose;
 import cz.cvut.keyczar.enums.KeyStatus;
+import cz.cvut.keyczar.enums.Operation;
 import cz.cvut.keyczar.exceptions.KeyczarException;
 import cz.cvut.keyczar.i18n.Messages;
 import cz.cvut.keyczar.interfaces.EncryptedReader;
 import cz.cvut.keyczar.interfaces.KeyczarReader;
+import cz.cvut.keyczar.interfaces.MetricsSink;
 import cz.cvut.keyczar.util.Util;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -43,47 +46,47 @@ abstract class Keyczar {
 
   final KeyMetadata kmd;
   KeyVersion primaryVersion;
-  final HashMap<KeyVersion, KeyczarKey> versionMap =
-    new HashMap<KeyVersion, KeyczarKey>();
-  final HashMap<KeyHash, KeyczarKey> hashMap =
-    new HashMap<KeyHash, KeyczarKey>(); // keep track of used hash identifiers
-
-  private class KeyHash {
-    private byte[] data;
-
-    private KeyHash(byte[] d) {
-      if (d.length != KEY_HASH_SIZE) {
-        throw new IllegalArgumentException();
-      }
-      data = d;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-      return (o instanceof KeyHash && o.hashCode() == this.hashCode());
-    }
-
-    @Override
-    public int hashCode() {
-      return Util.toInt(data);
-    }
-  }
+  final HashMap<KeyVersion, KeyHandle> versionMap =
+    new HashMap<KeyVersion, KeyHandle>();
+  // Keys by hash identifier. Replaced as a whole when keys are added, so
+  // lookups read it without locking.
+  private volatile KeyHashTable<KeyHandle> hashTable;
+  // Whether some versions are missing from hashTable, because their hashes
+  // are not recorded and their keys have not been read yet
+  private volatile boolean hasUnhashed;
+  private final KeyczarReader reader;
+  // Lets stream caches drop the streams of keys once this key set is gone
+  private final LoadedKeys.KeySet loadedKeys = LoadedKeys.track(this);
+  // The registered key set this object shares its keys with, or null
+  final KeySetRegistry.SharedKeySet sharedKeySet;
+  private MetricsSink metrics = NoOpMetricsSink.INSTANCE;
 
   /**
-   * Instantiates a new Keyczar object by passing it a Keyczar reader object
+   * Instantiates a new Keyczar object by passing it a Keyczar reader object.
+   * Only the metadata is read here. The key of each version is read and
+   * parsed the first time it is used, and versions are looked up by the key
+   * hashes recorded in the metadata, if any.
    *
    * @param reader A KeyczarReader to read keys from
    * @throws KeyczarException
    */
   public Keyczar(KeyczarReader reader) throws KeyczarException {
+    this.reader = reader;
+    // Registered key sets are shared as parsed, unless this object modifies
+    // its key set
+    sharedKeySet = reader instanceof KeySetRegistry.SharedKeySet && !isMutable()
+        ? (KeySetRegistry.SharedKeySet) reader : null;
     // Reads keys from the KeyczarReader
-    kmd = KeyMetadata.read(reader.getMetadata());
+    kmd = sharedKeySet != null
+        ? sharedKeySet.kmd : KeyMetadata.read(reader.getMetadata());
     if (!isAcceptablePurpose(kmd.getPurpose())) {
       throw new KeyczarException(
           Messages.getString("Keyczar.UnacceptablePurpose", kmd.getPurpose()));
     }
 
-    if (kmd.isEncrypted() && !(reader instanceof EncryptedReader)) {
+    // Registered key sets were checked when they were read
+    if (kmd.isEncrypted() && !(reader instanceof EncryptedReader
+        || reader instanceof KeySetRegistry.SharedKeySet)) {
       throw new KeyczarException(
           Messages.getString("Keyczar.NeedEncryptedReader"));
     }
@@ -95,12 +98,9 @@ abstract class Keyczar {
         }
         primaryVersion = version;
       }
-      KeyczarKey key = KeyczarKey.readKey(kmd.getType(),
-          reader.getKey(version.getVersionNumber()));
-      KEYCZAR_LOGGER.info(Messages.getString("Keyczar.ReadVersion", version));
-      hashMap.put(new KeyHash(key.hash()), key);
-      versionMap.put(version, key);
+      versionMap.put(version, new KeyHandle(version, null));
     }
+    index(false);
   }
 
   /**
@@ -119,6 +119,46 @@ abstract class Keyczar {
     return kmd.toString();
   }
 
+  /**
+   * Sets the sink every completed operation of this key set is reported to.
+   * By default operations are neither timed nor recorded. This should be
+   * called before the key set is shared between threads.
+   *
+   * @param sink The metrics sink
+   */
+  public void setMetricsSink(MetricsSink sink) {
+    if (sink == null) {
+      throw new NullPointerException();
+    }
+    metrics = sink;
+  }
+
+  /**
+   * @return The start time to pass to
+   * {@link #record(Operation, KeyczarKey, long, long)}, or 0 if operations
+   * are not recorded
+   */
+  final long startTimer() {
+    return metrics == NoOpMetricsSink.INSTANCE ? 0 : System.nanoTime();
+  }
+
+  /**
+   * Reports a completed operation to the metrics sink.
+   *
+   * @param operation The operation performed
+   * @param key The key used
+   * @param bytes The length of the operation's input
+   * @param start The value {@link #startTimer()} returned when the operation
+   * started
+   */
+  final void record(Operation operation, KeyczarKey key, long bytes,
+      long start) {
+    if (metrics != NoOpMetricsSink.INSTANCE) {
+      metrics.record(operation, key.getType(), key.versionNumber, bytes,
+          System.nanoTime() - start);
+    }
+  }
+
   /**
    * Adds a new KeyczarKey (new version) to the key store. Associates it
    * with given version. Adds new KeyVersion to the key set.
@@ -126,21 +166,101 @@ abstract class Keyczar {
    * @param version KeyVersion
    * @param key KeyczarKey
    */
-  void addKey(KeyVersion version, KeyczarKey key) {
-    hashMap.put(new KeyHash(key.hash()), key);
-    versionMap.put(version, key);
+  void addKey(KeyVersion version, KeyczarKey key) throws KeyczarException {
+    key.versionNumber = version.getVersionNumber();
+    version.setHash(key.hash());
+    versionMap.put(version, new KeyHandle(version, key));
+    loadedKeys.add(key);
     kmd.addVersion(version);
+    index(false);
   }
 
-  KeyczarKey getPrimaryKey() {
+  KeyczarKey getPrimaryKey() throws KeyczarException {
     if (primaryVersion == null) {
       return null;
     }
-    return versionMap.get(primaryVersion);
+    return versionMap.get(primaryVersion).get();
   }
 
-  KeyczarKey getKey(byte[] hash) {
-    return hashMap.get(new KeyHash(hash));
+  KeyczarKey getKey(byte[] hash) throws KeyczarException {
+    if (hash.length != KEY_HASH_SIZE) {
+      throw new IllegalArgumentException();
+    }
+    return getKey(Util.toInt(hash));
+  }
+
+  /**
+   * Returns the key identified by the given hash, read as a big-endian
+   * integer, e.g. with {@link Util#readInt(java.nio.ByteBuffer)}. If the
+   * hash is not recorded for every version, the first lookup of an unknown
+   * hash reads the keys of the versions without one.
+   *
+   * @param hash The key hash identifier
+   * @return The key with this hash, or null if there is none
+   * @throws KeyczarException If the key cannot be read
+   */
+  KeyczarKey getKey(int hash) throws KeyczarException {
+    KeyHandle handle = hashTable.get(hash);
+    if (handle == null && hasUnhashed) {
+      index(true);
+      handle = hashTable.get(hash);
+    }
+    return handle == null ? null : handle.get();
+  }
+
+  /**
+   * Publishes a new hash table of all versions with a recorded hash or a key
+   * that has been read.
+   *
+   * @param readKeys Whether to read the keys of the other versions first
+   * @throws KeyczarException If a key cannot be read
+   */
+  private synchronized void index(boolean readKeys) throws KeyczarException {
+    KeyHashTable<KeyHandle> table = new KeyHashTable<KeyHandle>();
+    boolean complete = true;
+    for (KeyHandle handle : versionMap.values()) {
+      byte[] hash = handle.version.getHash();
+      if (hash == null && (readKeys || handle.isRead())) {
+        hash = handle.get().hash();
+      }
+      if (hash == null) {
+        complete = false;
+      } else {
+        table.put(hash, handle);
+      }
+    }
+    // Publish the table before lookups stop falling back to reading keys
+    hashTable = table;
+    hasUnhashed = !complete;
+  }
+
+  private KeyczarKey readKey(KeyVersion version) throws KeyczarException {
+    KeyczarKey key;
+    if (sharedKeySet != null) {
+      key = sharedKeySet.getParsedKey(version.getVersionNumber());
+    } else {
+      key = KeyczarKey.readKey(kmd.getType(),
+          reader.getKey(version.getVersionNumber()));
+      KEYCZAR_LOGGER.info(Messages.getString("Keyczar.ReadVersion", version));
+      key.versionNumber = version.getVersionNumber();
+    }
+    byte[] hash = version.getHash();
+    if (hash != null && !Arrays.equals(hash, key.hash())) {
+      throw new KeyczarException(Messages.getString("Keyczar.KeyHashMismatch",
+          version.getVersionNumber()));
+    }
+    loadedKeys.add(key);
+    return key;
+  }
+
+  /**
+   * Returns true if this object changes its key set, and so can't share the
+   * parsed key sets of the {@link KeySetRegistry}.
+   *
+   * @return false, unless overridden
+   */
+  boolean isMutable() {
+    return false;
   }
 
   /**
@@ -150,4 +270,40 @@ abstract class Keyczar {
    * @return true if the purpose is acceptable, false otherwise.
    */
   abstract boolean isAcceptablePurpose(KeyPurpose purpose);
+
+  /**
+   * A key version whose key is read from the key set on first use.
+   */
+  final class KeyHandle {
+    final KeyVersion version;
+    private volatile KeyczarKey key;
+
+    KeyHandle(KeyVersion version, KeyczarKey key) {
+      this.version = version;
+      this.key = key;
+    }
+
+    boolean isRead() {
+      return key != null;
+    }
+
+    /**
+     * @return The key of this version, read now if it has not been read yet
+     * @throws KeyczarException If the key cannot be read or does not match
+     * its recorded hash
+     */
+    KeyczarKey get() throws KeyczarException {
+      KeyczarKey result = key;
+      if (result == null) {
+        synchronized (this) {
+          result = key;
+          if (result == null) {
+            result = readKey(version);
+            key = result;
+          }
+        }
+      }
+      return result;
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * Streaming reader and writer of the JSON key and metadata formats. Each
+ * format lists its own fields, so they are read and written without
+ * reflection, but exactly as the Gson object returned by
+ * {@link cz.cvut.keyczar.util.Util#gson()} would read and write them:
+ * <ul>
+ *   <li>fields are written in declaration order, those of a superclass last,
+ *   <li>null fields are left out, and strings are escaped HTML-safe,
+ *   <li>unknown fields are skipped, and null values of primitive fields keep
+ *       the field's default,
+ *   <li>unknown enum constants are read as null.
+ * </ul>
+ */
+final class KeyczarJson {
+
+  /**
+   * An object read and written as a JSON object.
+   */
+  interface Fields {
+    /**
+     * Writes the name and value of each field of this object.
+     *
+     * @param out The writer, inside this object
+     * @throws IOException If the writer fails
+     */
+    void writeFields(JsonWriter out) throws IOException;
+
+    /**
+     * Reads the value of a field of this object.
+     *
+     * @param name The name of the field
+     * @param in The reader, positioned at the field's value
+     * @return false if this object has no field of this name, in which case
+     * the value has not been read
+     * @throws IOException If the value is malformed
+     */
+    boolean readField(String name, JsonReader in) throws IOException;
+  }
+
+  private KeyczarJson() {
+    // Don't new me.
+  }
+
+  /**
+   * @param value An object to write
+   * @return The JSON representation of the object
+   */
+  static String toJson(Fields value) {
+    StringWriter json = new StringWriter();
+    JsonWriter out = new JsonWriter(json);
+    out.setHtmlSafe(true);
+    out.setSerializeNulls(false);
+    try {
+      write(out, value);
+    } catch (IOException e) {
+      throw new JsonIOException(e);
+    }
+    return json.toString();
+  }
+
+  /**
+   * Reads a JSON object into the fields of a new object.
+   *
+   * @param json The JSON representation of an object
+   * @param value A newly constructed object to read the fields into
+   * @return The given object, or null if the JSON value is null
+   * @throws JsonSyntaxException If the JSON is malformed
+   */
+  static <T extends Fields> T fromJson(String json, T value) {
+    JsonReader in = new JsonReader(new StringReader(json));
+    in.setLenient(true);
+    try {
+      T result = read(in, value);
+      if (in.peek() != JsonToken.END_DOCUMENT) {
+        throw new JsonIOException("JSON document was not fully consumed.");
+      }
+      return result;
+    } catch (IOException e) {
+      throw new JsonSyntaxException(e);
+    } catch (IllegalStateException e) {
+      throw new JsonSyntaxException(e);
+    } catch (NumberFormatException e) {
+      throw new JsonSyntaxException(e);
+    }
+  }
+
+  static void write(JsonWriter out, Fields value) throws IOException {
+    if (value == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    value.writeFields(out);
+    out.endObject();
+  }
+
+  static <T extends Fields> T read(JsonReader in, T value)
+      throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    in.beginObject();
+    while (in.hasNext()) {
+      if (!value.readField(in.nextName(), in)) {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+    return value;
+  }
+
+  static String nextString(JsonReader in) throws IOException {
+    switch (in.peek()) {
+      case NULL:
+        in.nextNull();
+        return null;
+      case BOOLEAN:
+        return Boolean.toString(in.nextBoolean());
+      default:
+        return in.nextString();
+    }
+  }
+
+  static int nextInt(JsonReader in, int value) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return value;
+    }
+    return in.nextInt();
+  }
+
+  static boolean nextBoolean(JsonReader in, boolean value)
+      throws IOException {
+    switch (in.peek()) {
+      case NULL:
+        in.nextNull();
+        return value;
+      case STRING:
+        return Boolean.parseBoolean(in.nextString());
+      default:
+        return in.nextBoolean();
+    }
+  }
+
+  static <E extends Enum<E>> E nextEnum(JsonReader in, Class<E> type)
+      throws IOException {
+    String name = nextString(in);
+    if (name == null) {
+      return null;
+    }
+    try {
+      return Enum.valueOf(type, name);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  static void writeEnum(JsonWriter out, Enum<?> value) throws IOException {
+    out.value(value == null ? null : value.name());
+  }
+}
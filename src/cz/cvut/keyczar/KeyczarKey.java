@@ -18,7 +18,10 @@ package cz.cvut.keyczar;
 
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import cz.cvut.keyczar.enums.CipherMode;
 import cz.cvut.keyczar.enums.KeyType;
 import cz.cvut.keyczar.exceptions.KeyczarException;
 import cz.cvut.keyczar.exceptions.UnsupportedTypeException;
@@ -26,6 +29,7 @@ import cz.cvut.keyczar.i18n.Messages;
 import cz.cvut.keyczar.interfaces.Stream;
 import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
@@ -39,8 +43,10 @@ import java.util.Arrays;
  * @author arkajit.dey@gmail.com (Arkajit Dey)
  *
  */
-abstract class KeyczarKey {
+abstract class KeyczarKey implements KeyczarJson.Fields {
   @Expose int size = getType().defaultSize();
+  // Version of this key in the key set that loaded it, reported to metrics
+  int versionNumber;
 
   void copyHeader(ByteBuffer dest) {
     dest.put(Keyczar.FORMAT_VERSION);
@@ -95,7 +101,27 @@ abstract class KeyczarKey {
 
   @Override
   public String toString() {
-    return Util.gson().toJson(this);
+    return KeyczarJson.toJson(this);
+  }
+
+  /**
+   * Writes the fields of this key. Subclasses write their own fields first
+   * and then call this method.
+   */
+  public void writeFields(JsonWriter out) throws IOException {
+    out.name("size").value(size);
+  }
+
+  /**
+   * Reads a field of this key. Subclasses read their own fields and pass
+   * any other field on to this method.
+   */
+  public boolean readField(String name, JsonReader in) throws IOException {
+    if (name.equals("size")) {
+      size = KeyczarJson.nextInt(in, size);
+      return true;
+    }
+    return false;
   }
   
   /**
@@ -111,12 +137,27 @@ abstract class KeyczarKey {
    * @throws KeyczarException for unsupported key types
    */
   static KeyczarKey genKey(KeyType type, int keySize) throws KeyczarException {
+    return genKey(type, keySize, CipherMode.CBC);
+  }
+
+  /**
+   * Generates private key of the desired type and size. AES keys are created
+   * in the given cipher mode, which is ignored for all other key types.
+   *
+   * @param type KeyType desired
+   * @param keySize desired length of key
+   * @param mode CipherMode of AES keys
+   * @return KeyczarKey of desired type
+   * @throws KeyczarException for unsupported key types
+   */
+  static KeyczarKey genKey(KeyType type, int keySize, CipherMode mode)
+      throws KeyczarException {
     if (!type.isAcceptableSize(keySize)) {
       keySize = type.defaultSize();  // fall back to default
     }
     switch (type) {
       case AES:
-        return AesKey.generate(keySize);
+        return AesKey.generate(keySize, mode);
       case HMAC_SHA1:
         return HmacKey.generate(keySize);
       case DSA_PRIV:
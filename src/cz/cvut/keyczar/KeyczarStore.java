@@ -0,0 +1,336 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import cz.cvut.keyczar.exceptions.KeyczarException;
+import cz.cvut.keyczar.i18n.Messages;
+import cz.cvut.keyczar.interfaces.KeyczarReader;
+import cz.cvut.keyczar.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A single file holding any number of named key sets, read through a
+ * MappedByteBuffer. Opening a store reads only its directory of key set
+ * names; the metadata and keys of a key set are decoded from the mapping when
+ * a {@link KeyczarStoreReader} asks for them, so the operating system shares
+ * and pages in the file as needed instead of every key set living on the
+ * heap.
+ *
+ * The metadata and keys are stored as the same JSON documents a
+ * {@link KeyczarFileReader} reads, so encrypted key sets stay encrypted. The
+ * file consists of:
+ * <ul>
+ *   <li>a header: the bytes "KZKS", the format version 1, and the number of
+ *       key sets,
+ *   <li>a directory: the UTF-8 name of each key set, prefixed by its length
+ *       as a short, and the offset of its entry table,
+ *   <li>an entry table per key set: the number of entries followed by the
+ *       version number, offset and length of each entry, sorted by version.
+ *       Version 0 is the metadata,
+ *   <li>the UTF-8 entries themselves.
+ * </ul>
+ * Integers are big-endian. Offsets are from the start of the file.
+ *
+ * Stores are written whole, to a temporary file that then replaces the
+ * store, so readers of a mapped store keep seeing the old contents.
+ */
+public final class KeyczarStore {
+  private static final byte[] MAGIC = { 'K', 'Z', 'K', 'S' };
+  private static final byte FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+  private static final int ENTRY_SIZE = 12;
+  private static final int METADATA_VERSION = 0;
+
+  private final String location;
+  // Read with absolute gets only, so it can be shared between threads
+  private final ByteBuffer buffer;
+  private final Map<String, Integer> directory;
+
+  private KeyczarStore(String location, ByteBuffer buffer,
+      Map<String, Integer> directory) {
+    this.location = location;
+    this.buffer = buffer;
+    this.directory = directory;
+  }
+
+  /**
+   * Maps the store at the given location and reads its directory.
+   *
+   * @param location The store file
+   * @return The opened store
+   * @throws KeyczarException If the file cannot be read or is not a store
+   */
+  public static KeyczarStore open(String location) throws KeyczarException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(Paths.get(location),
+        StandardOpenOption.READ)) {
+      // The mapping stays valid after the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("KeyczarFileReader.FileError", location), e);
+    }
+
+    Map<String, Integer> directory = new HashMap<String, Integer>();
+    try {
+      ByteBuffer header = buffer.duplicate();
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if (!Arrays.equals(magic, MAGIC)
+          || header.get() != FORMAT_VERSION) {
+        throw badFormat(location);
+      }
+      int count = header.getInt();
+      for (int i = 0; i < count; i++) {
+        byte[] name = new byte[header.getShort() & 0xFFFF];
+        header.get(name);
+        int entries = header.getInt();
+        if (entries < HEADER_SIZE || entries > buffer.limit() - 4) {
+          throw badFormat(location);
+        }
+        directory.put(new String(name, StandardCharsets.UTF_8), entries);
+      }
+    } catch (BufferUnderflowException e) {
+      throw badFormat(location);
+    }
+    return new KeyczarStore(location, buffer, directory);
+  }
+
+  /**
+   * @return The names of the key sets in this store
+   */
+  public Set<String> getNames() {
+    return Collections.unmodifiableSet(directory.keySet());
+  }
+
+  /**
+   * Returns a reader of the named key set in this store.
+   *
+   * @param name The name of a key set in this store
+   * @return A reader of the key set
+   * @throws KeyczarException If there is no key set with this name
+   */
+  public KeyczarReader getReader(String name) throws KeyczarException {
+    return new KeyczarStoreReader(this, name);
+  }
+
+  /**
+   * @param name The name of a key set in this store
+   * @return The offset of the key set's entry table
+   * @throws KeyczarException If there is no key set with this name
+   */
+  int find(String name) throws KeyczarException {
+    Integer entries = directory.get(name);
+    if (entries == null) {
+      throw new KeyczarException(
+          Messages.getString("KeyczarStore.NoSuchKeySet", name, location));
+    }
+    return entries;
+  }
+
+  /**
+   * Decodes an entry of a key set.
+   *
+   * @param entries The offset of the key set's entry table
+   * @param version The version number of the entry, or 0 for the metadata
+   * @return The entry, or null if the key set has no such version
+   * @throws KeyczarException If the entry table is malformed
+   */
+  String read(int entries, int version) throws KeyczarException {
+    int count = buffer.getInt(entries);
+    if (count < 0 || count > (buffer.limit() - entries - 4) / ENTRY_SIZE) {
+      throw badFormat(location);
+    }
+    // Binary search of the table, which is sorted by version number
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int entry = entries + 4 + middle * ENTRY_SIZE;
+      int entryVersion = buffer.getInt(entry);
+      if (entryVersion < version) {
+        low = middle + 1;
+      } else if (entryVersion > version) {
+        high = middle - 1;
+      } else {
+        int offset = buffer.getInt(entry + 4);
+        int length = buffer.getInt(entry + 8);
+        if (offset < 0 || length < 0 || offset > buffer.limit() - length) {
+          throw badFormat(location);
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.limit(offset + length);
+        data.position(offset);
+        return StandardCharsets.UTF_8.decode(data).toString();
+      }
+    }
+    return null;
+  }
+
+  private static KeyczarException badFormat(String location) {
+    return new KeyczarException(
+        Messages.getString("KeyczarStore.BadFormat", location));
+  }
+
+  /**
+   * Writes the given key sets to a store at the given location, replacing
+   * any store already there.
+   *
+   * @param location The store file
+   * @param keySets Readers of the key sets to store, by name
+   * @throws KeyczarException If a key set cannot be read or the store cannot
+   * be written
+   */
+  public static void write(String location,
+      Map<String, ? extends KeyczarReader> keySets) throws KeyczarException {
+    // Sorted, so the same key sets always produce the same file
+    TreeMap<String, List<byte[]>> entries = new TreeMap<String, List<byte[]>>();
+    TreeMap<String, List<Integer>> versions =
+      new TreeMap<String, List<Integer>>();
+    int size = HEADER_SIZE;
+    for (Map.Entry<String, ? extends KeyczarReader> keySet
+        : keySets.entrySet()) {
+      KeyczarReader reader = keySet.getValue();
+      String metadata = reader.getMetadata();
+      List<Integer> versionNumbers = new ArrayList<Integer>();
+      for (KeyVersion version : KeyMetadata.read(metadata).getVersions()) {
+        versionNumbers.add(version.getVersionNumber());
+      }
+      Collections.sort(versionNumbers);
+      versionNumbers.add(0, METADATA_VERSION);
+      List<byte[]> data = new ArrayList<byte[]>();
+      data.add(metadata.getBytes(StandardCharsets.UTF_8));
+      for (int i = 1; i < versionNumbers.size(); i++) {
+        data.add(reader.getKey(versionNumbers.get(i))
+            .getBytes(StandardCharsets.UTF_8));
+      }
+
+      byte[] name = keySet.getKey().getBytes(StandardCharsets.UTF_8);
+      if (name.length > 0xFFFF) {
+        throw new KeyczarException(
+            Messages.getString("KeyczarStore.NameTooLong", keySet.getKey()));
+      }
+      size += 2 + name.length + 4 + 4 + data.size() * ENTRY_SIZE;
+      for (byte[] entry : data) {
+        size += entry.length;
+      }
+      entries.put(keySet.getKey(), data);
+      versions.put(keySet.getKey(), versionNumbers);
+    }
+
+    ByteBuffer store = ByteBuffer.allocate(size);
+    store.put(MAGIC);
+    store.put(FORMAT_VERSION);
+    store.putInt(entries.size());
+    // The entry tables follow the directory, and the entries follow them
+    int tables = HEADER_SIZE;
+    for (String name : entries.keySet()) {
+      tables += 2 + name.getBytes(StandardCharsets.UTF_8).length + 4;
+    }
+    int offset = tables;
+    for (List<byte[]> data : entries.values()) {
+      offset += 4 + data.size() * ENTRY_SIZE;
+    }
+    int table = tables;
+    for (Map.Entry<String, List<byte[]>> keySet : entries.entrySet()) {
+      byte[] name = keySet.getKey().getBytes(StandardCharsets.UTF_8);
+      store.putShort((short) name.length);
+      store.put(name);
+      store.putInt(table);
+      List<byte[]> data = keySet.getValue();
+      List<Integer> versionNumbers = versions.get(keySet.getKey());
+      store.putInt(table, data.size());
+      for (int i = 0; i < data.size(); i++) {
+        int entry = table + 4 + i * ENTRY_SIZE;
+        store.putInt(entry, versionNumbers.get(i));
+        store.putInt(entry + 4, offset);
+        store.putInt(entry + 8, data.get(i).length);
+        System.arraycopy(data.get(i), 0, store.array(), offset,
+            data.get(i).length);
+        offset += data.get(i).length;
+      }
+      table += 4 + data.size() * ENTRY_SIZE;
+    }
+    store.clear();
+
+    Path path = Paths.get(location).toAbsolutePath();
+    Path temporary = null;
+    try {
+      temporary = Files.createTempFile(path.getParent(),
+          path.getFileName().toString(), ".tmp");
+      try (FileChannel channel = FileChannel.open(temporary,
+          StandardOpenOption.WRITE)) {
+        Util.writeFully(store, channel);
+        // The store must be on disk before it replaces the old one
+        channel.force(true);
+      }
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      if (temporary != null) {
+        try {
+          Files.deleteIfExists(temporary);
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+      }
+      throw new KeyczarException(
+          Messages.getString("KeyczarTool.UnableToWrite", location), e);
+    }
+  }
+
+  /**
+   * Reads all key sets of the store at the given location into a map that
+   * can be passed to {@link #write(String, Map)}, or returns an empty map if
+   * there is no store yet.
+   *
+   * @param location The store file
+   * @return Readers of the key sets in the store, by name
+   * @throws KeyczarException If the store exists but cannot be read
+   */
+  static Map<String, KeyczarReader> readAll(String location)
+      throws KeyczarException {
+    Map<String, KeyczarReader> keySets = new TreeMap<String, KeyczarReader>();
+    if (new File(location).exists()) {
+      KeyczarStore store = open(location);
+      for (String name : store.getNames()) {
+        keySets.put(name, store.getReader(name));
+      }
+    }
+    return keySets;
+  }
+}
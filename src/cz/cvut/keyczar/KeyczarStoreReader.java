@@ -0,0 +1,76 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import cz.cvut.keyczar.exceptions.KeyczarException;
+import cz.cvut.keyczar.i18n.Messages;
+import cz.cvut.keyczar.interfaces.KeyczarReader;
+
+/**
+ * Reads metadata and key files of a key set in a {@link KeyczarStore}. Many
+ * readers can share one opened store, which maps the store file once.
+ */
+public class KeyczarStoreReader implements KeyczarReader {
+  private final KeyczarStore store;
+  private final String name;
+  private final int entries;
+
+  /**
+   * Reads the named key set of the store at the given location.
+   *
+   * @param storeLocation The store file
+   * @param name The name of the key set in the store
+   * @throws KeyczarException If the store cannot be read or has no key set
+   * with this name
+   */
+  public KeyczarStoreReader(String storeLocation, String name)
+      throws KeyczarException {
+    this(KeyczarStore.open(storeLocation), name);
+  }
+
+  /**
+   * Reads the named key set of an opened store.
+   *
+   * @param store The store
+   * @param name The name of the key set in the store
+   * @throws KeyczarException If the store has no key set with this name
+   */
+  public KeyczarStoreReader(KeyczarStore store, String name)
+      throws KeyczarException {
+    this.store = store;
+    this.name = name;
+    entries = store.find(name);
+  }
+
+  public String getKey(int version) throws KeyczarException {
+    String key = version > 0 ? store.read(entries, version) : null;
+    if (key == null) {
+      throw new KeyczarException(
+          Messages.getString("KeyczarStoreReader.NoSuchVersion", version, name));
+    }
+    return key;
+  }
+
+  public String getMetadata() throws KeyczarException {
+    String metadata = store.read(entries, 0);
+    if (metadata == null) {
+      throw new KeyczarException(
+          Messages.getString("KeyczarStoreReader.NoSuchVersion", 0, name));
+    }
+    return metadata;
+  }
+}
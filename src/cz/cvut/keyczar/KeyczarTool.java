@@ -16,6 +16,7 @@
 
 package cz.cvut.keyczar;
 
+import cz.cvut.keyczar.enums.CipherMode;
 import cz.cvut.keyczar.enums.Command;
 import cz.cvut.keyczar.enums.Flag;
 import cz.cvut.keyczar.enums.KeyPurpose;
@@ -30,6 +31,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Command line tool for generating Keyczar key files. The following commands
@@ -41,6 +43,8 @@ import java.util.HashMap;
  *   <li>promote: promote status of a key version in existing store
  *   <li>demote: demote status of a key version in existing store
  *   <li>revoke: revoke key version in existing store (if scheduled to be)
+ *   <li>pack: add a key set to a {@link KeyczarStore} file
+ *   <li>unpack: write a key set of a {@link KeyczarStore} file as key files
  * </ul>
  *
  * @author steveweis@gmail.com (Steve Weis)
@@ -115,7 +119,8 @@ public class KeyczarTool {
             if (flagMap.containsKey(Flag.SIZE)) {
               sizeFlag = Integer.parseInt(flagMap.get(Flag.SIZE));
             }
-            addKey(locationFlag, statusFlag, crypterFlag, sizeFlag);
+            CipherMode modeFlag = CipherMode.getMode(flagMap.get(Flag.MODE));
+            addKey(locationFlag, statusFlag, crypterFlag, sizeFlag, modeFlag);
             break;
           case PUBKEY:
             publicKeys(locationFlag, flagMap.get(Flag.DESTINATION));
@@ -137,6 +142,14 @@ public class KeyczarTool {
               printUsage();
             }
             break;
+          case PACK:
+            pack(locationFlag, flagMap.get(Flag.STORE),
+                flagMap.get(Flag.NAME));
+            break;
+          case UNPACK:
+            unpack(flagMap.get(Flag.STORE), locationFlag,
+                flagMap.get(Flag.NAME));
+            break;
         }
       } catch (NumberFormatException e) {
         e.printStackTrace();
@@ -183,12 +196,13 @@ public class KeyczarTool {
             Messages.getString("KeyczarTool.UnsupportedPurpose",
                 genericKeyczar.getMetadata().getPurpose()));
     }
-    genericKeyczar.writeFile(answer, destinationFlag);
+    GenericKeyczar.writeFile(answer, destinationFlag);
   }
 
   /**
    * Adds key of given status to key set and pushes update to meta file.
    * Requires location and status flags.
+   * @param modeFlag
    * @param sizeFlag
    * @param crypterFlag
    * @param statusFlag
@@ -198,14 +212,14 @@ public class KeyczarTool {
    * key type is unsupported
    */
   private static void addKey(String locationFlag, KeyStatus statusFlag,
-      String crypterFlag, int sizeFlag) throws KeyczarException {
+      String crypterFlag, int sizeFlag, CipherMode modeFlag)
+      throws KeyczarException {
     GenericKeyczar genericKeyczar =
       createGenericKeyczar(locationFlag, crypterFlag);
     if (sizeFlag == -1) { // use default size
-      genericKeyczar.addVersion(statusFlag);
-    } else { // use given size
-      genericKeyczar.addVersion(statusFlag, sizeFlag);
+      sizeFlag = genericKeyczar.getMetadata().getType().defaultSize();
     }
+    genericKeyczar.addVersion(statusFlag, sizeFlag, modeFlag);
     if (crypterFlag != null) {
       Encrypter encrypter = new Encrypter(crypterFlag);
       updateGenericKeyczar(genericKeyczar, encrypter, locationFlag);
@@ -375,13 +389,91 @@ public class KeyczarTool {
     }
   }
 
+  /**
+   * Adds the key set at the given location to a key store, replacing any key
+   * set of the same name. Requires location and store flags.
+   * @param locationFlag The location of the key set
+   * @param storeFlag The key store file
+   * @param nameFlag The name to store the key set under, or null to use the
+   * name of its directory
+   *
+   * @throws KeyczarException if location or store flag is not set, or the
+   * key set or store cannot be read or written.
+   */
+  private static void pack(String locationFlag, String storeFlag,
+      String nameFlag) throws KeyczarException {
+    if (storeFlag == null) {
+      throw new KeyczarException(Messages.getString(
+          "KeyczarTool.MustDefineStore", Flag.STORE));
+    }
+    KeyczarReader reader;
+    if (mock != null) {
+      reader = mock;
+    } else if (locationFlag != null) {
+      reader = new KeyczarFileReader(locationFlag);
+    } else {
+      throw new KeyczarException(Messages.getString("KeyczarTool.NeedLocation",
+          Flag.LOCATION));
+    }
+    if (nameFlag == null) {
+      nameFlag = mock != null ? mock.name() : new File(locationFlag).getName();
+    }
+    Map<String, KeyczarReader> keySets = KeyczarStore.readAll(storeFlag);
+    keySets.put(nameFlag, reader);
+    KeyczarStore.write(storeFlag, keySets);
+  }
+
+  /**
+   * Writes a key set of a key store to key files at the given location.
+   * Encrypted key sets are written as they are stored. Requires store and
+   * location flags.
+   * @param storeFlag The key store file
+   * @param locationFlag The location to write the key set to
+   * @param nameFlag The name of the key set, or null if the store holds a
+   * single key set
+   *
+   * @throws KeyczarException if store or location flag is not set, or the
+   * store cannot be read or the key set written.
+   */
+  private static void unpack(String storeFlag, String locationFlag,
+      String nameFlag) throws KeyczarException {
+    if (storeFlag == null) {
+      throw new KeyczarException(Messages.getString(
+          "KeyczarTool.MustDefineStore", Flag.STORE));
+    }
+    if (locationFlag == null) {
+      throw new KeyczarException(Messages.getString("KeyczarTool.NeedLocation",
+          Flag.LOCATION));
+    }
+    KeyczarStore store = KeyczarStore.open(storeFlag);
+    if (nameFlag == null) {
+      if (store.getNames().size() != 1) {
+        throw new KeyczarException(Messages.getString(
+            "KeyczarTool.MustDefineName", storeFlag, Flag.NAME));
+      }
+      nameFlag = store.getNames().iterator().next();
+    }
+    KeyczarReader reader = store.getReader(nameFlag);
+    String metadata = reader.getMetadata();
+    for (KeyVersion version : KeyMetadata.read(metadata).getVersions()) {
+      GenericKeyczar.writeFile(reader.getKey(version.getVersionNumber()),
+          locationFlag + version.getVersionNumber());
+    }
+    GenericKeyczar.writeFile(metadata,
+        locationFlag + KeyczarFileReader.META_FILE);
+  }
+
   /**
    * Prints the usage instructions with list of commands and flags.
    */
   private static void printUsage() {
+    // The usage message numbers the commands up to usekey, then the flags.
+    // The key store commands have their own message.
     ArrayList<String> usageParams = new ArrayList<String>();
     for (Command c : Command.values()) {
-      usageParams.add(c.toString());
+      if (c.compareTo(Command.USEKEY) <= 0) {
+        usageParams.add(c.toString());
+      }
     }
 
     for (Flag f : Flag.values()) {
@@ -390,6 +482,8 @@ public class KeyczarTool {
 
     System.out.println(
         Messages.getString("KeyczarTool.Usage", usageParams.toArray()));
+    System.out.println(Messages.getString("KeyczarTool.StoreUsage",
+        Command.PACK, Command.UNPACK, Flag.LOCATION, Flag.STORE, Flag.NAME));
   }
 
   private static GenericKeyczar createGenericKeyczar(String locationFlag)
@@ -412,7 +506,7 @@ public class KeyczarTool {
     }
     if (locationFlag == null) {
       throw new KeyczarException(Messages.getString("KeyczarTool.NeedLocation",
-          Messages.getString("KeyczarTool.Location")));
+          Flag.LOCATION));
     }
     KeyczarReader reader = new KeyczarFileReader(locationFlag);
     if (crypterFlag != null) {
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks which keys belong to at least one key set that is still loaded, so
+ * stream caches can drop the streams of keys that are gone.
+ *
+ * A key set counts as loaded as long as its {@link Keyczar} object is
+ * reachable. Once it has been garbage collected, the keys it held are released
+ * the next time {@link #isLoaded(KeyczarKey)} is called. Keys are compared by
+ * their hash identifiers, so the same key read into several key sets stays
+ * loaded until all of them are gone.
+ */
+final class LoadedKeys {
+  // Number of loaded key sets holding each key, guarded by the class lock
+  private static final Map<KeyczarKey, Integer> COUNTS =
+    new HashMap<KeyczarKey, Integer>();
+  private static final ReferenceQueue<Keyczar> COLLECTED =
+    new ReferenceQueue<Keyczar>();
+  // Keeps the references themselves reachable until they are enqueued
+  private static final Set<KeySet> KEY_SETS = new HashSet<KeySet>();
+
+  private LoadedKeys() {
+    // Don't new me.
+  }
+
+  /**
+   * Starts tracking the keys of the given key set.
+   *
+   * @param keyczar A newly created key set
+   * @return The handle to add the key set's keys to
+   */
+  static synchronized KeySet track(Keyczar keyczar) {
+    releaseCollected();
+    KeySet keySet = new KeySet(keyczar);
+    KEY_SETS.add(keySet);
+    return keySet;
+  }
+
+  /**
+   * @param key A key
+   * @return Whether the key belongs to any key set that is still loaded
+   */
+  static synchronized boolean isLoaded(KeyczarKey key) {
+    releaseCollected();
+    return COUNTS.containsKey(key);
+  }
+
+  private static void releaseCollected() {
+    Reference<? extends Keyczar> collected;
+    while ((collected = COLLECTED.poll()) != null) {
+      KeySet keySet = (KeySet) collected;
+      KEY_SETS.remove(keySet);
+      for (KeyczarKey key : keySet.keys) {
+        int count = COUNTS.get(key);
+        if (count == 1) {
+          COUNTS.remove(key);
+        } else {
+          COUNTS.put(key, count - 1);
+        }
+      }
+    }
+  }
+
+  /**
+   * The keys of a single key set, released once the key set is collected.
+   */
+  static final class KeySet extends PhantomReference<Keyczar> {
+    private final List<KeyczarKey> keys = new ArrayList<KeyczarKey>();
+
+    private KeySet(Keyczar keyczar) {
+      super(keyczar, COLLECTED);
+    }
+
+    void add(KeyczarKey key) {
+      synchronized (LoadedKeys.class) {
+        keys.add(key);
+        Integer count = COUNTS.get(key);
+        COUNTS.put(key, count == null ? 1 : count + 1);
+      }
+    }
+  }
+}
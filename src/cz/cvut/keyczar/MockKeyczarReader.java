@@ -1,13 +1,13 @@
 package cz.cvut.keyczar;
 
 
+import cz.cvut.keyczar.enums.CipherMode;
 import cz.cvut.keyczar.enums.KeyPurpose;
 import cz.cvut.keyczar.enums.KeyStatus;
 import cz.cvut.keyczar.enums.KeyType;
 import cz.cvut.keyczar.exceptions.BadVersionException;
 import cz.cvut.keyczar.exceptions.KeyczarException;
 import cz.cvut.keyczar.interfaces.KeyczarReader;
-import cz.cvut.keyczar.util.Util;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -39,7 +39,7 @@ public class MockKeyczarReader implements KeyczarReader {
   }
 
   public String getMetadata() {
-    return Util.gson().toJson(kmd);
+    return kmd.toString();
   }
 
   public void setMetadata(KeyMetadata newKmd) {
@@ -88,6 +88,13 @@ public class MockKeyczarReader implements KeyczarReader {
     return kmd.addVersion(new KeyVersion(versionNumber, status, false));
   }
 
+  public boolean addKey(int versionNumber, KeyStatus status, int size,
+      CipherMode mode) throws KeyczarException {
+    KeyczarKey key = KeyczarKey.genKey(kmd.getType(), size, mode);
+    keys.put(versionNumber, key);
+    return kmd.addVersion(new KeyVersion(versionNumber, status, false));
+  }
+
   public KeyStatus getStatus(int versionNumber) {
     return kmd.getVersion(versionNumber).getStatus();
   }
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.cvut.keyczar;
+
+import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.enums.Operation;
+import cz.cvut.keyczar.interfaces.MetricsSink;
+
+/**
+ * The default metrics sink, which discards everything. While it is in use
+ * operations are not even timed.
+ */
+public final class NoOpMetricsSink implements MetricsSink {
+  public static final NoOpMetricsSink INSTANCE = new NoOpMetricsSink();
+
+  private NoOpMetricsSink() {
+    // Use INSTANCE
+  }
+
+  public void record(Operation operation, KeyType type, int version,
+      long bytes, long nanos) {
+    // Do nothing
+  }
+}
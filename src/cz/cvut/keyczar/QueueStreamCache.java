@@ -0,0 +1,200 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.cvut.keyczar;
+
+import cz.cvut.keyczar.interfaces.Stream;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stream cache sharing streams between all threads through a lock-free queue
+ * per key.
+ *
+ * The cache is bounded in three ways. Each key keeps at most a fixed number of
+ * streams and streams returned beyond that are dropped. When a stream for a
+ * new key is returned while the maximum number of keys is cached, the queue of
+ * the least recently used key is dropped. Finally, the cache is swept
+ * periodically and drops the queues of keys that have been idle too long or
+ * no longer belong to any loaded key set, so rotated and revoked keys do not
+ * pin their Cipher and Mac instances.
+ *
+ * The defaults can be changed with the system properties
+ * keyczar.streamcache.maxStreamsPerKey, keyczar.streamcache.maxKeys and
+ * keyczar.streamcache.idleTimeoutMillis.
+ */
+class QueueStreamCache<T extends Stream> extends StreamCache<T> {
+  static final int DEFAULT_MAX_STREAMS_PER_KEY =
+    Integer.getInteger("keyczar.streamcache.maxStreamsPerKey", 64);
+  static final int DEFAULT_MAX_KEYS =
+    Integer.getInteger("keyczar.streamcache.maxKeys", 1024);
+  static final long DEFAULT_IDLE_TIMEOUT_MILLIS =
+    Long.getLong("keyczar.streamcache.idleTimeoutMillis",
+        TimeUnit.MINUTES.toMillis(10));
+  private static final long MAX_SWEEP_INTERVAL_NANOS =
+    TimeUnit.SECONDS.toNanos(1);
+
+  private final ConcurrentHashMap<KeyczarKey, Entry<T>> cacheMap =
+    new ConcurrentHashMap<KeyczarKey, Entry<T>>();
+  private final int maxStreamsPerKey;
+  private final int maxKeys;
+  private final long idleTimeoutNanos;
+  private final long sweepIntervalNanos;
+  private final AtomicLong nextSweep;
+
+  QueueStreamCache() {
+    this(DEFAULT_MAX_STREAMS_PER_KEY, DEFAULT_MAX_KEYS,
+        DEFAULT_IDLE_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param maxStreamsPerKey Maximum number of streams cached for each key
+   * @param maxKeys Maximum number of keys to cache streams for
+   * @param idleTimeoutMillis Time after which the streams of an unused key
+   * are dropped
+   */
+  QueueStreamCache(int maxStreamsPerKey, int maxKeys, long idleTimeoutMillis) {
+    if (maxStreamsPerKey < 1 || maxKeys < 1 || idleTimeoutMillis < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.maxStreamsPerKey = maxStreamsPerKey;
+    this.maxKeys = maxKeys;
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    this.sweepIntervalNanos =
+      Math.min(idleTimeoutNanos, MAX_SWEEP_INTERVAL_NANOS);
+    this.nextSweep = new AtomicLong(System.nanoTime() + sweepIntervalNanos);
+  }
+
+  @Override
+  void put(KeyczarKey key, T s) {
+    long now = System.nanoTime();
+    Entry<T> entry = getEntry(key);
+    entry.lastUsed = now;
+    if (entry.count.incrementAndGet() > maxStreamsPerKey) {
+      entry.count.decrementAndGet();
+      evictions.increment();
+    } else {
+      entry.queue.add(s);
+      size.increment();
+      if (entry.removed) {
+        // The entry was evicted concurrently, so don't strand the stream in it
+        discard(entry);
+      }
+    }
+    sweepIfDue(now);
+  }
+
+  @Override
+  T get(KeyczarKey key) {
+    long now = System.nanoTime();
+    Entry<T> entry = cacheMap.get(key);
+    T s = entry == null ? null : entry.queue.poll();
+    if (s == null) {
+      misses.increment();
+    } else {
+      entry.count.decrementAndGet();
+      entry.lastUsed = now;
+      size.decrement();
+      hits.increment();
+    }
+    sweepIfDue(now);
+    return s;
+  }
+
+  /**
+   * Drops the queues of keys that have been idle for too long or are no
+   * longer part of any loaded key set.
+   *
+   * @param now The current {@link System#nanoTime()}
+   */
+  void sweep(long now) {
+    for (Map.Entry<KeyczarKey, Entry<T>> e : cacheMap.entrySet()) {
+      Entry<T> entry = e.getValue();
+      if (now - entry.lastUsed > idleTimeoutNanos
+          || !LoadedKeys.isLoaded(e.getKey())) {
+        remove(e.getKey(), entry);
+      }
+    }
+  }
+
+  private void sweepIfDue(long now) {
+    long due = nextSweep.get();
+    // Only one of the threads racing past the deadline does the sweep
+    if (now - due >= 0
+        && nextSweep.compareAndSet(due, now + sweepIntervalNanos)) {
+      sweep(now);
+    }
+  }
+
+  private Entry<T> getEntry(KeyczarKey key) {
+    Entry<T> entry = cacheMap.get(key);
+    if (entry != null) {
+      return entry;
+    }
+    if (cacheMap.size() >= maxKeys) {
+      removeLeastRecentlyUsed();
+    }
+    Entry<T> freshEntry = new Entry<T>();
+    entry = cacheMap.putIfAbsent(key, freshEntry);
+    if (entry != null) {
+      // Another thread already inserted a fresh entry with this key.
+      return entry;
+    }
+    return freshEntry;
+  }
+
+  private void removeLeastRecentlyUsed() {
+    Map.Entry<KeyczarKey, Entry<T>> oldest = null;
+    for (Map.Entry<KeyczarKey, Entry<T>> e : cacheMap.entrySet()) {
+      if (oldest == null
+          || e.getValue().lastUsed - oldest.getValue().lastUsed < 0) {
+        oldest = e;
+      }
+    }
+    if (oldest != null) {
+      remove(oldest.getKey(), oldest.getValue());
+    }
+  }
+
+  private void remove(KeyczarKey key, Entry<T> entry) {
+    if (cacheMap.remove(key, entry)) {
+      entry.removed = true;
+      discard(entry);
+    }
+  }
+
+  private void discard(Entry<T> entry) {
+    while (entry.queue.poll() != null) {
+      entry.count.decrementAndGet();
+      size.decrement();
+      evictions.increment();
+    }
+  }
+
+  /**
+   * The streams cached for a single key.
+   */
+  private static class Entry<T extends Stream> {
+    private final StreamQueue<T> queue = new StreamQueue<T>();
+    // Tracked separately, because the queue's size() is linear
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile long lastUsed = System.nanoTime();
+    private volatile boolean removed = false;
+  }
+}
@@ -17,6 +17,8 @@
 package cz.cvut.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import cz.cvut.keyczar.enums.KeyType;
 import cz.cvut.keyczar.exceptions.KeyczarException;
@@ -26,8 +28,8 @@ import cz.cvut.keyczar.interfaces.SigningStream;
 import cz.cvut.keyczar.interfaces.Stream;
 import cz.cvut.keyczar.interfaces.VerifyingStream;
 import cz.cvut.keyczar.util.Base64Coder;
-import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
@@ -87,11 +89,46 @@ class RsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
   }
 
   static RsaPrivateKey read(String input) throws KeyczarException {
-    RsaPrivateKey key = Util.gson().fromJson(input, RsaPrivateKey.class);
+    RsaPrivateKey key = KeyczarJson.fromJson(input, new RsaPrivateKey());
     key.init();
     return key;
   }
 
+  @Override
+  public void writeFields(JsonWriter out) throws IOException {
+    out.name("publicKey");
+    KeyczarJson.write(out, publicKey);
+    out.name("privateExponent").value(privateExponent);
+    out.name("primeP").value(primeP);
+    out.name("primeQ").value(primeQ);
+    out.name("primeExponentP").value(primeExponentP);
+    out.name("primeExponentQ").value(primeExponentQ);
+    out.name("crtCoefficient").value(crtCoefficient);
+    super.writeFields(out);
+  }
+
+  @Override
+  public boolean readField(String name, JsonReader in) throws IOException {
+    if (name.equals("publicKey")) {
+      publicKey = KeyczarJson.read(in, new RsaPublicKey());
+    } else if (name.equals("privateExponent")) {
+      privateExponent = KeyczarJson.nextString(in);
+    } else if (name.equals("primeP")) {
+      primeP = KeyczarJson.nextString(in);
+    } else if (name.equals("primeQ")) {
+      primeQ = KeyczarJson.nextString(in);
+    } else if (name.equals("primeExponentP")) {
+      primeExponentP = KeyczarJson.nextString(in);
+    } else if (name.equals("primeExponentQ")) {
+      primeExponentQ = KeyczarJson.nextString(in);
+    } else if (name.equals("crtCoefficient")) {
+      crtCoefficient = KeyczarJson.nextString(in);
+    } else {
+      return super.readField(name, in);
+    }
+    return true;
+  }
+
   static RsaPrivateKey generate() throws KeyczarException {
     return generate(KeyType.RSA_PRIV.defaultSize());
   }
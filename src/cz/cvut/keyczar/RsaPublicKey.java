@@ -18,6 +18,8 @@ package cz.cvut.keyczar;
 
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import cz.cvut.keyczar.enums.KeyType;
 import cz.cvut.keyczar.exceptions.KeyczarException;
@@ -29,6 +31,7 @@ import cz.cvut.keyczar.interfaces.VerifyingStream;
 import cz.cvut.keyczar.util.Base64Coder;
 import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
@@ -102,7 +105,7 @@ class RsaPublicKey extends KeyczarPublicKey {
   }
 
   static RsaPublicKey read(String input) throws KeyczarException {
-    RsaPublicKey key = Util.gson().fromJson(input, RsaPublicKey.class);
+    RsaPublicKey key = KeyczarJson.fromJson(input, new RsaPublicKey());
     if (key.getType() != KeyType.RSA_PUB) {
       throw new UnsupportedTypeException(key.getType());
     }
@@ -110,6 +113,25 @@ class RsaPublicKey extends KeyczarPublicKey {
     return key;
   }
 
+  @Override
+  public void writeFields(JsonWriter out) throws IOException {
+    out.name("modulus").value(modulus);
+    out.name("publicExponent").value(publicExponent);
+    super.writeFields(out);
+  }
+
+  @Override
+  public boolean readField(String name, JsonReader in) throws IOException {
+    if (name.equals("modulus")) {
+      modulus = KeyczarJson.nextString(in);
+    } else if (name.equals("publicExponent")) {
+      publicExponent = KeyczarJson.nextString(in);
+    } else {
+      return super.readField(name, in);
+    }
+    return true;
+  }
+
   private class RsaStream implements VerifyingStream, EncryptingStream {
     private Cipher cipher;
     private Signature signature;
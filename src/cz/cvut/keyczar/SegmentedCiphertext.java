@@ -0,0 +1,329 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import cz.cvut.keyczar.enums.CipherMode;
+import cz.cvut.keyczar.exceptions.InvalidSignatureException;
+import cz.cvut.keyczar.exceptions.KeyczarException;
+import cz.cvut.keyczar.exceptions.ShortCiphertextException;
+import cz.cvut.keyczar.util.Util;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Ciphertext format splitting large plaintexts into independently encrypted
+ * and authenticated segments, so they can be processed on all cores. The
+ * format is distinguished from the single-pass one by its version byte:
+ * <pre>
+ *   header | segments
+ *   header = version (1) | key hash (4) | salt (16) | segment size (4)
+ *   segment = AES-GCM(plaintext segment) | 16 byte tag
+ * </pre>
+ * Every ciphertext is encrypted under its own key, derived from the AES key
+ * and the random salt. The nonce of a segment holds its index and a flag
+ * marking the last segment, so segments cannot be reordered, and a
+ * ciphertext cut off at a segment boundary fails to verify. The whole header
+ * is authenticated as additional data of every segment.
+ *
+ * All segments but the last hold exactly segment size bytes of plaintext.
+ * Empty plaintexts are encrypted as a single empty segment.
+ */
+final class SegmentedCiphertext {
+  static final byte FORMAT_VERSION = 1;
+  static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+  static final int SALT_SIZE = 16;
+  static final int HEADER_SIZE = Keyczar.HEADER_SIZE + SALT_SIZE + 4;
+  static final String GCM_MODE = CipherMode.GCM.getMode();
+  static final int TAG_SIZE = CipherMode.GCM_TAG_SIZE;
+
+  // Each task handles at least this many bytes, so a Cipher is created for a
+  // reasonable amount of work even when segments are small
+  private static final int TASK_SIZE = 1 << 20;
+
+  private SegmentedCiphertext() {
+    // Don't new me.
+  }
+
+  /**
+   * @param plaintextLength The length of a plaintext
+   * @param segmentSize The number of plaintext bytes per segment
+   * @return The length of its segmented ciphertext
+   */
+  static long ciphertextSize(long plaintextLength, int segmentSize) {
+    return HEADER_SIZE + plaintextLength
+        + segmentCount(plaintextLength, segmentSize) * TAG_SIZE;
+  }
+
+  private static long segmentCount(long plaintextLength, int segmentSize) {
+    return Math.max(1, (plaintextLength + segmentSize - 1) / segmentSize);
+  }
+
+  /**
+   * Encrypts the given plaintext into segments of the given size. Segments
+   * are encrypted in parallel on the given pool.
+   *
+   * @param key The key to encrypt with
+   * @param plaintext The plaintext
+   * @param segmentSize The number of plaintext bytes per segment
+   * @param pool The pool to encrypt the segments on
+   * @return The segmented ciphertext
+   * @throws KeyczarException If a JCE error occurs
+   */
+  static byte[] encrypt(AesKey key, byte[] plaintext, int segmentSize,
+      ForkJoinPool pool) throws KeyczarException {
+    if (segmentSize <= 0) {
+      throw new IllegalArgumentException();
+    }
+    long size = ciphertextSize(plaintext.length, segmentSize);
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException();
+    }
+    byte[] ciphertext = new byte[(int) size];
+    ciphertext[0] = FORMAT_VERSION;
+    System.arraycopy(key.hash(), 0, ciphertext, 1, Keyczar.KEY_HASH_SIZE);
+    byte[] salt = Util.rand(SALT_SIZE);
+    System.arraycopy(salt, 0, ciphertext, Keyczar.HEADER_SIZE, SALT_SIZE);
+    Util.writeInt(segmentSize, ciphertext, Keyczar.HEADER_SIZE + SALT_SIZE);
+
+    Segments segments = new Segments(Cipher.ENCRYPT_MODE,
+        segmentKey(key, ciphertext), ciphertext, plaintext, plaintext.length,
+        segmentSize);
+    segments.run(pool);
+    return ciphertext;
+  }
+
+  /**
+   * @param header The header of a segmented ciphertext
+   * @return The number of plaintext bytes per segment
+   * @throws KeyczarException If the header is too short or holds an invalid
+   * segment size
+   */
+  static int segmentSize(byte[] header) throws KeyczarException {
+    if (header.length < HEADER_SIZE) {
+      throw new ShortCiphertextException(header.length);
+    }
+    int segmentSize = Util.readInt(header, Keyczar.HEADER_SIZE + SALT_SIZE);
+    if (segmentSize <= 0) {
+      throw new InvalidSignatureException();
+    }
+    return segmentSize;
+  }
+
+  /**
+   * @param ciphertextLength The length of a segmented ciphertext
+   * @param segmentSize The number of plaintext bytes per segment
+   * @return The length of the plaintext it encrypts
+   * @throws KeyczarException If no plaintext encrypts to this length
+   */
+  static long plaintextSize(long ciphertextLength, int segmentSize)
+      throws KeyczarException {
+    if (ciphertextLength < HEADER_SIZE + TAG_SIZE) {
+      throw new ShortCiphertextException((int) Math.min(ciphertextLength,
+          Integer.MAX_VALUE));
+    }
+    long body = ciphertextLength - HEADER_SIZE;
+    long segmentCount = (body + segmentSize + TAG_SIZE - 1)
+        / ((long) segmentSize + TAG_SIZE);
+    long plaintextLength = body - segmentCount * TAG_SIZE;
+    if (plaintextLength < 0
+        || segmentCount(plaintextLength, segmentSize) != segmentCount) {
+      // The last segment holds a partial tag
+      throw new InvalidSignatureException();
+    }
+    return plaintextLength;
+  }
+
+  /**
+   * @param key The key identified by the ciphertext's header
+   * @param header The header of a segmented ciphertext
+   * @return The key its segments are encrypted with
+   * @throws KeyczarException If the key cannot be derived
+   */
+  static Key segmentKey(AesKey key, byte[] header) throws KeyczarException {
+    byte[] salt = new byte[SALT_SIZE];
+    System.arraycopy(header, Keyczar.HEADER_SIZE, salt, 0, SALT_SIZE);
+    return key.deriveKey(salt);
+  }
+
+  /**
+   * Initializes a GCM Cipher for a single segment.
+   *
+   * @param cipher An AES-GCM Cipher
+   * @param opmode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+   * @param segmentKey The key returned by {@link #segmentKey(AesKey, byte[])}
+   * @param header The header of the ciphertext
+   * @param index The index of the segment
+   * @param last Whether this is the last segment of the ciphertext
+   * @throws GeneralSecurityException If the Cipher cannot be initialized
+   */
+  static void initSegment(Cipher cipher, int opmode, Key segmentKey,
+      byte[] header, int index, boolean last)
+      throws GeneralSecurityException {
+    byte[] nonce = new byte[CipherMode.GCM_NONCE_SIZE];
+    Util.writeInt(index, nonce, nonce.length - 5);
+    nonce[nonce.length - 1] = (byte) (last ? 1 : 0);
+    cipher.init(opmode, segmentKey, new GCMParameterSpec(8 * TAG_SIZE, nonce));
+    cipher.updateAAD(header, 0, HEADER_SIZE);
+  }
+
+  /**
+   * Verifies and decrypts a segmented ciphertext. Segments are decrypted in
+   * parallel on the given pool, and no plaintext is returned unless all of
+   * them are authentic.
+   *
+   * @param key The key identified by the ciphertext's header
+   * @param ciphertext The segmented ciphertext
+   * @param pool The pool to decrypt the segments on
+   * @return The plaintext
+   * @throws KeyczarException If the ciphertext is malformed or does not
+   * verify, or a JCE error occurs
+   */
+  static byte[] decrypt(AesKey key, byte[] ciphertext, ForkJoinPool pool)
+      throws KeyczarException {
+    int segmentSize = segmentSize(ciphertext);
+    long plaintextLength = plaintextSize(ciphertext.length, segmentSize);
+    byte[] plaintext = new byte[(int) plaintextLength];
+    Segments segments = new Segments(Cipher.DECRYPT_MODE,
+        segmentKey(key, ciphertext), ciphertext, plaintext, plaintext.length,
+        segmentSize);
+    segments.run(pool);
+    return plaintext;
+  }
+
+  /**
+   * The segments of a single ciphertext and the plaintext they encrypt.
+   */
+  private static class Segments {
+    private final int opmode;
+    private final Key segmentKey;
+    private final byte[] ciphertext;
+    private final byte[] plaintext;
+    private final int plaintextLength;
+    private final int segmentSize;
+    private final int segmentCount;
+
+    Segments(int opmode, Key segmentKey, byte[] ciphertext, byte[] plaintext,
+        int plaintextLength, int segmentSize) {
+      this.opmode = opmode;
+      this.segmentKey = segmentKey;
+      this.ciphertext = ciphertext;
+      this.plaintext = plaintext;
+      this.plaintextLength = plaintextLength;
+      this.segmentSize = segmentSize;
+      this.segmentCount = (int) segmentCount(plaintextLength, segmentSize);
+    }
+
+    void run(ForkJoinPool pool) throws KeyczarException {
+      int segmentsPerTask = Math.max(1, TASK_SIZE / segmentSize);
+      if (segmentCount <= segmentsPerTask) {
+        // Not worth handing to the pool
+        process(0, segmentCount);
+        return;
+      }
+      try {
+        pool.invoke(new SegmentTask(this, 0, segmentCount, segmentsPerTask));
+      } catch (SegmentException e) {
+        // The pool may rethrow a copy made on another thread
+        Throwable cause = e;
+        while (!(cause instanceof KeyczarException)) {
+          cause = cause.getCause();
+        }
+        throw (KeyczarException) cause;
+      }
+    }
+
+    /**
+     * Encrypts or decrypts the segments from the first up to the last one,
+     * exclusive.
+     */
+    void process(int first, int last) throws KeyczarException {
+      try {
+        Cipher cipher = Cipher.getInstance(GCM_MODE);
+        for (int i = first; i < last; i++) {
+          int plaintextOffset = (int) ((long) i * segmentSize);
+          int ciphertextOffset = plaintextOffset + HEADER_SIZE + i * TAG_SIZE;
+          int length = Math.min(segmentSize, plaintextLength - plaintextOffset);
+          initSegment(cipher, opmode, segmentKey, ciphertext, i,
+              i == segmentCount - 1);
+          if (opmode == Cipher.ENCRYPT_MODE) {
+            cipher.doFinal(plaintext, plaintextOffset, length, ciphertext,
+                ciphertextOffset);
+          } else {
+            cipher.doFinal(ciphertext, ciphertextOffset, length + TAG_SIZE,
+                plaintext, plaintextOffset);
+          }
+        }
+      } catch (AEADBadTagException e) {
+        throw new InvalidSignatureException();
+      } catch (GeneralSecurityException e) {
+        throw new KeyczarException(e);
+      }
+    }
+  }
+
+  /**
+   * Splits a range of segments in halves until each part is small enough to
+   * be processed by a single worker.
+   */
+  private static class SegmentTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Segments segments;
+    private final int first;
+    private final int last;
+    private final int segmentsPerTask;
+
+    SegmentTask(Segments segments, int first, int last, int segmentsPerTask) {
+      this.segments = segments;
+      this.first = first;
+      this.last = last;
+      this.segmentsPerTask = segmentsPerTask;
+    }
+
+    @Override
+    protected void compute() {
+      if (last - first <= segmentsPerTask) {
+        try {
+          segments.process(first, last);
+        } catch (KeyczarException e) {
+          throw new SegmentException(e);
+        }
+        return;
+      }
+      int middle = (first + last) >>> 1;
+      invokeAll(new SegmentTask(segments, first, middle, segmentsPerTask),
+          new SegmentTask(segments, middle, last, segmentsPerTask));
+    }
+  }
+
+  /**
+   * Carries a KeyczarException out of a ForkJoinTask.
+   */
+  private static class SegmentException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    SegmentException(Throwable cause) {
+      super(cause);
+    }
+  }
+}
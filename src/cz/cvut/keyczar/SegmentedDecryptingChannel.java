@@ -0,0 +1,220 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import cz.cvut.keyczar.exceptions.InvalidSignatureException;
+import cz.cvut.keyczar.exceptions.KeyczarException;
+import cz.cvut.keyczar.i18n.Messages;
+import cz.cvut.keyczar.util.Util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+
+/**
+ * Read-only channel over the plaintext of a segmented ciphertext, as produced
+ * by {@link Encrypter#encryptSegmented(byte[], int)}. Reading from a position
+ * reads, verifies and decrypts only the segments holding the requested bytes,
+ * so a range of a large ciphertext can be served without processing the rest
+ * of it.
+ *
+ * The last segment is verified when the channel is opened, which confirms the
+ * plaintext size. Every other segment is verified before any of its plaintext
+ * is returned. A segment that does not verify fails the read with an
+ * IOException caused by an {@link InvalidSignatureException}; segments that
+ * were already returned remain authentic.
+ *
+ * The most recently decrypted segment is kept, so sequential reads decrypt
+ * every segment once. Like other channels with a position, this channel is
+ * not safe for use by several threads at once. Closing it closes the
+ * underlying ciphertext channel.
+ */
+public class SegmentedDecryptingChannel implements SeekableByteChannel {
+  private final SeekableByteChannel ciphertext;
+  private final byte[] header;
+  private final Key segmentKey;
+  private final Cipher cipher;
+  private final int segmentSize;
+  private final long size;
+  private final int lastSegment;
+  private final ByteBuffer ciphertextSegment;
+  private final ByteBuffer plaintextSegment;
+  // Index of the segment held in plaintextSegment, or -1 if there is none
+  private int currentSegment = -1;
+  private long position = 0;
+  private boolean open = true;
+
+  SegmentedDecryptingChannel(AesKey key, byte[] header,
+      SeekableByteChannel ciphertext) throws KeyczarException, IOException {
+    this.ciphertext = ciphertext;
+    this.header = header;
+    segmentKey = SegmentedCiphertext.segmentKey(key, header);
+    segmentSize = SegmentedCiphertext.segmentSize(header);
+    size = SegmentedCiphertext.plaintextSize(ciphertext.size(), segmentSize);
+    lastSegment = size == 0 ? 0 : (int) ((size - 1) / segmentSize);
+    try {
+      cipher = Cipher.getInstance(SegmentedCiphertext.GCM_MODE);
+    } catch (GeneralSecurityException e) {
+      throw new KeyczarException(e);
+    }
+    // Small ciphertexts don't need buffers for a whole segment
+    int bufferSize = (int) Math.min(segmentSize, size);
+    ciphertextSegment =
+      ByteBuffer.allocate(bufferSize + SegmentedCiphertext.TAG_SIZE);
+    plaintextSegment = ByteBuffer.allocate(bufferSize);
+    loadSegment(lastSegment);
+  }
+
+  /**
+   * Reads plaintext from the current position into the given buffer, and
+   * advances the position by the number of bytes read.
+   *
+   * @param dst The buffer to read plaintext into
+   * @return The number of bytes read, or -1 if the position is at or beyond
+   * the end of the plaintext
+   * @throws IOException If the ciphertext cannot be read, or a segment does
+   * not verify
+   */
+  public int read(ByteBuffer dst) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    if (position >= size) {
+      return -1;
+    }
+    int total = 0;
+    while (dst.hasRemaining() && position < size) {
+      int index = (int) (position / segmentSize);
+      try {
+        loadSegment(index);
+      } catch (KeyczarException e) {
+        throw new IOException(
+            Messages.getString("Keyczar.SegmentError", index), e);
+      }
+      ByteBuffer plaintext = plaintextSegment.duplicate();
+      plaintext.position((int) (position - (long) index * segmentSize));
+      if (plaintext.remaining() > dst.remaining()) {
+        plaintext.limit(plaintext.position() + dst.remaining());
+      }
+      int length = plaintext.remaining();
+      dst.put(plaintext);
+      position += length;
+      total += length;
+    }
+    return total;
+  }
+
+  private void loadSegment(int index) throws KeyczarException, IOException {
+    if (index == currentSegment) {
+      return;
+    }
+    // Forget the old segment in case this one does not verify
+    currentSegment = -1;
+    long plaintextOffset = (long) index * segmentSize;
+    int length = (int) Math.min(segmentSize, size - plaintextOffset);
+    ciphertextSegment.clear();
+    ciphertextSegment.limit(length + SegmentedCiphertext.TAG_SIZE);
+    ciphertext.position(SegmentedCiphertext.HEADER_SIZE + plaintextOffset
+        + (long) index * SegmentedCiphertext.TAG_SIZE);
+    if (!Util.readFully(ciphertext, ciphertextSegment)) {
+      // The ciphertext shrank after it was opened
+      throw new InvalidSignatureException();
+    }
+    ciphertextSegment.flip();
+    plaintextSegment.clear();
+    try {
+      SegmentedCiphertext.initSegment(cipher, Cipher.DECRYPT_MODE, segmentKey,
+          header, index, index == lastSegment);
+      cipher.doFinal(ciphertextSegment, plaintextSegment);
+    } catch (AEADBadTagException e) {
+      throw new InvalidSignatureException();
+    } catch (GeneralSecurityException e) {
+      throw new KeyczarException(e);
+    }
+    plaintextSegment.flip();
+    currentSegment = index;
+  }
+
+  /**
+   * @throws NonWritableChannelException Always, since the channel is read-only
+   */
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  /**
+   * @return The position in the plaintext the next read starts at
+   */
+  public long position() throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    return position;
+  }
+
+  /**
+   * Sets the position in the plaintext the next read starts at. Nothing is
+   * read or decrypted until then.
+   *
+   * @param newPosition The new position, which may be beyond the end of the
+   * plaintext
+   * @return This channel
+   */
+  public SeekableByteChannel position(long newPosition) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    if (newPosition < 0) {
+      throw new IllegalArgumentException();
+    }
+    position = newPosition;
+    return this;
+  }
+
+  /**
+   * @return The length of the plaintext
+   */
+  public long size() throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    return size;
+  }
+
+  /**
+   * @throws NonWritableChannelException Always, since the channel is read-only
+   */
+  public SeekableByteChannel truncate(long newSize) {
+    throw new NonWritableChannelException();
+  }
+
+  public boolean isOpen() {
+    return open;
+  }
+
+  public void close() throws IOException {
+    open = false;
+    ciphertext.close();
+  }
+}
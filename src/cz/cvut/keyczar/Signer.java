@@ -16,8 +16,9 @@
 
 package cz.cvut.keyczar;
 
-import org.apache.log4j.Logger;
 import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.Operation;
+import cz.cvut.keyczar.enums.StreamPoolStrategy;
 import cz.cvut.keyczar.exceptions.KeyczarException;
 import cz.cvut.keyczar.exceptions.NoPrimaryKeyException;
 import cz.cvut.keyczar.exceptions.ShortBufferException;
@@ -27,7 +28,13 @@ import cz.cvut.keyczar.interfaces.SigningStream;
 import cz.cvut.keyczar.util.Base64Coder;
 import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Signers may both sign and verify data using sets of symmetric or private
@@ -41,9 +48,10 @@ import java.nio.ByteBuffer;
  */
 public class Signer extends Verifier {
   static final int TIMESTAMP_SIZE = 8;
-  private static final Logger SIGNER_LOGGER = Logger.getLogger(Signer.class);
-  private final StreamQueue<SigningStream> SIGN_QUEUE =
-    new StreamQueue<SigningStream>();
+  // Signers of a registered key set share its pool by default
+  private StreamCache<SigningStream> signCache = sharedKeySet != null
+      ? sharedKeySet.signCache : StreamCache.<SigningStream>create(
+          StreamPoolStrategy.QUEUE);
 
   /**
    * Initialize a new Signer with a KeyczarReader. The corresponding key set
@@ -82,7 +90,34 @@ public class Signer extends Verifier {
     if (signingKey == null) {
       throw new NoPrimaryKeyException();
     }
-    return HEADER_SIZE + ((SigningStream) signingKey.getStream()).digestSize();
+    SigningStream stream = signCache.get(signingKey);
+    if (stream == null) {
+      stream = (SigningStream) signingKey.getStream();
+    }
+    int digestSize = HEADER_SIZE + stream.digestSize();
+    signCache.put(signingKey, stream);
+    return digestSize;
+  }
+
+  /**
+   * Selects how this Signer pools the streams it signs and verifies with.
+   * This should be called before the Signer is shared between threads.
+   *
+   * @param strategy The stream pooling strategy
+   */
+  @Override
+  public void setStreamPool(StreamPoolStrategy strategy) {
+    super.setStreamPool(strategy);
+    signCache = StreamCache.create(strategy);
+  }
+
+  /**
+   * Returns the counters of the cache holding this Signer's signing streams.
+   *
+   * @return A snapshot of the signing stream cache counters
+   */
+  public StreamCacheStats getSignCacheStats() {
+    return signCache.stats();
   }
 
   /**
@@ -127,17 +162,18 @@ public class Signer extends Verifier {
    */
   void sign(ByteBuffer input, ByteBuffer hidden, long expirationTime,
       ByteBuffer output) throws KeyczarException {
-    SIGNER_LOGGER.info(Messages.getString("Signer.Signing", input.remaining()));
+    long start = startTimer();
+    int length = input.remaining();
     KeyczarKey signingKey = getPrimaryKey();
     if (signingKey == null) {
       throw new NoPrimaryKeyException();
     }
-    SigningStream stream = SIGN_QUEUE.poll();
+    SigningStream stream = signCache.get(signingKey);
     if (stream == null) {
       stream = (SigningStream) signingKey.getStream();
     }
 
-    int spaceNeeded = digestSize();
+    int spaceNeeded = HEADER_SIZE + stream.digestSize();
     if (expirationTime > 0) {
       spaceNeeded += TIMESTAMP_SIZE;
     }
@@ -145,14 +181,11 @@ public class Signer extends Verifier {
       throw new ShortBufferException(output.capacity(), spaceNeeded);
     }
 
-    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
-    signingKey.copyHeader(header);
-    header.rewind();
     stream.initSign();
 
-    // Sign the header and write it to the output buffer
+    // Write the header to the output buffer
     output.mark();
-    output.put(header);
+    signingKey.copyHeader(output);
 
     if (expirationTime > 0) {
       // Write an expiration time following the header and sign it.
@@ -175,7 +208,140 @@ public class Signer extends Verifier {
     // Write the signature to the output
     stream.sign(output);
     output.limit(output.position());
-    SIGN_QUEUE.add(stream);
+    signCache.put(signingKey, stream);
+    record(Operation.SIGN, signingKey, length, start);
+  }
+
+  /**
+   * Sign the contents of the given file. The file is memory-mapped and the
+   * mapped regions are signed directly, so its contents are never copied into
+   * the heap. Files larger than 2 GB are mapped one window at a time. The
+   * signature is the same as the one {@link #sign(byte[])} returns for the
+   * file's contents.
+   *
+   * @param file The file to sign.
+   * @return A byte array representation of a signature.
+   * @throws KeyczarException If this Signer does not have a primary, a JCE
+   * exception occurs or the file cannot be read.
+   */
+  public byte[] signFile(Path file) throws KeyczarException {
+    return signFile(file, FileWindows.DEFAULT_WINDOW_SIZE);
+  }
+
+  byte[] signFile(Path file, int windowSize) throws KeyczarException {
+    long start = startTimer();
+    long length;
+    KeyczarKey signingKey = getPrimaryKey();
+    if (signingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    SigningStream stream = signCache.get(signingKey);
+    if (stream == null) {
+      stream = (SigningStream) signingKey.getStream();
+    }
+
+    ByteBuffer output = ByteBuffer.allocate(HEADER_SIZE + stream.digestSize());
+    signingKey.copyHeader(output);
+    stream.initSign();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      length = channel.size();
+      FileWindows windows = new FileWindows(channel, 0, length, windowSize);
+      while (windows.hasNext()) {
+        stream.updateSign(windows.next());
+      }
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("Keyczar.FileError", file), e);
+    }
+    // Sign the version byte
+    stream.updateSign(ByteBuffer.wrap(FORMAT_BYTES));
+    stream.sign(output);
+    signCache.put(signingKey, stream);
+    record(Operation.SIGN, signingKey, length, start);
+
+    output.flip();
+    byte[] outputBytes = new byte[output.remaining()];
+    output.get(outputBytes);
+    return outputBytes;
+  }
+
+  /**
+   * Sign each of the given inputs and return their signatures. All signatures
+   * are computed with a single signing stream.
+   *
+   * @param inputs The inputs to sign.
+   * @return The signatures, in the same order as the inputs.
+   * @throws KeyczarException If this Signer does not have a primary or a
+   * JCE exception occurs.
+   */
+  public byte[][] signAll(byte[][] inputs) throws KeyczarException {
+    List<ByteBuffer> inputBuffers = new ArrayList<ByteBuffer>(inputs.length);
+    for (byte[] input : inputs) {
+      inputBuffers.add(ByteBuffer.wrap(input));
+    }
+    ByteBuffer output = ByteBuffer.allocate(digestSize() * inputs.length);
+    int[] lengths = signBatch(inputBuffers, output);
+    output.reset();
+    byte[][] signatures = new byte[inputs.length][];
+    for (int i = 0; i < signatures.length; i++) {
+      signatures[i] = new byte[lengths[i]];
+      output.get(signatures[i]);
+    }
+    return signatures;
+  }
+
+  /**
+   * Sign each of the given inputs and write the signatures back to back to the
+   * given ByteBuffer, in the same order as the inputs. HMAC and RSA signatures
+   * all have the same length, while DSA and EC signatures may be shorter than
+   * {@link #digestSize()}, so the length of each signature is returned.
+   *
+   * A single signing stream is acquired for the whole batch, so the per call
+   * overhead of {@link #sign(ByteBuffer, ByteBuffer)} is paid only once.
+   *
+   * @param inputs The inputs to sign.
+   * @param output The ByteBuffer to write the signatures in. Must have at
+   * least {@link #digestSize()} bytes remaining per input.
+   * @return The length of each written signature.
+   * @throws KeyczarException If this Signer does not have a primary, the
+   * output buffer is too small or a JCE exception occurs.
+   */
+  public int[] signBatch(List<ByteBuffer> inputs, ByteBuffer output)
+      throws KeyczarException {
+    KeyczarKey signingKey = getPrimaryKey();
+    if (signingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    SigningStream stream = signCache.get(signingKey);
+    if (stream == null) {
+      stream = (SigningStream) signingKey.getStream();
+    }
+
+    int spaceNeeded = (HEADER_SIZE + stream.digestSize()) * inputs.size();
+    if (output.remaining() < spaceNeeded) {
+      throw new ShortBufferException(output.remaining(), spaceNeeded);
+    }
+
+    int[] lengths = new int[inputs.size()];
+    ByteBuffer formatBytes = ByteBuffer.wrap(FORMAT_BYTES);
+    output.mark();
+    int i = 0;
+    for (ByteBuffer input : inputs) {
+      long start = startTimer();
+      int length = input.remaining();
+      int offset = output.position();
+      signingKey.copyHeader(output);
+      stream.initSign();
+      stream.updateSign(input);
+      formatBytes.rewind();
+      stream.updateSign(formatBytes);
+      stream.sign(output);
+      lengths[i++] = output.position() - offset;
+      record(Operation.SIGN, signingKey, length, start);
+    }
+    output.limit(output.position());
+    signCache.put(signingKey, stream);
+    return lengths;
   }
 
   /**
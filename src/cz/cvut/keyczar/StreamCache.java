@@ -13,45 +13,68 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package cz.cvut.keyczar;
 
+import cz.cvut.keyczar.enums.StreamPoolStrategy;
 import cz.cvut.keyczar.interfaces.Stream;
 
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Caches StreamQueue objects for KeyczarKeys so they can reused.
+ * Instances come from {@link #create(StreamPoolStrategy)}, which chooses
+ * between a queue shared by all threads and a stream per thread. A stream
+ * taken with {@link #get(KeyczarKey)} is owned by the caller until it is
+ * handed back with {@link #put(KeyczarKey, Stream)}.
  *
  * @author steveweis@gmail.com (Steve Weis)
  *
  * @param <T>
  */
-class StreamCache<T extends Stream> {
-  private final ConcurrentHashMap<KeyczarKey, StreamQueue<T>> cacheMap =
-    new ConcurrentHashMap<KeyczarKey, StreamQueue<T>>();
+abstract class StreamCache<T extends Stream> {
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder evictions = new LongAdder();
+  final LongAdder size = new LongAdder();
 
-  void put(KeyczarKey key, T s) {
-    getQueue(key).add(s);
+  /**
+   * Returns a new, empty cache using the given pooling strategy.
+   *
+   * @param strategy The pooling strategy
+   * @return A new stream cache
+   */
+  static <T extends Stream> StreamCache<T> create(StreamPoolStrategy strategy) {
+    switch (strategy) {
+      case THREAD_LOCAL:
+        return new ThreadLocalStreamCache<T>();
+      default:
+        return new QueueStreamCache<T>();
+    }
   }
 
-  T get(KeyczarKey key) {
-    return getQueue(key).poll();
-  }
+  /**
+   * Returns a cached stream for the given key to the pool.
+   *
+   * @param key The key the stream belongs to
+   * @param s The stream
+   */
+  abstract void put(KeyczarKey key, T s);
 
-  StreamQueue<T> getQueue(KeyczarKey key) {
-    StreamQueue<T> queue = cacheMap.get(key);
-    if (queue != null) {
-      return queue;
-    }
-    StreamQueue<T> freshQueue = new StreamQueue<T>();
-    queue = cacheMap.putIfAbsent(key, freshQueue);
-    if (queue != null) {
-      // Another thread already inserted a fresh queue with this key.
-      return queue;
-    }
-    return freshQueue;
+  /**
+   * Takes a cached stream for the given key out of the pool.
+   *
+   * @param key The key to get a stream for
+   * @return A stream for the key, or null if none is cached
+   */
+  abstract T get(KeyczarKey key);
+
+  /**
+   * @return A snapshot of this cache's counters
+   */
+  StreamCacheStats stats() {
+    return new StreamCacheStats(hits.sum(), misses.sum(), evictions.sum(),
+        size.sum());
   }
 }
 
@@ -64,4 +87,4 @@ class StreamCache<T extends Stream> {
  */
 class StreamQueue<T extends Stream> extends ConcurrentLinkedQueue<T> {
 
-}
\ No newline at end of file
+}
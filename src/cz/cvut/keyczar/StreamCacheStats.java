@@ -0,0 +1,70 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+/**
+ * A snapshot of the counters of a stream cache, for monitoring how well
+ * streams are being reused.
+ */
+public final class StreamCacheStats {
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+  private final long size;
+
+  StreamCacheStats(long hits, long misses, long evictions, long size) {
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.size = size;
+  }
+
+  /**
+   * @return Number of operations that reused a cached stream
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return Number of operations that had to create a new stream
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return Number of streams dropped because the cache was full, their key
+   * was no longer loaded or they had been idle too long
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return Number of streams currently held by the cache
+   */
+  public long getSize() {
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+        + ", size=" + size;
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.cvut.keyczar;
+
+import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.enums.Operation;
+import cz.cvut.keyczar.interfaces.MetricsSink;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics sink keeping counters and a latency histogram for every operation,
+ * key type and key version. All counters are striped, so threads recording
+ * concurrently do not contend on a single memory location, and recording
+ * does not allocate once the first operation of a kind has been seen.
+ *
+ * Latencies are counted in power of two buckets: bucket i holds operations
+ * that took from 2^i up to 2^(i+1) - 1 nanoseconds.
+ */
+public class StripedMetricsSink implements MetricsSink {
+  private static final Operation[] OPERATIONS = Operation.values();
+  private static final KeyType[] TYPES = KeyType.values();
+
+  private final Slot[] slots = new Slot[OPERATIONS.length * TYPES.length];
+
+  public StripedMetricsSink() {
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = new Slot();
+    }
+  }
+
+  public void record(Operation operation, KeyType type, int version,
+      long bytes, long nanos) {
+    Slot slot = slot(operation, type);
+    OperationMetrics[] byVersion = slot.byVersion;
+    OperationMetrics metrics =
+      version >= 0 && version < byVersion.length ? byVersion[version] : null;
+    if (metrics == null) {
+      metrics = slot.create(version);
+    }
+    metrics.add(bytes, nanos);
+  }
+
+  /**
+   * @param operation An operation
+   * @param type A key type
+   * @param version A key version number
+   * @return The metrics recorded for the operation with the key, or null if
+   * none have been recorded
+   */
+  public OperationMetrics get(Operation operation, KeyType type, int version) {
+    OperationMetrics[] byVersion = slot(operation, type).byVersion;
+    return version >= 0 && version < byVersion.length
+        ? byVersion[version] : null;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Operation operation : OPERATIONS) {
+      for (KeyType type : TYPES) {
+        OperationMetrics[] byVersion = slot(operation, type).byVersion;
+        for (int version = 0; version < byVersion.length; version++) {
+          if (byVersion[version] != null) {
+            builder.append(operation).append(' ').append(type)
+                .append(" v").append(version).append(": ")
+                .append(byVersion[version]).append('\n');
+          }
+        }
+      }
+    }
+    return builder.toString();
+  }
+
+  private Slot slot(Operation operation, KeyType type) {
+    return slots[operation.ordinal() * TYPES.length + type.ordinal()];
+  }
+
+  /**
+   * The metrics of one operation and key type, indexed by key version.
+   */
+  private static class Slot {
+    // Replaced, never modified, when a new version is seen
+    private volatile OperationMetrics[] byVersion = new OperationMetrics[0];
+
+    private synchronized OperationMetrics create(int version) {
+      if (version < 0) {
+        throw new IllegalArgumentException();
+      }
+      OperationMetrics[] current = byVersion;
+      if (version < current.length && current[version] != null) {
+        return current[version];
+      }
+      OperationMetrics[] grown =
+        Arrays.copyOf(current, Math.max(current.length, version + 1));
+      grown[version] = new OperationMetrics();
+      byVersion = grown;
+      return grown[version];
+    }
+  }
+
+  /**
+   * Counters and latency histogram of one operation with one key.
+   */
+  public static final class OperationMetrics {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder[] buckets = new LongAdder[Long.SIZE];
+
+    private OperationMetrics() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    private void add(long length, long duration) {
+      count.increment();
+      bytes.add(length);
+      nanos.add(duration);
+      buckets[bucket(duration)].increment();
+    }
+
+    private static int bucket(long duration) {
+      return duration <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(duration);
+    }
+
+    /**
+     * @return Number of operations recorded
+     */
+    public long getCount() {
+      return count.sum();
+    }
+
+    /**
+     * @return Total length of the inputs of the recorded operations
+     */
+    public long getBytes() {
+      return bytes.sum();
+    }
+
+    /**
+     * @return Total time taken by the recorded operations, in nanoseconds
+     */
+    public long getTotalNanos() {
+      return nanos.sum();
+    }
+
+    /**
+     * @return The number of operations in each latency bucket
+     */
+    public long[] getHistogram() {
+      long[] histogram = new long[buckets.length];
+      for (int i = 0; i < histogram.length; i++) {
+        histogram[i] = buckets[i].sum();
+      }
+      return histogram;
+    }
+
+    /**
+     * Estimates a latency percentile from the histogram.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The upper bound, in nanoseconds, of the bucket holding the
+     * percentile, or 0 if nothing has been recorded
+     */
+    public long getLatencyPercentile(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException();
+      }
+      long[] histogram = getHistogram();
+      long total = 0;
+      for (long n : histogram) {
+        total += n;
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(percentile / 100 * total);
+      long seen = 0;
+      for (int i = 0; i < histogram.length; i++) {
+        seen += histogram[i];
+        if (seen >= rank && seen > 0) {
+          return i >= Long.SIZE - 2 ? Long.MAX_VALUE : (2L << i) - 1;
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+      return "count=" + getCount() + ", bytes=" + getBytes()
+          + ", totalNanos=" + getTotalNanos()
+          + ", p50=" + getLatencyPercentile(50)
+          + ", p99=" + getLatencyPercentile(99);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import cz.cvut.keyczar.interfaces.Stream;
+
+/**
+ * Stream cache keeping one warm stream per key for every thread. Gets and puts
+ * only touch the calling thread's slots, so there is no contention between
+ * threads and no allocation once a thread is warm.
+ *
+ * Each thread keeps streams for at most {@link #MAX_KEYS_PER_THREAD} keys.
+ * When a stream for another key is returned after that, it takes over the
+ * slot that was filled longest ago. The streams of a thread are released when
+ * the thread ends, or when the cache itself is no longer reachable.
+ */
+class ThreadLocalStreamCache<T extends Stream> extends StreamCache<T> {
+  static final int MAX_KEYS_PER_THREAD = 8;
+
+  private final ThreadLocal<Slots> slots = new ThreadLocal<Slots>() {
+    @Override
+    protected Slots initialValue() {
+      return new Slots();
+    }
+  };
+
+  @Override
+  @SuppressWarnings("unchecked")
+  T get(KeyczarKey key) {
+    Slots threadSlots = slots.get();
+    for (int i = 0; i < threadSlots.size; i++) {
+      if (threadSlots.keys[i] == key) {
+        Stream stream = threadSlots.streams[i];
+        // Leave the key in place, so the stream returns to the same slot
+        threadSlots.streams[i] = null;
+        if (stream == null) {
+          break;
+        }
+        size.decrement();
+        hits.increment();
+        return (T) stream;
+      }
+    }
+    misses.increment();
+    return null;
+  }
+
+  @Override
+  void put(KeyczarKey key, T s) {
+    Slots threadSlots = slots.get();
+    for (int i = 0; i < threadSlots.size; i++) {
+      if (threadSlots.keys[i] == key) {
+        // A nested operation may already have returned a stream for this key
+        if (threadSlots.streams[i] == null) {
+          threadSlots.streams[i] = s;
+          size.increment();
+        } else {
+          evictions.increment();
+        }
+        return;
+      }
+    }
+    int slot;
+    if (threadSlots.size < MAX_KEYS_PER_THREAD) {
+      slot = threadSlots.size++;
+    } else {
+      slot = threadSlots.next;
+      threadSlots.next = (threadSlots.next + 1) % MAX_KEYS_PER_THREAD;
+      if (threadSlots.streams[slot] != null) {
+        size.decrement();
+        evictions.increment();
+      }
+    }
+    threadSlots.keys[slot] = key;
+    threadSlots.streams[slot] = s;
+    size.increment();
+  }
+
+  /**
+   * The keys and streams cached by a single thread.
+   */
+  private static class Slots {
+    private final KeyczarKey[] keys = new KeyczarKey[MAX_KEYS_PER_THREAD];
+    private final Stream[] streams = new Stream[MAX_KEYS_PER_THREAD];
+    private int size = 0;
+    // Slot to replace next once all slots are taken
+    private int next = 0;
+  }
+}
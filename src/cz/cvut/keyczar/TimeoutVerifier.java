@@ -20,10 +20,8 @@ import cz.cvut.keyczar.exceptions.KeyczarException;
 import cz.cvut.keyczar.exceptions.ShortSignatureException;
 import cz.cvut.keyczar.interfaces.KeyczarReader;
 import cz.cvut.keyczar.util.Base64Coder;
-import cz.cvut.keyczar.util.Util;
 
 import java.nio.ByteBuffer;
-import java.util.Date;
 
 /**
  * TimeoutVerifiers verify timeout signatures generated by
@@ -106,7 +104,9 @@ public class TimeoutVerifier {
   }
 
   /**
-   * Verify the timeout signature on the given data
+   * Verify the timeout signature on the given data. An expired signature is
+   * rejected before any signature work is done. Otherwise the expiration time
+   * and the data are verified in place, without copying either buffer.
    *
    * @param data
    * @param timeoutSignature
@@ -120,31 +120,13 @@ public class TimeoutVerifier {
     if (timeoutSignature.remaining() < Keyczar.HEADER_SIZE + Signer.TIMESTAMP_SIZE) {
       throw new ShortSignatureException(timeoutSignature.remaining());
     }
-    byte[] header = new byte[Keyczar.HEADER_SIZE];
-    timeoutSignature.get(header);
-
-    // Get the timestamp and check that it has not expired
-    byte[] timestamp = new byte[Signer.TIMESTAMP_SIZE];
-    timeoutSignature.get(timestamp);
-    long expirationTime = Util.toLong(timestamp);
-    Date expiration = new Date(expirationTime);
-    Date now = new Date();
-    if (now.after(expiration)) {
+    // Check that the timestamp has not expired. A slice is big-endian,
+    // whatever the byte order of the signature buffer.
+    ByteBuffer timestamp = timeoutSignature.slice();
+    long expirationTime = timestamp.getLong(Keyczar.HEADER_SIZE);
+    if (System.currentTimeMillis() > expirationTime) {
       return false;
     }
-
-    ByteBuffer slicedSignature =
-      ByteBuffer.allocate(Keyczar.HEADER_SIZE + timeoutSignature.remaining());
-    slicedSignature.put(header);
-    slicedSignature.put(timeoutSignature);
-    slicedSignature.rewind();
-    // The timeout is signed in a timeout signature. Prepend it to the data and
-    // pass it to the parent implementation in Verfier
-    ByteBuffer prependedData =
-      ByteBuffer.allocate(Signer.TIMESTAMP_SIZE + data.remaining());
-    prependedData.put(timestamp);
-    prependedData.put(data);
-    prependedData.rewind();
-    return verifier.verify(prependedData, slicedSignature);
+    return verifier.verifyTimeout(data, timeoutSignature);
   }
 }
\ No newline at end of file
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+/**
+ * A snapshot of the counters of a single key of an UnversionedVerifier, for
+ * monitoring which key versions still verify signatures.
+ */
+public final class UnversionedKeyStats {
+  private final int version;
+  private final long attempts;
+  private final long hits;
+
+  UnversionedKeyStats(int version, long attempts, long hits) {
+    this.version = version;
+    this.attempts = attempts;
+    this.hits = hits;
+  }
+
+  /**
+   * @return Version number of the key
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * @return Number of signatures the key was tried on
+   */
+  public long getAttempts() {
+    return attempts;
+  }
+
+  /**
+   * @return Number of signatures the key verified
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  @Override
+  public String toString() {
+    return "version=" + version + ", attempts=" + attempts + ", hits=" + hits;
+  }
+}
@@ -16,12 +16,11 @@
 
 package cz.cvut.keyczar;
 
-import org.apache.log4j.Logger;
 import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.Operation;
 import cz.cvut.keyczar.exceptions.KeyczarException;
 import cz.cvut.keyczar.exceptions.NoPrimaryKeyException;
 import cz.cvut.keyczar.exceptions.ShortBufferException;
-import cz.cvut.keyczar.i18n.Messages;
 import cz.cvut.keyczar.interfaces.KeyczarReader;
 import cz.cvut.keyczar.interfaces.SigningStream;
 import cz.cvut.keyczar.util.Base64Coder;
@@ -44,7 +43,6 @@ import java.nio.ByteBuffer;
  */
 public class UnversionedSigner extends UnversionedVerifier {
   static final int TIMESTAMP_SIZE = 8;
-  private static final Logger SIGNER_LOGGER = Logger.getLogger(UnversionedSigner.class);
   private final StreamQueue<SigningStream> SIGN_QUEUE =
     new StreamQueue<SigningStream>();
 
@@ -116,7 +114,8 @@ public class UnversionedSigner extends UnversionedVerifier {
    * @throws KeyczarException
    */
   void sign(ByteBuffer input, ByteBuffer output) throws KeyczarException {
-    SIGNER_LOGGER.info(Messages.getString("Signer.Signing", input.remaining()));
+    long start = startTimer();
+    int length = input.remaining();
     KeyczarKey signingKey = getPrimaryKey();
     if (signingKey == null) {
       throw new NoPrimaryKeyException();
@@ -140,6 +139,7 @@ public class UnversionedSigner extends UnversionedVerifier {
     stream.sign(output);
     output.limit(output.position());
     SIGN_QUEUE.add(stream);
+    record(Operation.SIGN, signingKey, length, start);
   }
 
   /**
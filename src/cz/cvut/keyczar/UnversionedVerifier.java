@@ -16,26 +16,38 @@
 
 package cz.cvut.keyczar;
 
-import org.apache.log4j.Logger;
+import cz.cvut.keyczar.enums.KeyOrder;
 import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.enums.Operation;
+import cz.cvut.keyczar.enums.StreamPoolStrategy;
 import cz.cvut.keyczar.exceptions.KeyczarException;
-import cz.cvut.keyczar.i18n.Messages;
 import cz.cvut.keyczar.interfaces.KeyczarReader;
 import cz.cvut.keyczar.interfaces.VerifyingStream;
 import cz.cvut.keyczar.util.Base64Coder;
 
 import java.nio.ByteBuffer;
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
 * Unversioned Verifiers are used strictly to verify standard signatures
 * (i.e. HMAC-SHA1, DSA-SHA1, RSA-SHA1) with no key version information.
 * Typically, UnversionedVerifiers will read sets of public keys, although may
 * also be instantiated with sets of symmetric or private keys.
-* 
+*
 * Since UnversionedVerifiers verify standard signatures, they will try all keys
-* in a set until one verifies. 
+* in a set until one verifies. With {@link KeyOrder#MOST_RECENT_FIRST} the
+* primary key and the keys that verified most recently are tried first. Public
+* key signatures can also be tried against all keys at once, see
+* {@link #setParallelVerification(ForkJoinPool)}.
 *
 * {@link UnversionedSigner} objects should be used with symmetric or private
 * key sets to generate unversioned signatures.
@@ -44,10 +56,18 @@ import java.util.Map.Entry;
 *
 */
 public class UnversionedVerifier extends Keyczar {
-  private static final Logger VERIFIER_LOGGER =
-    Logger.getLogger(UnversionedVerifier.class);
   private static final StreamCache<VerifyingStream> VERIFY_CACHE
-    = new StreamCache<VerifyingStream>();
+    = StreamCache.create(StreamPoolStrategy.QUEUE);
+
+  // The keys in the order the key set holds them
+  private KeyState[] keySetOrder;
+  // The keys in the order they are tried. Replaced as a whole when the order
+  // changes, so verifications read it without locking.
+  private volatile KeyState[] order;
+  // Position keys move to when they verify a signature, or -1 if the order
+  // is fixed
+  private int firstRecent = -1;
+  private ForkJoinPool parallelPool = null;
 
   /**
    * Initialize a new UnversionedVerifier with a KeyczarReader.
@@ -61,6 +81,7 @@ public class UnversionedVerifier extends Keyczar {
    */
   public UnversionedVerifier(KeyczarReader reader) throws KeyczarException {
     super(reader);
+    initOrder();
   }
 
   /**
@@ -76,6 +97,93 @@ public class UnversionedVerifier extends Keyczar {
    */
   public UnversionedVerifier(String fileLocation) throws KeyczarException {
     super(fileLocation);
+    initOrder();
+  }
+
+  private void initOrder() {
+    List<KeyState> states = new ArrayList<KeyState>(versionMap.size());
+    for (KeyHandle handle : versionMap.values()) {
+      states.add(new KeyState(handle));
+    }
+    keySetOrder = states.toArray(new KeyState[states.size()]);
+    order = keySetOrder;
+  }
+
+  /**
+   * Selects the order in which keys are tried on a signature. By default they
+   * are tried in key set order. This should be called before the
+   * UnversionedVerifier is shared between threads.
+   *
+   * @param keyOrder The order to try keys in
+   */
+  public void setKeyOrder(KeyOrder keyOrder) {
+    if (keyOrder == KeyOrder.KEY_SET) {
+      firstRecent = -1;
+      order = keySetOrder;
+      return;
+    }
+    // Newest versions first, until keys have verified something
+    KeyState[] states = keySetOrder.clone();
+    Arrays.sort(states, new Comparator<KeyState>() {
+      public int compare(KeyState a, KeyState b) {
+        return Integer.compare(b.handle.version.getVersionNumber(),
+            a.handle.version.getVersionNumber());
+      }
+    });
+    firstRecent = 0;
+    for (int i = 0; i < states.length; i++) {
+      if (states[i].handle.version.equals(primaryVersion)) {
+        // The primary key stays first
+        KeyState primaryState = states[i];
+        System.arraycopy(states, 0, states, 1, i);
+        states[0] = primaryState;
+        firstRecent = 1;
+        break;
+      }
+    }
+    order = states;
+  }
+
+  /**
+   * Makes signatures of public key types, which are expensive to verify, be
+   * verified against all keys at once on the given pool. The first key in
+   * {@link #setKeyOrder(KeyOrder) key order} that verifies the signature is
+   * reported as the verifying key. HMAC signatures are always verified one
+   * key at a time. This should be called before the UnversionedVerifier is
+   * shared between threads.
+   *
+   * @param pool The pool to verify on, or null to verify one key at a time
+   */
+  public void setParallelVerification(ForkJoinPool pool) {
+    parallelPool = pool;
+  }
+
+  /**
+   * Returns the counters of the verifying stream cache shared by all
+   * UnversionedVerifiers.
+   *
+   * @return A snapshot of the verifying stream cache counters
+   */
+  public StreamCacheStats getVerifyCacheStats() {
+    return VERIFY_CACHE.stats();
+  }
+
+  /**
+   * Returns how often each key was tried and how often it verified a
+   * signature, in the order the keys are currently tried.
+   *
+   * @return A snapshot of the counters of every key
+   */
+  public List<UnversionedKeyStats> getKeyStats() {
+    KeyState[] states = order;
+    List<UnversionedKeyStats> stats =
+      new ArrayList<UnversionedKeyStats>(states.length);
+    for (KeyState state : states) {
+      stats.add(new UnversionedKeyStats(
+          state.handle.version.getVersionNumber(), state.attempts.sum(),
+          state.hits.sum()));
+    }
+    return stats;
   }
 
   /**
@@ -94,7 +202,9 @@ public class UnversionedVerifier extends Keyczar {
   /**
    * Verifies the standard signature on the data stored in the given ByteBuffer.
    * This method will try all keys until one of them verifies the signature,
-   * or else will return false.
+   * or else will return false. A key that fails with an error, as DSA keys do
+   * on signatures out of their range, does not stop the other keys from being
+   * tried. The error is only thrown if no key verifies the signature.
    *
    * @param data The data to verify the signature on
    * @param signature The signature to verify
@@ -104,29 +214,119 @@ public class UnversionedVerifier extends Keyczar {
    */
   public boolean verify(ByteBuffer data, ByteBuffer signature)
       throws KeyczarException {
-    VERIFIER_LOGGER.info(
-        Messages.getString("UnversionedVerifier.Verifying", data.remaining()));
-
-    // Try to verify the signature with each key in the set.
-    for (Iterator<Entry<KeyVersion, KeyczarKey>> iter =
-      versionMap.entrySet().iterator(); iter.hasNext(); ) {
-      KeyczarKey key = iter.next().getValue();
-      ByteBuffer dataCopy = data.duplicate();
-      ByteBuffer signatureCopy = signature.duplicate();
-      VerifyingStream stream = VERIFY_CACHE.get(key);
-      if (stream == null) {
-        stream = (VerifyingStream) key.getStream();
+    long start = startTimer();
+    int length = data.remaining();
+    KeyState[] states = order;
+    if (states.length == 0) {
+      return false;
+    }
+
+    KeyState verified = null;
+    KeyczarException failure = null;
+    if (parallelPool != null && states.length > 1
+        && kmd.getType() != KeyType.HMAC_SHA1) {
+      List<ForkJoinTask<Boolean>> tasks = submitAll(states, data, signature);
+      try {
+        for (int i = 0; i < states.length && verified == null; i++) {
+          try {
+            if (getResult(tasks.get(i))) {
+              verified = states[i];
+            }
+          } catch (KeyczarException e) {
+            failure = failure == null ? e : failure;
+          }
+        }
+      } finally {
+        // Keys after the verifying one need not finish
+        for (ForkJoinTask<Boolean> task : tasks) {
+          task.cancel(false);
+        }
       }
-      stream.initVerify();
-      stream.updateVerify(dataCopy);
-      boolean result = stream.verify(signatureCopy);
-      VERIFY_CACHE.put(key, stream);
-      if (result) {
-        return true;
+    } else {
+      // Try to verify the signature with each key in the set.
+      for (KeyState state : states) {
+        try {
+          if (state.verify(data.duplicate(), signature.duplicate())) {
+            verified = state;
+            break;
+          }
+        } catch (KeyczarException e) {
+          failure = failure == null ? e : failure;
+        }
+      }
+    }
+
+    if (verified == null) {
+      // Failures are reported against the last key tried, unless that key
+      // could not even be read
+      KeyHandle last = states[states.length - 1].handle;
+      if (last.isRead()) {
+        record(Operation.VERIFY, last.get(), length, start);
+      }
+      if (failure != null) {
+        throw failure;
       }
+      return false;
+    }
+    if (firstRecent >= 0) {
+      moveToFront(verified);
+    }
+    record(Operation.VERIFY, verified.handle.get(), length, start);
+    return true;
+  }
+
+  private List<ForkJoinTask<Boolean>> submitAll(KeyState[] states,
+      ByteBuffer data, ByteBuffer signature) {
+    List<ForkJoinTask<Boolean>> tasks =
+      new ArrayList<ForkJoinTask<Boolean>>(states.length);
+    for (final KeyState state : states) {
+      final ByteBuffer dataCopy = data.duplicate();
+      final ByteBuffer signatureCopy = signature.duplicate();
+      tasks.add(parallelPool.submit(new Callable<Boolean>() {
+        public Boolean call() throws KeyczarException {
+          return state.verify(dataCopy, signatureCopy);
+        }
+      }));
+    }
+    return tasks;
+  }
+
+  private static boolean getResult(ForkJoinTask<Boolean> task)
+      throws KeyczarException {
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof KeyczarException) {
+        throw (KeyczarException) e.getCause();
+      }
+      throw new KeyczarException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KeyczarException(e);
+    }
+  }
+
+  /**
+   * Moves a key that verified a signature to the front of the keys after the
+   * primary key.
+   */
+  private void moveToFront(KeyState state) {
+    if (order[firstRecent] == state) {
+      return;
+    }
+    synchronized (this) {
+      KeyState[] current = order;
+      int i = Arrays.asList(current).indexOf(state);
+      if (i <= firstRecent) {
+        // The primary key, or already at the front
+        return;
+      }
+      KeyState[] updated = current.clone();
+      System.arraycopy(current, firstRecent, updated, firstRecent + 1,
+          i - firstRecent);
+      updated[firstRecent] = state;
+      order = updated;
     }
-    
-    return false;
   }
 
   /**
@@ -147,4 +347,36 @@ public class UnversionedVerifier extends Keyczar {
     return (purpose == KeyPurpose.VERIFY ||
             purpose == KeyPurpose.SIGN_AND_VERIFY);
   }
-}
\ No newline at end of file
+
+  /**
+   * A key of the key set and its counters. The key is read the first time
+   * it is tried.
+   */
+  private static final class KeyState {
+    private final KeyHandle handle;
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+
+    KeyState(KeyHandle handle) {
+      this.handle = handle;
+    }
+
+    boolean verify(ByteBuffer data, ByteBuffer signature)
+        throws KeyczarException {
+      attempts.increment();
+      KeyczarKey key = handle.get();
+      VerifyingStream stream = VERIFY_CACHE.get(key);
+      if (stream == null) {
+        stream = (VerifyingStream) key.getStream();
+      }
+      stream.initVerify();
+      stream.updateVerify(data);
+      boolean result = stream.verify(signature);
+      VERIFY_CACHE.put(key, stream);
+      if (result) {
+        hits.increment();
+      }
+      return result;
+    }
+  }
+}
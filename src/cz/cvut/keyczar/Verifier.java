@@ -17,8 +17,9 @@
 package cz.cvut.keyczar;
 
 
-import org.apache.log4j.Logger;
 import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.Operation;
+import cz.cvut.keyczar.enums.StreamPoolStrategy;
 import cz.cvut.keyczar.exceptions.BadVersionException;
 import cz.cvut.keyczar.exceptions.KeyNotFoundException;
 import cz.cvut.keyczar.exceptions.KeyczarException;
@@ -27,8 +28,15 @@ import cz.cvut.keyczar.i18n.Messages;
 import cz.cvut.keyczar.interfaces.KeyczarReader;
 import cz.cvut.keyczar.interfaces.VerifyingStream;
 import cz.cvut.keyczar.util.Base64Coder;
+import cz.cvut.keyczar.util.Util;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -43,10 +51,9 @@ import java.nio.ByteBuffer;
 *
 */
 public class Verifier extends Keyczar {
-  private static final Logger VERIFIER_LOGGER =
-    Logger.getLogger(Verifier.class);
   private static final StreamCache<VerifyingStream> VERIFY_CACHE
-    = new StreamCache<VerifyingStream>();
+    = StreamCache.create(StreamPoolStrategy.QUEUE);
+  private StreamCache<VerifyingStream> verifyCache = VERIFY_CACHE;
 
   /**
    * Initialize a new Verifier with a KeyczarReader. The corresponding key set
@@ -76,6 +83,29 @@ public class Verifier extends Keyczar {
     super(fileLocation);
   }
 
+  /**
+   * Selects how this Verifier pools the streams it verifies with. By default
+   * streams are pooled in queues shared by all Verifiers. This should be
+   * called before the Verifier is shared between threads.
+   *
+   * @param strategy The stream pooling strategy
+   */
+  public void setStreamPool(StreamPoolStrategy strategy) {
+    verifyCache = strategy == StreamPoolStrategy.QUEUE
+        ? VERIFY_CACHE : StreamCache.<VerifyingStream>create(strategy);
+  }
+
+  /**
+   * Returns the counters of the cache holding this Verifier's verifying
+   * streams. Unless another pool was selected, the cache is shared by all
+   * Verifiers.
+   *
+   * @return A snapshot of the verifying stream cache counters
+   */
+  public StreamCacheStats getVerifyCacheStats() {
+    return verifyCache.stats();
+  }
+
   /**
    * Verifies a signature on the given byte array of data
    *
@@ -100,8 +130,189 @@ public class Verifier extends Keyczar {
    */
   public boolean verify(ByteBuffer data, ByteBuffer signature)
       throws KeyczarException {
-    VERIFIER_LOGGER.info(
-        Messages.getString("Verifier.Verifying", data.remaining()));
+    long start = startTimer();
+    int length = data.remaining();
+    KeyczarKey key = readHeader(signature);
+
+    VerifyingStream stream = verifyCache.get(key);
+    if (stream == null) {
+      stream = (VerifyingStream) key.getStream();
+    }
+    boolean result = verify(stream, data, signature);
+    verifyCache.put(key, stream);
+    record(Operation.VERIFY, key, length, start);
+    return result;
+  }
+
+  /**
+   * Verifies the signatures on a batch of data. The signatures are grouped by
+   * the key that made them and each group is verified with a single verifying
+   * stream, so the per signature overhead is only the signature computation.
+   *
+   * @param data The data to verify the signatures on
+   * @param signatures The signatures to verify, one for each data item
+   * @return Whether each of the signatures is valid, in the same order as the
+   * given signatures
+   * @throws KeyczarException If the lists differ in size, any signature is
+   * malformed or a JCE error occurs.
+   */
+  public boolean[] verifyBatch(List<ByteBuffer> data,
+      List<ByteBuffer> signatures) throws KeyczarException {
+    if (data.size() != signatures.size()) {
+      throw new IllegalArgumentException();
+    }
+    int count = signatures.size();
+    KeyczarKey[] keys = new KeyczarKey[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = readHeader(signatures.get(i));
+    }
+
+    boolean[] results = new boolean[count];
+    boolean[] done = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      if (done[i]) {
+        continue;
+      }
+      // Verify every signature made by the same key as this one
+      KeyczarKey key = keys[i];
+      VerifyingStream stream = verifyCache.get(key);
+      if (stream == null) {
+        stream = (VerifyingStream) key.getStream();
+      }
+      for (int j = i; j < count; j++) {
+        if (!done[j] && keys[j] == key) {
+          long start = startTimer();
+          ByteBuffer d = data.get(j);
+          int length = d.remaining();
+          results[j] = verify(stream, d, signatures.get(j));
+          done[j] = true;
+          record(Operation.VERIFY, key, length, start);
+        }
+      }
+      verifyCache.put(key, stream);
+    }
+    return results;
+  }
+
+  /**
+   * Verifies a batch of signatures on byte arrays of data.
+   *
+   * @param data The data to verify the signatures on
+   * @param signatures The signatures to verify, one for each data item
+   * @return Whether each of the signatures is valid
+   * @throws KeyczarException If the arrays differ in length, any signature is
+   * malformed or a JCE error occurs.
+   * @see #verifyBatch(List, List)
+   */
+  public boolean[] verifyAll(byte[][] data, byte[][] signatures)
+      throws KeyczarException {
+    List<ByteBuffer> dataBuffers = new ArrayList<ByteBuffer>(data.length);
+    for (byte[] d : data) {
+      dataBuffers.add(ByteBuffer.wrap(d));
+    }
+    List<ByteBuffer> signatureBuffers =
+      new ArrayList<ByteBuffer>(signatures.length);
+    for (byte[] signature : signatures) {
+      signatureBuffers.add(ByteBuffer.wrap(signature));
+    }
+    return verifyBatch(dataBuffers, signatureBuffers);
+  }
+
+  /**
+   * Verifies a signature on the contents of the given file. The file is
+   * memory-mapped and the mapped regions are verified directly, so its
+   * contents are never copied into the heap. Files larger than 2 GB are mapped
+   * one window at a time.
+   *
+   * @param file The file to verify the signature on
+   * @param signature The signature to verify
+   * @return Whether this is a valid signature
+   * @throws KeyczarException If the signature is malformed, a JCE error
+   * occurs or the file cannot be read.
+   */
+  public boolean verifyFile(Path file, byte[] signature)
+      throws KeyczarException {
+    return verifyFile(file, signature, FileWindows.DEFAULT_WINDOW_SIZE);
+  }
+
+  boolean verifyFile(Path file, byte[] signature, int windowSize)
+      throws KeyczarException {
+    long start = startTimer();
+    long length;
+    ByteBuffer signatureBuffer = ByteBuffer.wrap(signature);
+    KeyczarKey key = readHeader(signatureBuffer);
+
+    VerifyingStream stream = verifyCache.get(key);
+    if (stream == null) {
+      stream = (VerifyingStream) key.getStream();
+    }
+    stream.initVerify();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      length = channel.size();
+      FileWindows windows = new FileWindows(channel, 0, length, windowSize);
+      while (windows.hasNext()) {
+        stream.updateVerify(windows.next());
+      }
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("Keyczar.FileError", file), e);
+    }
+    // The signed data is terminated with the current Keyczar format
+    stream.updateVerify(ByteBuffer.wrap(FORMAT_BYTES));
+    boolean result = stream.verify(signatureBuffer);
+    verifyCache.put(key, stream);
+    record(Operation.VERIFY, key, length, start);
+    return result;
+  }
+
+  /**
+   * Verifies a timeout signature, whose signed data is its expiration time
+   * followed by the data. The expiration time is passed to the verifying
+   * stream straight from the signature, so neither the data nor the signature
+   * is copied.
+   *
+   * @param data The data to verify the signature on
+   * @param timeoutSignature The timeout signature, at least as long as its
+   * header and expiration time
+   * @return Whether this is a valid signature
+   * @throws KeyczarException If the signature is malformed or a JCE error
+   * occurs.
+   */
+  boolean verifyTimeout(ByteBuffer data, ByteBuffer timeoutSignature)
+      throws KeyczarException {
+    long start = startTimer();
+    int length = data.remaining();
+    KeyczarKey key = readHeader(timeoutSignature);
+    ByteBuffer timestamp = timeoutSignature.slice();
+    timestamp.limit(Signer.TIMESTAMP_SIZE);
+    timeoutSignature.position(
+        timeoutSignature.position() + Signer.TIMESTAMP_SIZE);
+
+    VerifyingStream stream = verifyCache.get(key);
+    if (stream == null) {
+      stream = (VerifyingStream) key.getStream();
+    }
+    stream.initVerify();
+    stream.updateVerify(timestamp);
+    stream.updateVerify(data);
+    // The signed data is terminated with the current Keyczar format
+    stream.updateVerify(ByteBuffer.wrap(FORMAT_BYTES));
+    boolean result = stream.verify(timeoutSignature);
+    verifyCache.put(key, stream);
+    record(Operation.VERIFY, key, length, start);
+    return result;
+  }
+
+  /**
+   * Reads the format version and key hash from the start of a signature.
+   *
+   * @param signature The signature, positioned at its header. Will be
+   * positioned after the header.
+   * @return The key that made the signature
+   * @throws KeyczarException If the signature is malformed or its key is not
+   * in this key set.
+   */
+  private KeyczarKey readHeader(ByteBuffer signature) throws KeyczarException {
     if (signature.remaining() < HEADER_SIZE) {
       throw new ShortSignatureException(signature.remaining());
     }
@@ -111,26 +322,22 @@ public class Verifier extends Keyczar {
       throw new BadVersionException(version);
     }
 
-    byte[] hash = new byte[KEY_HASH_SIZE];
-    signature.get(hash);
+    int hash = Util.readInt(signature);
     KeyczarKey key = getKey(hash);
 
     if (key == null) {
       throw new KeyNotFoundException(hash);
     }
+    return key;
+  }
 
-    VerifyingStream stream = VERIFY_CACHE.get(key);
-    if (stream == null) {
-      stream = (VerifyingStream) key.getStream();
-    }
+  private boolean verify(VerifyingStream stream, ByteBuffer data,
+      ByteBuffer signature) throws KeyczarException {
     stream.initVerify();
     stream.updateVerify(data);
     // The signed data is terminated with the current Keyczar format 
     stream.updateVerify(ByteBuffer.wrap(FORMAT_BYTES));
-
-    boolean result = stream.verify(signature);
-    VERIFY_CACHE.put(key, stream);
-    return result;
+    return stream.verify(signature);
   }
 
   /**
@@ -17,12 +17,15 @@
 package cz.cvut.keyczar.enums;
 
 import com.google.gson.annotations.Expose;
+import cz.cvut.keyczar.i18n.Messages;
+
 /**
  * Encodes different modes of operation:
  *   Cipher Block Chaining (CBC) with initial value (IV)
  *   Counter (CTR) with IV
  *   Electronic Code Book (ECB), no IV
  *   DET-CBC, CBC without IV
+ *   Galois/Counter Mode (GCM) with a nonce, authenticated without an HMAC
  *
  * @author steveweis@gmail.com (Steve Weis)
  *
@@ -31,7 +34,13 @@ public enum CipherMode {
   CBC(0, "AES/CBC/PKCS5Padding", true),
   CTR(1, "AES/CTR/NoPadding", true),
   ECB(2, "AES/ECB/NoPadding", false),
-  DET_CBC(3, "AES/CBC/PKCS5Padding", false);
+  DET_CBC(3, "AES/CBC/PKCS5Padding", false),
+  GCM(4, "AES/GCM/NoPadding", true);
+
+  /** Size of the random nonce starting every GCM ciphertext. */
+  public static final int GCM_NONCE_SIZE = 12;
+  /** Size of the authentication tag ending every GCM ciphertext. */
+  public static final int GCM_TAG_SIZE = 16;
 
   private String jceMode;
   @Expose
@@ -60,10 +69,30 @@ public enum CipherMode {
         return ECB;
       case 3:
         return DET_CBC;
+      case 4:
+        return GCM;
     }
     return null;
   }
 
+  /**
+   * Returns the mode new AES keys should use, given its name from the command
+   * line. Only the modes with a random IV or nonce can be chosen.
+   *
+   * @param name "cbc" or "gcm", or null if no mode was given
+   * @return The named mode, or CBC if the name is null
+   * @throws IllegalArgumentException If the name is not a selectable mode
+   */
+  public static CipherMode getMode(String name) {
+    if (name == null || name.equalsIgnoreCase(CBC.name())) {
+      return CBC; // default mode
+    } else if (name.equalsIgnoreCase(GCM.name())) {
+      return GCM;
+    }
+    throw new IllegalArgumentException(
+        Messages.getString("CipherMode.UnknownMode", name));
+  }
+
   public int getOutputSize(int blockSize, int inputLength) {
     if (this == CBC) {
       return (inputLength / blockSize + 2) * blockSize;
@@ -73,6 +102,8 @@ public enum CipherMode {
       return inputLength + blockSize / 2;
     } else if (this == DET_CBC) {
       return (inputLength / blockSize + 1) * blockSize;
+    } else if (this == GCM) {
+      return GCM_NONCE_SIZE + inputLength + GCM_TAG_SIZE;
     } else {
       return 0;
     }
@@ -31,7 +31,9 @@ public enum Command {
   PROMOTE("promote"),
   DEMOTE("demote"),
   REVOKE("revoke"),
-  USEKEY("usekey");
+  USEKEY("usekey"),
+  PACK("pack"),
+  UNPACK("unpack");
 
   private final String name;
 
@@ -62,6 +64,10 @@ public enum Command {
       return REVOKE;
     } else if (command.equalsIgnoreCase(USEKEY.toString())) {
       return USEKEY;
+    } else if (command.equalsIgnoreCase(PACK.toString())) {
+      return PACK;
+    } else if (command.equalsIgnoreCase(UNPACK.toString())) {
+      return UNPACK;
     }
     throw new IllegalArgumentException(
         Messages.getString("Command.UnknownCommand", command));
@@ -32,7 +32,9 @@ public enum Flag {
   DESTINATION("destination"),
   VERSION("version"),
   ASYMMETRIC("asymmetric"),
-  CRYPTER("crypter");
+  CRYPTER("crypter"),
+  MODE("mode"),
+  STORE("store");
 
   private final String name;
 
@@ -67,6 +69,10 @@ public enum Flag {
       return ASYMMETRIC;
     } else if (name.equalsIgnoreCase(CRYPTER.toString())) {
       return CRYPTER;
+    } else if (name.equalsIgnoreCase(MODE.toString())) {
+      return MODE;
+    } else if (name.equalsIgnoreCase(STORE.toString())) {
+      return STORE;
     }
     throw new IllegalArgumentException(
         Messages.getString("Flag.UnknownFlag", name));
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar.enums;
+
+/**
+ * Encodes the orders in which an UnversionedVerifier tries the keys of its
+ * key set on a signature, which carries no key hash to look the key up by:
+ * <ul>
+ *   <li>Key set: the keys are tried in the order the key set holds them.
+ *   <li>Most recent first: the primary key is tried first, followed by the
+ *   other keys in the order they last verified a signature. Keys that have
+ *   not verified anything yet come last, newest version first.
+ * </ul>
+ *
+ * The key set order is the default.
+ */
+public enum KeyOrder {
+  KEY_SET,
+  MOST_RECENT_FIRST
+}
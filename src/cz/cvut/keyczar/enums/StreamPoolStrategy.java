@@ -0,0 +1,34 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.cvut.keyczar.enums;
+
+/**
+ * Encodes the strategies for pooling the JCE backed streams that keys use to
+ * sign, verify, encrypt and decrypt:
+ * <ul>
+ *   <li>Queue: streams are shared by all threads through a lock-free queue
+ *   per key. Every operation takes a stream from the queue and returns it.
+ *   <li>Thread local: every thread keeps its own warm stream per key, so
+ *   operations never contend with other threads. The number of keys a
+ *   thread keeps streams for is bounded.
+ * </ul>
+ *
+ * The queue strategy is the default.
+ */
+public enum StreamPoolStrategy {
+  QUEUE,
+  THREAD_LOCAL
+}
@@ -28,9 +28,13 @@ public class KeyNotFoundException extends KeyczarException {
   private static final long serialVersionUID = -2745196315795456118L;
 
   public KeyNotFoundException(byte[] hash) {
+    this(((hash[0] & 0xFF) << 24) | ((hash[1] & 0xFF) << 16)
+        | ((hash[2] & 0xFF) << 8) | ((hash[3] & 0xFF)));
+  }
+
+  public KeyNotFoundException(int hash) {
     super(Messages.getString("KeyWithHashIdentifier",
-        Integer.toHexString(((hash[0] & 0xFF) << 24) | ((hash[1] & 0xFF) << 16)
-                            | ((hash[2] & 0xFF) << 8) | ((hash[3] & 0xFF)))));
+        Integer.toHexString(hash)));
   }
 
   KeyNotFoundException(String string) {
@@ -0,0 +1,391 @@
+package cz.cvut.keyczar.homework;
+
+import cz.cvut.keyczar.Verifier;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** Verifies messages and HMACs of many TCP clients at once.
+ *
+ * Every connection speaks the protocol of {@link MessageVerifier}: the
+ * server greets it with READY, answers each message and HMAC with OK, NOT OK
+ * or ERROR, and says BYE once the client has closed its side. A single
+ * selector thread accepts connections and reads and writes all of them;
+ * verification runs on a pool of worker threads sharing one Verifier.
+ *
+ * The requests of a connection are answered in order. While one of its
+ * requests is being verified the connection is not read from, so a client
+ * sending faster than it is served is held back by TCP flow control.
+ */
+public class NioVerificationServer implements Runnable, Closeable {
+
+	private static final int HMAC_LENGTH = 25;
+	// Longest message accepted; longer ones close the connection
+	private static final int MAX_MESSAGE_LENGTH = 1 << 20;
+	private static final int BUFFER_SIZE = 4096;
+	// Pause before accepting again when accepting fails, e.g. because the
+	// process is out of file descriptors
+	private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+	private static final byte[] READY = line("READY");
+	private static final byte[] OK = line("OK");
+	private static final byte[] NOT_OK = line("NOT OK");
+	private static final byte[] BYE = line("BYE");
+
+	private final Verifier verifier;
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final SelectionKey serverKey;
+	private final ExecutorService workers;
+	// Connections whose request has been verified, to be answered by the
+	// selector thread
+	private final ConcurrentLinkedQueue<Connection> verified =
+			new ConcurrentLinkedQueue<Connection>();
+	private volatile boolean running = true;
+	// Time at which accepting resumes after a failure, or 0 if not paused
+	private long acceptPausedUntil = 0;
+
+	/** Creates a server listening on the given address.
+	 *
+	 * @param verifier verifier shared by all connections
+	 * @param address address to listen on, e.g. a loopback address
+	 * @param workerThreads number of threads verifying requests
+	 * @throws IOException if the address cannot be bound
+	 */
+	public NioVerificationServer(Verifier verifier, InetSocketAddress address,
+			int workerThreads) throws IOException {
+		this.verifier = verifier;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(address);
+		serverChannel.configureBlocking(false);
+		serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		workers = Executors.newFixedThreadPool(workerThreads,
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "verification-worker");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/** Creates a server with a worker thread per available processor.
+	 *
+	 * @param verifier verifier shared by all connections
+	 * @param address address to listen on, e.g. a loopback address
+	 * @throws IOException if the address cannot be bound
+	 */
+	public NioVerificationServer(Verifier verifier, InetSocketAddress address)
+			throws IOException {
+		this(verifier, address, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Returns the address the server listens on, with the actual port if it
+	 * was created with port 0.
+	 *
+	 * @return the listening address
+	 * @throws IOException if the server has been closed
+	 */
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) serverChannel.getLocalAddress();
+	}
+
+	/** Serves connections until the server is closed.
+	 *
+	 */
+	public void run() {
+		try {
+			while (running) {
+				if (acceptPausedUntil == 0) {
+					selector.select();
+				}
+				else {
+					long wait = acceptPausedUntil - System.currentTimeMillis();
+					if (wait > 0) {
+						selector.select(wait);
+					}
+					if (System.currentTimeMillis() >= acceptPausedUntil) {
+						resumeAccepting();
+					}
+				}
+				Connection connection;
+				while ((connection = verified.poll()) != null) {
+					connection.answer();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					connection = (Connection) key.attachment();
+					if (key.isReadable()) {
+						connection.read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.write();
+					}
+				}
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Verification server failed: " + e.getMessage());
+		}
+		finally {
+			shutdown();
+		}
+	}
+
+	/** Stops the server and closes all connections.
+	 *
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void shutdown() {
+		workers.shutdownNow();
+		for (SelectionKey key : selector.keys()) {
+			closeQuietly(key.channel());
+		}
+		closeQuietly(selector);
+	}
+
+	/** Accepts a connection. A failure only affects the connection being
+	 * accepted; if no connection could be accepted at all, accepting pauses
+	 * for a while so that the server does not spin while, e.g., it is out
+	 * of file descriptors.
+	 */
+	private void accept() {
+		SocketChannel channel;
+		try {
+			channel = acceptChannel();
+		}
+		catch (IOException e) {
+			System.err.println("Can't accept connection: " + e.getMessage());
+			serverKey.interestOps(0);
+			acceptPausedUntil = System.currentTimeMillis() + ACCEPT_BACKOFF_MILLIS;
+			return;
+		}
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Connection connection = new Connection(channel);
+			connection.key = channel.register(selector, 0, connection);
+			connection.respond(READY);
+			connection.update();
+		}
+		catch (IOException e) {
+			closeQuietly(channel);
+		}
+	}
+
+	/** Accepts a pending connection, if there is one.
+	 *
+	 * @return the accepted connection, or null if there was none
+	 * @throws IOException if accepting fails
+	 */
+	SocketChannel acceptChannel() throws IOException {
+		return serverChannel.accept();
+	}
+
+	private void resumeAccepting() {
+		acceptPausedUntil = 0;
+		if (serverKey.isValid()) {
+			serverKey.interestOps(SelectionKey.OP_ACCEPT);
+		}
+	}
+
+	private static byte[] line(String text) {
+		return (text + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		}
+		catch (IOException e) {
+			// Nothing left to do
+		}
+	}
+
+	/** A client connection. Only the selector thread touches its buffers,
+	 * except for the request being verified, which is left alone until the
+	 * verification is done.
+	 */
+	private final class Connection implements Runnable {
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+		private ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+		// Bytes at the start of the input already searched for the null byte
+		private int searched = 0;
+		private boolean inputClosed = false;
+		private boolean closing = false;
+		// The request being verified, and its answer once it is verified
+		private ByteBuffer message;
+		private ByteBuffer hMAC;
+		private int requestLength;
+		private volatile byte[] answer;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void read() {
+			try {
+				if (!input.hasRemaining()) {
+					input = grow(input, input.capacity() * 2);
+				}
+				if (channel.read(input) < 0) {
+					inputClosed = true;
+				}
+				nextRequest();
+				update();
+			}
+			catch (IOException e) {
+				close();
+			}
+		}
+
+		void write() {
+			try {
+				output.flip();
+				channel.write(output);
+				output.compact();
+				if (closing && output.position() == 0) {
+					close();
+					return;
+				}
+				update();
+			}
+			catch (IOException e) {
+				close();
+			}
+		}
+
+		/** Verifies the request on a worker thread.
+		 *
+		 */
+		public void run() {
+			byte[] result;
+			try {
+				result = verifier.verify(message, hMAC) ? OK : NOT_OK;
+			}
+			catch (Throwable t) {
+				result = line("ERROR: " + t.getMessage());
+			}
+			answer = result;
+			verified.add(this);
+			selector.wakeup();
+		}
+
+		/** Sends the answer of the verified request and goes on with the
+		 * next one.
+		 */
+		void answer() {
+			if (!channel.isOpen()) {
+				return;
+			}
+			respond(answer);
+			answer = null;
+			message = null;
+			hMAC = null;
+			input.flip();
+			input.position(requestLength);
+			input.compact();
+			searched = 0;
+			nextRequest();
+			write();
+		}
+
+		/** Starts verifying the next complete request, if one has been read
+		 * and none is being verified.
+		 */
+		private void nextRequest() {
+			if (message != null || closing) {
+				return;
+			}
+			int length = input.position();
+			byte[] bytes = input.array();
+			while (searched < length && bytes[searched] != 0) {
+				searched++;
+			}
+			if (searched < length && length - searched > HMAC_LENGTH) {
+				message = ByteBuffer.wrap(bytes, 0, searched);
+				hMAC = ByteBuffer.wrap(bytes, searched + 1, HMAC_LENGTH);
+				requestLength = searched + 1 + HMAC_LENGTH;
+				workers.execute(this);
+			}
+			else if (inputClosed) {
+				// Like MessageVerifier, drop an incomplete last request
+				respond(BYE);
+				closing = true;
+			}
+			else if (searched > MAX_MESSAGE_LENGTH) {
+				respond(line("ERROR: Message longer than "
+						+ MAX_MESSAGE_LENGTH + " bytes"));
+				closing = true;
+			}
+		}
+
+		private void respond(byte[] response) {
+			if (output.remaining() < response.length) {
+				output = grow(output, output.position() + response.length);
+			}
+			output.put(response);
+		}
+
+		/** Reads while no request is being verified, and writes while there
+		 * are answers to send.
+		 */
+		private void update() {
+			if (!key.isValid()) {
+				return;
+			}
+			int ops = 0;
+			if (message == null && !inputClosed && !closing) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (output.position() > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+
+		private void close() {
+			key.cancel();
+			closeQuietly(channel);
+		}
+
+		private ByteBuffer grow(ByteBuffer buffer, int capacity) {
+			ByteBuffer grown = ByteBuffer.allocate(capacity);
+			buffer.flip();
+			grown.put(buffer);
+			return grown;
+		}
+	}
+
+}
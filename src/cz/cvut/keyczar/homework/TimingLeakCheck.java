@@ -0,0 +1,184 @@
+package cz.cvut.keyczar.homework;
+
+import cz.cvut.keyczar.Signer;
+import org.apache.commons.math3.stat.StatUtils;
+import org.apache.commons.math3.stat.regression.SimpleRegression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Checks whether verification latency depends on how many bytes of a
+ * signature are correct.
+ *
+ * A {@link MessageVerifier} is run locally and talked to over its usual
+ * protocol. For every prefix length k from 0 to the MAC length, it is sent
+ * signatures whose first k MAC bytes are correct and whose next byte is
+ * wrong, in shuffled order. The round-trip latencies are regressed on k;
+ * a slope significantly different from zero means verification leaks timing.
+ *
+ * Usage:
+ * <pre>
+ * TimingLeakCheck [difficulty] [rounds] [alpha]
+ * </pre>
+ * The difficulty defaults to CONSTANT_TIME, rounds to 2000 and alpha to
+ * 0.001. Exits with status 1 when a leak is detected, so the check can gate
+ * a release.
+ */
+public class TimingLeakCheck {
+
+	private static final int HEADER_LENGTH = 5;
+	private static final int WARM_UP_ROUNDS = 200;
+	// Slowest latencies are dropped as scheduling and GC noise
+	private static final double DISCARDED_OUTLIERS = 0.05;
+
+	private final BufferedReader fromVerifier;
+	private final OutputStream toVerifier;
+	private final byte[] message;
+	private final byte[] goodSignature;
+
+	private TimingLeakCheck(byte[] message, byte[] goodSignature)
+			throws Throwable {
+		// A loopback connection is used rather than pipes, because a piped
+		// reader polls for data and would swamp the measured latencies
+		ServerSocket serverSocket =
+				new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Socket client = new Socket(InetAddress.getLoopbackAddress(),
+				serverSocket.getLocalPort());
+		Socket server = serverSocket.accept();
+		serverSocket.close();
+		client.setTcpNoDelay(true);
+		server.setTcpNoDelay(true);
+
+		fromVerifier = new BufferedReader(
+				new InputStreamReader(client.getInputStream()));
+		toVerifier = new BufferedOutputStream(client.getOutputStream());
+
+		MessageVerifier messageVerifier = new MessageVerifier(
+				server.getOutputStream(),
+				new BufferedInputStream(server.getInputStream())
+		);
+		messageVerifier.initialize();
+		Thread verifierThread = new Thread(messageVerifier);
+		verifierThread.setDaemon(true);
+		verifierThread.start();
+		expect("READY");
+
+		this.message = message;
+		this.goodSignature = goodSignature;
+	}
+
+	public static void main(String[] arguments) throws Throwable {
+		String difficulty =
+				arguments.length > 0 ? arguments[0] : "CONSTANT_TIME";
+		int rounds = arguments.length > 1 ? Integer.parseInt(arguments[1]) : 2000;
+		double alpha =
+				arguments.length > 2 ? Double.parseDouble(arguments[2]) : 0.001;
+
+		// Must be set before any key is read
+		System.setProperty("difficulty", difficulty);
+		byte[] message = CreateSignedFile.MESSAGE.getBytes();
+		byte[] goodSignature = new Signer("keys").sign(message);
+
+		TimingLeakCheck check = new TimingLeakCheck(message, goodSignature);
+		boolean leaks = check.run(rounds, alpha);
+		System.out.println(leaks ? "LEAK DETECTED" : "NO LEAK DETECTED");
+		System.exit(leaks ? 1 : 0);
+	}
+
+	private boolean run(int rounds, double alpha) throws IOException {
+		int macLength = goodSignature.length - HEADER_LENGTH;
+		List<Integer> prefixes = new ArrayList<Integer>();
+		for (int k = 0; k <= macLength; k++) {
+			prefixes.add(k);
+		}
+
+		for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+			for (int k : prefixes) {
+				measure(k);
+			}
+		}
+
+		long[][] latencies = new long[prefixes.size()][rounds];
+		for (int round = 0; round < rounds; round++) {
+			// Shuffled so drifts in machine load do not correlate with k
+			Collections.shuffle(prefixes);
+			for (int k : prefixes) {
+				latencies[k][round] = measure(k);
+			}
+		}
+		return report(latencies, alpha);
+	}
+
+	/** Sends a signature with exactly the first k MAC bytes correct and
+	 * returns the round-trip latency in nanoseconds.
+	 */
+	private long measure(int k) throws IOException {
+		byte[] signature = goodSignature.clone();
+		if (HEADER_LENGTH + k < signature.length) {
+			signature[HEADER_LENGTH + k] ^= 1;
+		}
+		long start = System.nanoTime();
+		toVerifier.write(message);
+		toVerifier.write('\0');
+		toVerifier.write(signature);
+		toVerifier.flush();
+		String result = fromVerifier.readLine();
+		long end = System.nanoTime();
+
+		boolean valid = HEADER_LENGTH + k >= signature.length;
+		if (!(valid ? "OK" : "NOT OK").equals(result)) {
+			throw new IllegalStateException("Unexpected response: " + result);
+		}
+		return end - start;
+	}
+
+	private boolean report(long[][] latencies, double alpha) {
+		double[] all = new double[latencies.length * latencies[0].length];
+		int i = 0;
+		for (long[] perPrefix : latencies) {
+			for (long latency : perPrefix) {
+				all[i++] = latency;
+			}
+		}
+		double cutoff = StatUtils.percentile(all, 100 * (1 - DISCARDED_OUTLIERS));
+
+		SimpleRegression regression = new SimpleRegression();
+		System.out.println("Prefix\tMedian (ns)");
+		for (int k = 0; k < latencies.length; k++) {
+			double[] kept = new double[latencies[k].length];
+			int n = 0;
+			for (long latency : latencies[k]) {
+				if (latency <= cutoff) {
+					kept[n++] = latency;
+					regression.addData(k, latency);
+				}
+			}
+			kept = Arrays.copyOf(kept, n);
+			System.out.printf("%d\t%.0f\n", k, StatUtils.percentile(kept, 50));
+		}
+
+		double pValue = regression.getSignificance();
+		System.out.printf("Slope: %.2f ns per matching byte, p-value: %.3g\n",
+				regression.getSlope(), pValue);
+		return pValue < alpha;
+	}
+
+	private void expect(String expected) throws IOException {
+		String result = fromVerifier.readLine();
+		if (!expected.equals(result)) {
+			throw new IllegalStateException("Unexpected response: " + result);
+		}
+	}
+
+}
@@ -1,9 +1,25 @@
 package cz.cvut.keyczar.homework;
 
+import cz.cvut.keyczar.Verifier;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/** Verifies messages read from standard input or, when started with
+ * --port=N, from any number of TCP clients. In server mode --host= selects
+ * the address to listen on, the loopback address by default, and --threads=
+ * the number of verification threads, one per processor by default.
+ */
 public class VerificationServer {
 
-	public static void main(String[] arguments) {		
-		Runnable messageVerifier = createMessageVerifier();
+	private static final String PORT = "--port=";
+	private static final String HOST = "--host=";
+	private static final String THREADS = "--threads=";
+
+	public static void main(String[] arguments) {
+		Runnable messageVerifier = arguments.length == 0
+				? createMessageVerifier()
+				: createNioVerificationServer(arguments);
 		messageVerifier.run();
 	}
 
@@ -21,4 +37,58 @@ public class VerificationServer {
 		}
 	}
 
+	private static Runnable createNioVerificationServer(String[] arguments) {
+		Integer port = null;
+		InetAddress host = InetAddress.getLoopbackAddress();
+		int threads = Runtime.getRuntime().availableProcessors();
+		try {
+			for (String argument : arguments) {
+				if (argument.startsWith(PORT)) {
+					port = Integer.parseInt(argument.substring(PORT.length()));
+				}
+				else if (argument.startsWith(HOST)) {
+					host = InetAddress.getByName(argument.substring(HOST.length()));
+				}
+				else if (argument.startsWith(THREADS)) {
+					threads = Integer.parseInt(
+							argument.substring(THREADS.length()));
+				}
+				else {
+					throw new IllegalArgumentException(
+							"Unknown argument " + argument);
+				}
+			}
+			if (port == null) {
+				throw new IllegalArgumentException("Missing " + PORT);
+			}
+		}
+		catch (Exception e) {
+			System.err.println("Usage: VerificationServer [" + PORT + "N ["
+					+ HOST + "address] [" + THREADS + "N]]: " + e.getMessage());
+			System.exit(2);
+			return null;
+		}
+
+		Verifier verifier;
+		try {
+			verifier = new Verifier("keys");
+		}
+		catch (Throwable t) {
+			System.err.println("Can't load Verifier: " + t.getMessage());
+			System.exit(1);
+			return null;
+		}
+		try {
+			NioVerificationServer server = new NioVerificationServer(verifier,
+					new InetSocketAddress(host, port), threads);
+			System.err.println("Listening on " + server.getAddress());
+			return server;
+		}
+		catch (Throwable t) {
+			System.err.println("Can't start server: " + t.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.cvut.keyczar.interfaces;
+
+import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.enums.Operation;
+
+/**
+ * Receives a record of every completed sign, verify, encrypt and decrypt
+ * operation. Records are delivered on the calling thread, right on the hot
+ * path, so implementations must be thread safe and should do no more than
+ * update counters.
+ */
+public interface MetricsSink {
+  /**
+   * Records a completed operation.
+   *
+   * @param operation The operation performed
+   * @param type The type of the key used
+   * @param version The version number of the key used
+   * @param bytes The length of the input: the data signed or verified, the
+   * plaintext encrypted or the ciphertext decrypted
+   * @param nanos How long the operation took, in nanoseconds
+   */
+  void record(Operation operation, KeyType type, int version, long bytes,
+      long nanos);
+}
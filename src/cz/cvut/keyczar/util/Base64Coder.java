@@ -20,9 +20,23 @@ package cz.cvut.keyczar.util;
 import cz.cvut.keyczar.exceptions.Base64DecodingException;
 import cz.cvut.keyczar.i18n.Messages;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 /**
  * A web-safe Base64 encoding and decoding utility class. See RFC 3548
  *
+ * Besides Strings, data can be encoded and decoded between byte arrays or
+ * ByteBuffers, where Base64 characters are stored as ASCII bytes, and
+ * through streams. Decoding takes a fast path over groups of four characters
+ * and only checks for whitespace and padding when a group contains a
+ * character outside the alphabet.
+ *
  * @author steveweis@gmail.com (Steve Weis)
  *
  */
@@ -37,22 +51,34 @@ public class Base64Coder {
       'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z', '0', '1', '2', '3',
       '4', '5', '6', '7', '8', '9', '-', '_'};
   /**
-   * Mapping table from Base64 characters to 6-bit nibbles.
+   * Mapping table from 6-bit nibbles to Base64 characters as ASCII bytes.
+   */
+  private static final byte[] ENCODE = new byte[ALPHABET.length];
+  /**
+   * Mapping table from Base64 characters, as unsigned bytes, to 6-bit
+   * nibbles, or to one of the negative markers below.
    */
-  private static final byte[] DECODE = new byte[128];
+  private static final byte[] DECODE = new byte[256];
   private static final char[] WHITESPACE = {'\t', '\n', '\r', ' ', '\f'};
+  private static final byte ILLEGAL = -1;
+  private static final byte SPACE = -2;
+  private static final byte PAD = -3;
+  // Characters encoded or decoded at a time by streams and direct buffers
+  private static final int CHUNK_SIZE = 4096;
 
   static {
     for (int i = 0; i < DECODE.length; i++) {
-      DECODE[i] = -1;
+      DECODE[i] = ILLEGAL;
     }
 
     for (int i = 0; i < WHITESPACE.length; i++) {
-      DECODE[WHITESPACE[i]] = -2;
+      DECODE[WHITESPACE[i]] = SPACE;
     }
+    DECODE['='] = PAD;
 
     for (int i = 0; i < ALPHABET.length; i++) {
       DECODE[ALPHABET[i]] = (byte) i;
+      ENCODE[i] = (byte) ALPHABET[i];
     }
   }
 
@@ -60,6 +86,24 @@ public class Base64Coder {
     // Don't new me.
   }
 
+  /**
+   * @param inputLength Number of bytes to encode
+   * @return The exact number of characters they are encoded to
+   */
+  public static int encodedLength(int inputLength) {
+    int remainder = inputLength % 3;
+    return inputLength / 3 * 4 + (remainder == 0 ? 0 : remainder + 1);
+  }
+
+  /**
+   * @param encodedLength Number of characters to decode
+   * @return The exact number of bytes they are decoded to if they contain no
+   * whitespace or padding, and otherwise an upper bound
+   */
+  public static int decodedLength(int encodedLength) {
+    return (int) ((long) encodedLength * 3 / 4);
+  }
+
   /**
    * Decodes a web-safe Base64 encoded string
    * @param source The string to decode. May contain whitespace and optionally
@@ -69,66 +113,80 @@ public class Base64Coder {
    * character or is of an illegal length (1 mod 4).
    */
   public static byte[] decode(String source) throws Base64DecodingException {
-    char[] input = source.toCharArray();
-    int inLen = input.length;
-    // Trim up to two trailing '=' padding characters
-    if (input[inLen - 1] == '=') {
-      inLen--;
-    }
-    if (input[inLen - 1] == '=') {
-      inLen--;
-    }
+    // Characters beyond ISO-8859-1 become '?', which is illegal anyway
+    byte[] input = source.getBytes(StandardCharsets.ISO_8859_1);
+    byte[] out = new byte[decodedLength(input.length)];
+    int outLen = decode(input, 0, input.length, out, 0);
+    return outLen == out.length ? out : Arrays.copyOf(out, outLen);
+  }
 
-    // Ignore whitespace
-    int whiteSpaceChars = 0;
-    for (char c : input) {
-      if (isWhiteSpace(c)) {
-        whiteSpaceChars++;
-      }
-    }
+  /**
+   * Decodes web-safe Base64 characters stored as ASCII bytes into a
+   * caller-provided array.
+   *
+   * @param input Array holding the characters to decode. They may contain
+   * whitespace and optionally up to two padding '=' characters.
+   * @param offset Offset of the first character
+   * @param length Number of characters
+   * @param output Array to write the decoded bytes to, with room for
+   * {@link #decodedLength(int) decodedLength(length)} bytes
+   * @param outOffset Offset to write the first decoded byte at
+   * @return The number of decoded bytes
+   * @throws Base64DecodingException If the input contains an illegal
+   * character or is of an illegal length (1 mod 4).
+   */
+  public static int decode(byte[] input, int offset, int length,
+      byte[] output, int outOffset) throws Base64DecodingException {
+    checkBounds(input.length, offset, length);
+    checkBounds(output.length, outOffset, decodedLength(length));
+    Decoder decoder = new Decoder();
+    int outLen = decoder.update(input, offset, length, output, outOffset);
+    return outLen + decoder.finish(output, outOffset + outLen);
+  }
 
-    inLen -= whiteSpaceChars;
-    int inputBlocks = inLen / 4;
-    int remainder = inLen % 4;
-    int outputLen = inputBlocks * 3;
-    switch (remainder) {
-    case 1:
-      throw new Base64DecodingException(
-          Messages.getString("Base64Coder.IllegalLength", inLen));
-    case 2:
-      outputLen += 1;
-      break;
-    case 3:
-      outputLen += 2;
-      break;
-    }
-    byte[] out = new byte[outputLen];
-    int buffer = 0;
-    int buffCount = 0;
-    int outPos = 0;
-    for (int i = 0; i < inLen + whiteSpaceChars; i++) {
-      if (!isWhiteSpace(input[i])) {
-        buffer = (buffer << 6) | getByte(input[i]);
-        buffCount++;
-      }
-      if (buffCount == 4) {
-        out[outPos++] = (byte) (buffer >> 16);
-        out[outPos++] = (byte) (buffer >> 8);
-        out[outPos++] = (byte) buffer;
-        buffer = 0;
-        buffCount = 0;
-      }
+  /**
+   * Decodes the remaining web-safe Base64 characters, stored as ASCII bytes,
+   * of the input buffer into the output buffer. The positions of both buffers
+   * are advanced.
+   *
+   * @param input Buffer holding the characters to decode. They may contain
+   * whitespace and optionally up to two padding '=' characters.
+   * @param output Buffer with room for
+   * {@link #decodedLength(int) decodedLength(input.remaining())} bytes
+   * @return The number of decoded bytes
+   * @throws Base64DecodingException If the input contains an illegal
+   * character or is of an illegal length (1 mod 4).
+   * @throws BufferOverflowException If the output buffer is too small
+   */
+  public static int decode(ByteBuffer input, ByteBuffer output)
+      throws Base64DecodingException {
+    int length = input.remaining();
+    if (output.remaining() < decodedLength(length)) {
+      throw new BufferOverflowException();
     }
-    switch (buffCount) {
-    case 2:
-      out[outPos++] = (byte) (buffer >> 4);
-      break;
-    case 3:
-      out[outPos++] = (byte) (buffer >> 10);
-      out[outPos++] = (byte) (buffer >> 2);
-      break;
+    int outLen;
+    if (input.hasArray() && output.hasArray()) {
+      outLen = decode(input.array(), input.arrayOffset() + input.position(),
+          length, output.array(), output.arrayOffset() + output.position());
+      input.position(input.limit());
+      output.position(output.position() + outLen);
+    } else {
+      Decoder decoder = new Decoder();
+      byte[] chunk = new byte[Math.min(length, CHUNK_SIZE)];
+      byte[] decoded = new byte[decodedLength(chunk.length) + 3];
+      outLen = 0;
+      while (input.hasRemaining()) {
+        int chunkLen = Math.min(input.remaining(), chunk.length);
+        input.get(chunk, 0, chunkLen);
+        int decodedLen = decoder.update(chunk, 0, chunkLen, decoded, 0);
+        output.put(decoded, 0, decodedLen);
+        outLen += decodedLen;
+      }
+      int decodedLen = decoder.finish(decoded, 0);
+      output.put(decoded, 0, decodedLen);
+      outLen += decodedLen;
     }
-    return out;
+    return outLen;
   }
 
   /**
@@ -138,30 +196,40 @@ public class Base64Coder {
    * be padded with '=' characters.
    */
   public static String encode(byte[] input) {
-    int inputBlocks = input.length / 3;
-    int remainder = input.length % 3;
-    int outputLen = inputBlocks * 4;
-
-    switch (remainder) {
-    case 1:
-      outputLen += 2;
-      break;
-    case 2:
-      outputLen += 3;
-      break;
-    }
+    byte[] out = new byte[encodedLength(input.length)];
+    encode(input, 0, input.length, out, 0);
+    return new String(out, StandardCharsets.US_ASCII);
+  }
 
-    char[] out = new char[outputLen];
-    int outPos = 0;
-    int inPos = 0;
+  /**
+   * Encodes bytes of an array as web-safe Base64 characters, stored as ASCII
+   * bytes in a caller-provided array. The output is not padded.
+   *
+   * @param input Array holding the bytes to encode
+   * @param offset Offset of the first byte
+   * @param length Number of bytes
+   * @param output Array to write the characters to, with room for
+   * {@link #encodedLength(int) encodedLength(length)} characters
+   * @param outOffset Offset to write the first character at
+   * @return The number of characters written
+   */
+  public static int encode(byte[] input, int offset, int length,
+      byte[] output, int outOffset) {
+    int outLen = encodedLength(length);
+    checkBounds(input.length, offset, length);
+    checkBounds(output.length, outOffset, outLen);
+    int remainder = length % 3;
+    int inPos = offset;
+    int outPos = outOffset;
+    int blocksEnd = offset + length - remainder;
 
-    for (int i = 0; i < inputBlocks; i++) {
+    while (inPos < blocksEnd) {
       int buffer = (0xFF & input[inPos++]) << 16 | (0xFF & input[inPos++]) << 8
           | (0xFF & input[inPos++]);
-      out[outPos++] = ALPHABET[(buffer >> 18) & 0x3F];
-      out[outPos++] = ALPHABET[(buffer >> 12) & 0x3F];
-      out[outPos++] = ALPHABET[(buffer >> 6) & 0x3F];
-      out[outPos++] = ALPHABET[buffer & 0x3F];
+      output[outPos++] = ENCODE[(buffer >> 18) & 0x3F];
+      output[outPos++] = ENCODE[(buffer >> 12) & 0x3F];
+      output[outPos++] = ENCODE[(buffer >> 6) & 0x3F];
+      output[outPos++] = ENCODE[buffer & 0x3F];
     }
 
     if (remainder > 0) {
@@ -169,24 +237,298 @@ public class Base64Coder {
       if (remainder == 2) {
         buffer |= (0xFF & input[inPos++]) << 8;
       }
-      out[outPos++] = ALPHABET[(buffer >> 18) & 0x3F];
-      out[outPos++] = ALPHABET[(buffer >> 12) & 0x3F];
+      output[outPos++] = ENCODE[(buffer >> 18) & 0x3F];
+      output[outPos++] = ENCODE[(buffer >> 12) & 0x3F];
       if (remainder == 2) {
-        out[outPos++] = ALPHABET[(buffer >> 6) & 0x3F];
+        output[outPos++] = ENCODE[(buffer >> 6) & 0x3F];
+      }
+    }
+    return outLen;
+  }
+
+  /**
+   * Encodes the remaining bytes of the input buffer as web-safe Base64
+   * characters, stored as ASCII bytes in the output buffer. The output is not
+   * padded. The positions of both buffers are advanced.
+   *
+   * @param input Buffer holding the bytes to encode
+   * @param output Buffer with room for
+   * {@link #encodedLength(int) encodedLength(input.remaining())} characters
+   * @return The number of characters written
+   * @throws BufferOverflowException If the output buffer is too small
+   */
+  public static int encode(ByteBuffer input, ByteBuffer output) {
+    int length = input.remaining();
+    int outLen = encodedLength(length);
+    if (output.remaining() < outLen) {
+      throw new BufferOverflowException();
+    }
+    if (input.hasArray() && output.hasArray()) {
+      encode(input.array(), input.arrayOffset() + input.position(), length,
+          output.array(), output.arrayOffset() + output.position());
+      input.position(input.limit());
+      output.position(output.position() + outLen);
+    } else {
+      // Whole blocks of three bytes, so only the last chunk has a remainder
+      byte[] chunk = new byte[Math.min(length, CHUNK_SIZE / 4 * 3)];
+      byte[] encoded = new byte[encodedLength(chunk.length)];
+      while (input.hasRemaining()) {
+        int chunkLen = Math.min(input.remaining(), chunk.length);
+        input.get(chunk, 0, chunkLen);
+        output.put(encoded, 0, encode(chunk, 0, chunkLen, encoded, 0));
       }
     }
-    return new String(out);
+    return outLen;
+  }
+
+  /**
+   * Returns a stream that writes the web-safe Base64 encoding of the bytes
+   * written to it to the given stream, as ASCII characters. The last
+   * characters are only written when the returned stream is closed, which
+   * also closes the given stream.
+   *
+   * @param out Stream to write the characters to
+   * @return A stream of bytes to encode
+   */
+  public static OutputStream encodingStream(OutputStream out) {
+    return new EncodingOutputStream(out);
+  }
+
+  /**
+   * Returns a stream that reads the given stream of web-safe Base64 ASCII
+   * characters and decodes them. Decoding errors are thrown as IOExceptions
+   * caused by a {@link Base64DecodingException}.
+   *
+   * @param in Stream to read the characters from
+   * @return A stream of the decoded bytes
+   */
+  public static InputStream decodingStream(InputStream in) {
+    return new DecodingInputStream(in);
   }
 
-  private static byte getByte(int i) throws Base64DecodingException {
-    if (i < 0 || i > 127 || DECODE[i] == -1) {
-      throw new Base64DecodingException(
-          Messages.getString("Base64Coder.IllegalCharacter", i));
+  private static void checkBounds(int arrayLength, int offset, int length) {
+    if (offset < 0 || length < 0 || offset > arrayLength - length) {
+      throw new IndexOutOfBoundsException();
     }
-    return DECODE[i];
   }
 
-  private static boolean isWhiteSpace(int i) {
-    return DECODE[i] == -2;
+  private static Base64DecodingException illegalCharacter(int i) {
+    return new Base64DecodingException(
+        Messages.getString("Base64Coder.IllegalCharacter", i));
+  }
+
+  /**
+   * Decodes characters that may arrive in several pieces. Groups of four
+   * characters that may be split across pieces are kept in a buffer.
+   */
+  private static final class Decoder {
+    private int buffer = 0;
+    private int buffCount = 0;
+    private int padding = 0;
+    // Number of characters of the alphabet decoded so far
+    private int decoded = 0;
+
+    int update(byte[] input, int offset, int length, byte[] output,
+        int outOffset) throws Base64DecodingException {
+      int inPos = offset;
+      int end = offset + length;
+      int outPos = outOffset;
+      while (inPos < end) {
+        if (buffCount == 0 && padding == 0) {
+          // Whole groups of four characters of the alphabet
+          while (end - inPos >= 4) {
+            int c0 = DECODE[input[inPos] & 0xFF];
+            int c1 = DECODE[input[inPos + 1] & 0xFF];
+            int c2 = DECODE[input[inPos + 2] & 0xFF];
+            int c3 = DECODE[input[inPos + 3] & 0xFF];
+            if ((c0 | c1 | c2 | c3) < 0) {
+              break;
+            }
+            int group = c0 << 18 | c1 << 12 | c2 << 6 | c3;
+            output[outPos++] = (byte) (group >> 16);
+            output[outPos++] = (byte) (group >> 8);
+            output[outPos++] = (byte) group;
+            inPos += 4;
+            decoded += 4;
+          }
+          if (inPos == end) {
+            break;
+          }
+        }
+
+        int c = input[inPos++] & 0xFF;
+        byte value = DECODE[c];
+        if (value == SPACE) {
+          continue;
+        }
+        if (value == PAD && padding < 2) {
+          padding++;
+          continue;
+        }
+        if (value < 0 || padding > 0) {
+          throw illegalCharacter(c);
+        }
+        buffer = (buffer << 6) | value;
+        buffCount++;
+        decoded++;
+        if (buffCount == 4) {
+          output[outPos++] = (byte) (buffer >> 16);
+          output[outPos++] = (byte) (buffer >> 8);
+          output[outPos++] = (byte) buffer;
+          buffer = 0;
+          buffCount = 0;
+        }
+      }
+      return outPos - outOffset;
+    }
+
+    int finish(byte[] output, int outOffset) throws Base64DecodingException {
+      int outPos = outOffset;
+      switch (buffCount) {
+      case 1:
+        throw new Base64DecodingException(
+            Messages.getString("Base64Coder.IllegalLength", decoded));
+      case 2:
+        output[outPos++] = (byte) (buffer >> 4);
+        break;
+      case 3:
+        output[outPos++] = (byte) (buffer >> 10);
+        output[outPos++] = (byte) (buffer >> 2);
+        break;
+      }
+      buffer = 0;
+      buffCount = 0;
+      padding = 0;
+      decoded = 0;
+      return outPos - outOffset;
+    }
+  }
+
+  private static final class EncodingOutputStream extends OutputStream {
+    private final OutputStream out;
+    // Bytes of the last incomplete block of three
+    private final byte[] pending = new byte[3];
+    private int pendingCount = 0;
+    private final byte[] encoded = new byte[CHUNK_SIZE];
+    private boolean closed = false;
+
+    EncodingOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      pending[pendingCount++] = (byte) b;
+      if (pendingCount == pending.length) {
+        out.write(encoded, 0, encode(pending, 0, pendingCount, encoded, 0));
+        pendingCount = 0;
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      checkBounds(b.length, off, len);
+      while (pendingCount > 0 && len > 0) {
+        write(b[off++]);
+        len--;
+      }
+      while (len >= pending.length) {
+        int chunkLen = Math.min(len / 3 * 3, CHUNK_SIZE / 4 * 3);
+        out.write(encoded, 0, encode(b, off, chunkLen, encoded, 0));
+        off += chunkLen;
+        len -= chunkLen;
+      }
+      System.arraycopy(b, off, pending, 0, len);
+      pendingCount = len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        out.write(encoded, 0, encode(pending, 0, pendingCount, encoded, 0));
+        pendingCount = 0;
+        out.flush();
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private static final class DecodingInputStream extends InputStream {
+    private final InputStream in;
+    private final Decoder decoder = new Decoder();
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private final byte[] decoded = new byte[decodedLength(CHUNK_SIZE) + 3];
+    private int position = 0;
+    private int limit = 0;
+    private boolean finished = false;
+
+    DecodingInputStream(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      while (position == limit) {
+        if (finished) {
+          return -1;
+        }
+        fill();
+      }
+      return decoded[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      checkBounds(b.length, off, len);
+      if (len == 0) {
+        return 0;
+      }
+      while (position == limit) {
+        if (finished) {
+          return -1;
+        }
+        fill();
+      }
+      int readLen = Math.min(len, limit - position);
+      System.arraycopy(decoded, position, b, off, readLen);
+      position += readLen;
+      return readLen;
+    }
+
+    @Override
+    public int available() {
+      return limit - position;
+    }
+
+    private void fill() throws IOException {
+      int chunkLen = in.read(chunk);
+      position = 0;
+      try {
+        if (chunkLen < 0) {
+          finished = true;
+          limit = decoder.finish(decoded, 0);
+        } else {
+          limit = decoder.update(chunk, 0, chunkLen, decoded, 0);
+        }
+      } catch (Base64DecodingException e) {
+        limit = 0;
+        throw new IOException(e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
   }
-}
\ No newline at end of file
+}
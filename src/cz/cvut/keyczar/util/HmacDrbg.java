@@ -0,0 +1,212 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar.util;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-thread random byte generator. Every thread gets its own HMAC_DRBG with
+ * SHA-256, as specified in NIST SP 800-90A, seeded from a SecureRandom. Bytes
+ * are generated a block at a time into a buffer and handed out from it, so
+ * drawing a 16 byte IV touches neither SecureRandom's locks nor any state
+ * shared between threads.
+ *
+ * A generator is reseeded from the SecureRandom once it has generated
+ * {@link #getReseedInterval()} bytes since it was last seeded. Bytes are
+ * erased from the buffer as they are handed out, and the generator state is
+ * updated after every block, so a later compromise of the state does not
+ * reveal bytes that were already used.
+ */
+public final class HmacDrbg {
+  /**
+   * Bytes generated between two reseeds unless configured otherwise.
+   */
+  public static final long DEFAULT_RESEED_INTERVAL = 1L << 20;
+  static final int BLOCK_SIZE = 4096;
+
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  private static final int OUTPUT_SIZE = 32;
+  private static final int SEED_SIZE = 48;
+  private static final SecureRandom SEED_SOURCE = new SecureRandom();
+  private static volatile long reseedInterval = DEFAULT_RESEED_INTERVAL;
+
+  private static final ThreadLocal<HmacDrbg> GENERATORS =
+    new ThreadLocal<HmacDrbg>() {
+      @Override
+      protected HmacDrbg initialValue() {
+        Thread thread = Thread.currentThread();
+        byte[] personalization = new byte[16];
+        Util.writeLong(thread.getId(), personalization, 0);
+        Util.writeLong(System.nanoTime(), personalization, 8);
+        return new HmacDrbg(seed(), personalization);
+      }
+    };
+
+  private final Mac mac;
+  private final byte[] k = new byte[OUTPUT_SIZE];
+  private final byte[] v = new byte[OUTPUT_SIZE];
+  private final byte[] buffer = new byte[BLOCK_SIZE];
+  private int position = BLOCK_SIZE;
+  private long generated = 0;
+
+  /**
+   * Instantiates a generator from the given seed material.
+   *
+   * @param seed Entropy input and nonce
+   * @param personalization A string distinguishing this generator
+   */
+  HmacDrbg(byte[] seed, byte[] personalization) {
+    Arrays.fill(v, (byte) 0x01);
+    try {
+      mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(new SecretKeySpec(k, MAC_ALGORITHM));
+    } catch (GeneralSecurityException e) {
+      // Every Java platform must support HmacSHA256
+      throw new IllegalStateException(e);
+    }
+    update(seed, personalization);
+  }
+
+  /**
+   * Fills the destination with random bytes from the calling thread's
+   * generator.
+   *
+   * @param dest Destination to write the bytes to
+   */
+  public static void nextBytes(byte[] dest) {
+    GENERATORS.get().generate(dest, 0, dest.length);
+  }
+
+  /**
+   * Writes random bytes from the calling thread's generator into part of the
+   * destination.
+   *
+   * @param dest Destination to write the bytes to
+   * @param offset Offset of the first byte to write
+   * @param length Number of bytes to write
+   */
+  public static void nextBytes(byte[] dest, int offset, int length) {
+    if (offset < 0 || length < 0 || offset > dest.length - length) {
+      throw new IndexOutOfBoundsException();
+    }
+    GENERATORS.get().generate(dest, offset, length);
+  }
+
+  /**
+   * Sets how many bytes each thread's generator produces before it is
+   * reseeded. Generators pick up the new interval before their next block.
+   *
+   * @param bytes Bytes between reseeds, or 0 to reseed before every block
+   */
+  public static void setReseedInterval(long bytes) {
+    if (bytes < 0) {
+      throw new IllegalArgumentException();
+    }
+    reseedInterval = bytes;
+  }
+
+  /**
+   * @return Bytes each thread's generator produces between reseeds
+   */
+  public static long getReseedInterval() {
+    return reseedInterval;
+  }
+
+  private static byte[] seed() {
+    byte[] seed = new byte[SEED_SIZE];
+    SEED_SOURCE.nextBytes(seed);
+    return seed;
+  }
+
+  void generate(byte[] dest, int offset, int length) {
+    while (length > 0) {
+      if (position == buffer.length) {
+        refill();
+      }
+      int count = Math.min(length, buffer.length - position);
+      System.arraycopy(buffer, position, dest, offset, count);
+      Arrays.fill(buffer, position, position + count, (byte) 0);
+      position += count;
+      offset += count;
+      length -= count;
+    }
+  }
+
+  private void refill() {
+    if (generated >= reseedInterval) {
+      update(seed(), null);
+      generated = 0;
+    }
+    for (int pos = 0; pos < buffer.length; pos += OUTPUT_SIZE) {
+      nextV();
+      System.arraycopy(v, 0, buffer, pos, OUTPUT_SIZE);
+    }
+    update(null, null);
+    generated += buffer.length;
+    position = 0;
+  }
+
+  /**
+   * The HMAC_DRBG update function. The provided data is the concatenation of
+   * both arguments, either of which may be null.
+   */
+  private void update(byte[] data, byte[] moreData) {
+    nextK((byte) 0x00, data, moreData);
+    nextV();
+    if (data != null || moreData != null) {
+      nextK((byte) 0x01, data, moreData);
+      nextV();
+    }
+  }
+
+  /**
+   * Sets K = HMAC(K, V || separator || data || moreData).
+   */
+  private void nextK(byte separator, byte[] data, byte[] moreData) {
+    mac.update(v);
+    mac.update(separator);
+    if (data != null) {
+      mac.update(data);
+    }
+    if (moreData != null) {
+      mac.update(moreData);
+    }
+    try {
+      mac.doFinal(k, 0);
+      mac.init(new SecretKeySpec(k, MAC_ALGORITHM));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Sets V = HMAC(K, V).
+   */
+  private void nextV() {
+    mac.update(v);
+    try {
+      mac.doFinal(v, 0);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -20,11 +20,18 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import cz.cvut.keyczar.exceptions.KeyczarException;
+import cz.cvut.keyczar.exceptions.ShortBufferException;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A miscellaneous utility class. Includes random number generation, int-to-byte
@@ -34,10 +41,14 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  *
  */
 public class Util {
-  private static final ConcurrentLinkedQueue<MessageDigest> DIGEST_QUEUE =
-    new ConcurrentLinkedQueue<MessageDigest>();
-  private static final ConcurrentLinkedQueue<SecureRandom> RAND_QUEUE =
-    new ConcurrentLinkedQueue<SecureRandom>();
+  private static final String DEFAULT_DIGEST = "SHA-1";
+  private static final ThreadLocal<ThreadDigests> DIGESTS =
+    new ThreadLocal<ThreadDigests>() {
+      @Override
+      protected ThreadDigests initialValue() {
+        return new ThreadDigests();
+      }
+    };
 
   private Util() {
     // Don't new me.
@@ -104,21 +115,38 @@ public class Util {
    * @throws KeyczarException If the SHA-1 algorithm is not found
    */
   public static byte[] prefixHash(byte[]... inputs) throws KeyczarException {
-    MessageDigest md = DIGEST_QUEUE.poll();
-    if (md == null) {
-      try {
-        md = MessageDigest.getInstance("SHA-1");
-      } catch (NoSuchAlgorithmException e) {
-        throw new KeyczarException(e);
-      }
-    }
+    ThreadDigests digests = DIGESTS.get();
+    MessageDigest md = digests.get(DEFAULT_DIGEST);
     for (byte[] array : inputs) {
-      md.update(fromInt(array.length));
+      writeInt(array.length, digests.prefix, 0);
+      md.update(digests.prefix);
       md.update(array);
     }
-    byte[] digest = md.digest();
-    DIGEST_QUEUE.add(md);
-    return digest;
+    return md.digest();
+  }
+
+  /**
+   * Hashes the remaining bytes of each input buffer prefixed by an integer
+   * representation of their number, as {@link #prefixHash(byte[]...)} does,
+   * and writes the hash into the output buffer.
+   *
+   * @param output The buffer to write the hash to. Its position is advanced
+   * past the hash.
+   * @param inputs The inputs to hash. Their positions are left unchanged.
+   * @return The length of the hash
+   * @throws KeyczarException If the SHA-1 algorithm is not found or the
+   * output buffer is too short
+   */
+  public static int prefixHash(ByteBuffer output, ByteBuffer... inputs)
+      throws KeyczarException {
+    ThreadDigests digests = DIGESTS.get();
+    MessageDigest md = digests.get(DEFAULT_DIGEST);
+    for (ByteBuffer input : inputs) {
+      writeInt(input.remaining(), digests.prefix, 0);
+      md.update(digests.prefix);
+      update(md, input);
+    }
+    return digests.digest(md, output);
   }
   
   /**
@@ -129,35 +157,78 @@ public class Util {
    * @throws KeyczarException If the SHA-1 algorithm is not found
    */
   public static byte[] hash(byte[]... inputs) throws KeyczarException {
-    MessageDigest md = DIGEST_QUEUE.poll();
-    if (md == null) {
-      try {
-        md = MessageDigest.getInstance("SHA-1");
-      } catch (NoSuchAlgorithmException e) {
-        throw new KeyczarException(e);
-      }
-    }
+    return hash(DEFAULT_DIGEST, inputs);
+  }
+
+  /**
+   * Hashes a variable number of byte arrays with the given algorithm
+   *
+   * @param algorithm The name of a MessageDigest algorithm, e.g. "SHA-256"
+   * @param inputs The inputs to hash
+   * @return The hash output
+   * @throws KeyczarException If the algorithm is not found
+   */
+  public static byte[] hash(String algorithm, byte[]... inputs)
+      throws KeyczarException {
+    MessageDigest md = DIGESTS.get().get(algorithm);
     for (byte[] array : inputs) {
       md.update(array);
     }
-    byte[] digest = md.digest();
-    DIGEST_QUEUE.add(md);
-    return digest;
+    return md.digest();
   }
 
   /**
-   * Write random bytes into the destination. Uses pre-cached secure random
-   * objects
+   * Hashes the remaining bytes of a variable number of buffers and writes the
+   * hash into the output buffer.
+   *
+   * @param output The buffer to write the hash to. Its position is advanced
+   * past the hash.
+   * @param inputs The inputs to hash. Their positions are left unchanged.
+   * @return The length of the hash
+   * @throws KeyczarException If the SHA-1 algorithm is not found or the
+   * output buffer is too short
+   */
+  public static int hash(ByteBuffer output, ByteBuffer... inputs)
+      throws KeyczarException {
+    return hash(DEFAULT_DIGEST, output, inputs);
+  }
+
+  /**
+   * Hashes the remaining bytes of a variable number of buffers with the given
+   * algorithm and writes the hash into the output buffer.
+   *
+   * @param algorithm The name of a MessageDigest algorithm, e.g. "SHA-256"
+   * @param output The buffer to write the hash to. Its position is advanced
+   * past the hash.
+   * @param inputs The inputs to hash. Their positions are left unchanged.
+   * @return The length of the hash
+   * @throws KeyczarException If the algorithm is not found or the output
+   * buffer is too short
+   */
+  public static int hash(String algorithm, ByteBuffer output,
+      ByteBuffer... inputs) throws KeyczarException {
+    ThreadDigests digests = DIGESTS.get();
+    MessageDigest md = digests.get(algorithm);
+    for (ByteBuffer input : inputs) {
+      update(md, input);
+    }
+    return digests.digest(md, output);
+  }
+
+  private static void update(MessageDigest md, ByteBuffer input) {
+    int position = input.position();
+    md.update(input);
+    input.position(position);
+  }
+
+  /**
+   * Write random bytes into the destination. Uses the calling thread's
+   * {@link HmacDrbg}.
    *
    * @param dest Destionation to write the data
    */
   public static void rand(byte[] dest) {
-    SecureRandom random = RAND_QUEUE.poll();
-    if (random == null) {
-      random = new SecureRandom();
-    }
-    random.nextBytes(dest);
-    RAND_QUEUE.add(random);
+    HmacDrbg.nextBytes(dest);
   }
 
   /**
@@ -181,7 +252,7 @@ public class Util {
    * @param offset The offset to start reading bytes from.
    * @return The integer value represented by the source array from the offset
    */
-  static int readInt(byte[] src, int offset) {
+  public static int readInt(byte[] src, int offset) {
     int output = 0;
     output |= (src[offset++] & 0xFF) << 24;
     output |= (src[offset++] & 0xFF) << 16;
@@ -190,6 +261,52 @@ public class Util {
     return output;
   }
 
+  /**
+   * Reads 4 big-endian ordered bytes from the given buffer and returns an
+   * integer representation, regardless of the byte order set on the buffer.
+   *
+   * @param src The buffer to read bytes from. Its position is advanced by 4.
+   * @return The integer value represented by the next 4 bytes of the buffer
+   */
+  public static int readInt(ByteBuffer src) {
+    int output = src.getInt();
+    return src.order() == ByteOrder.BIG_ENDIAN
+        ? output : Integer.reverseBytes(output);
+  }
+
+  /**
+   * Reads from the channel until the buffer is full or the channel reaches the
+   * end of its input.
+   *
+   * @param src The channel to read from
+   * @param dest The buffer to read into
+   * @return false if the end of the input was reached, true otherwise
+   * @throws IOException If reading from the channel fails
+   */
+  public static boolean readFully(ReadableByteChannel src, ByteBuffer dest)
+      throws IOException {
+    while (dest.hasRemaining()) {
+      if (src.read(dest) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes all remaining bytes of the buffer to the channel.
+   *
+   * @param src The buffer to write
+   * @param dest The channel to write to
+   * @throws IOException If writing to the channel fails
+   */
+  public static void writeFully(ByteBuffer src, WritableByteChannel dest)
+      throws IOException {
+    while (src.hasRemaining()) {
+      dest.write(src);
+    }
+  }
+
   /**
    * Reads 8 big-endian ordered bytes from a given offset in an array and
    * returns a long representation.
@@ -248,7 +365,7 @@ public class Util {
    * @param dest The array in which to write the integer byte representation
    * @param offset The offset to start writing the bytes from
    */
-  static void writeInt(int input, byte[] dest, int offset) {
+  public static void writeInt(int input, byte[] dest, int offset) {
     dest[offset++] = (byte) (input >> 24);
     dest[offset++] = (byte) (input >> 16);
     dest[offset++] = (byte) (input >> 8);
@@ -275,4 +392,55 @@ public class Util {
     dest[offset++] = (byte) (input >> 8);
     dest[offset++] = (byte) (input);
   }
-}
\ No newline at end of file
+
+  /**
+   * The MessageDigests of a thread, by algorithm, and scratch space for the
+   * hashing methods. A digest is only used within a single call, so calls
+   * never see each other's state.
+   */
+  private static final class ThreadDigests {
+    private final Map<String, MessageDigest> digests =
+      new HashMap<String, MessageDigest>();
+    final byte[] prefix = new byte[4];
+    private byte[] output = new byte[0];
+
+    MessageDigest get(String algorithm) throws KeyczarException {
+      MessageDigest md = digests.get(algorithm);
+      if (md == null) {
+        try {
+          md = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+          throw new KeyczarException(e);
+        }
+        digests.put(algorithm, md);
+      } else {
+        // In case an earlier call failed halfway
+        md.reset();
+      }
+      return md;
+    }
+
+    int digest(MessageDigest md, ByteBuffer dest) throws KeyczarException {
+      int length = md.getDigestLength();
+      if (dest.remaining() < length) {
+        md.reset();
+        throw new ShortBufferException(dest.remaining(), length);
+      }
+      try {
+        if (dest.hasArray()) {
+          md.digest(dest.array(), dest.arrayOffset() + dest.position(), length);
+          dest.position(dest.position() + length);
+        } else {
+          if (output.length < length) {
+            output = new byte[length];
+          }
+          md.digest(output, 0, length);
+          dest.put(output, 0, length);
+        }
+      } catch (DigestException e) {
+        throw new KeyczarException(e);
+      }
+      return length;
+    }
+  }
+}
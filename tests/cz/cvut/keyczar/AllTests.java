@@ -23,6 +23,9 @@ import junit.framework.TestSuite;
 
 import org.apache.log4j.PropertyConfigurator;
 import cz.cvut.keyczar.experimental.UriSignerTest;
+import cz.cvut.keyczar.util.Base64CoderTest;
+import cz.cvut.keyczar.util.HmacDrbgTest;
+import cz.cvut.keyczar.util.UtilTest;
 
 /**
  * Suite of all unit tests.
@@ -43,6 +46,13 @@ public class AllTests extends TestSuite {
     suite.addTestSuite(UriSignerTest.class);
     suite.addTestSuite(KeyczarToolTest.class);
     suite.addTestSuite(I18nTest.class);
+    suite.addTestSuite(KeyHashTableTest.class);
+    suite.addTestSuite(StreamCacheTest.class);
+    suite.addTestSuite(KeySetRegistryTest.class);
+    suite.addTestSuite(KeyczarJsonTest.class);
+    suite.addTestSuite(Base64CoderTest.class);
+    suite.addTestSuite(HmacDrbgTest.class);
+    suite.addTestSuite(UtilTest.class);
     return suite;
   }
 }
\ No newline at end of file
@@ -17,16 +17,35 @@
 package cz.cvut.keyczar;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.TestCase;
 
 import org.junit.Test;
+import cz.cvut.keyczar.enums.CipherMode;
+import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.KeyStatus;
+import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.enums.StreamPoolStrategy;
+import cz.cvut.keyczar.exceptions.InvalidSignatureException;
 import cz.cvut.keyczar.exceptions.KeyNotFoundException;
 import cz.cvut.keyczar.exceptions.KeyczarException;
 import cz.cvut.keyczar.exceptions.ShortCiphertextException;
 import cz.cvut.keyczar.interfaces.KeyczarReader;
+import cz.cvut.keyczar.util.Util;
 
 /**
  * Tests Crypter class for encrypting and decrypting with RSA and AES. 
@@ -76,6 +95,57 @@ public class CrypterTest extends TestCase {
     testDecrypt(reader, "/aes-crypted");
   }
   
+  @Test
+  public final void testStoreDecrypt() throws Exception {
+    Path storeFile = Files.createTempFile("keyczar", ".store");
+    try {
+      Map<String, KeyczarReader> keySets = new HashMap<String, KeyczarReader>();
+      keySets.put("aes", new KeyczarFileReader(TEST_DATA + "/aes"));
+      keySets.put("aes-crypted",
+          new KeyczarFileReader(TEST_DATA + "/aes-crypted"));
+      keySets.put("rsa", new KeyczarFileReader(TEST_DATA + "/rsa"));
+      KeyczarStore.write(storeFile.toString(), keySets);
+
+      KeyczarStore store = KeyczarStore.open(storeFile.toString());
+      assertEquals(keySets.keySet(), store.getNames());
+      testDecrypt(store.getReader("aes"), "/aes");
+      testDecrypt(new KeyczarStoreReader(storeFile.toString(), "rsa"), "/rsa");
+      // Encrypted key sets are stored as they are
+      KeyczarEncryptedReader reader = new KeyczarEncryptedReader(
+          store.getReader("aes-crypted"), new Crypter(store.getReader("aes")));
+      testDecrypt(reader, "/aes-crypted");
+
+      try {
+        store.getReader("hmac");
+        fail("Should not find a key set missing from the store");
+      } catch (KeyczarException e) {
+        // Expected
+      }
+      try {
+        store.getReader("aes").getKey(3);
+        fail("Should not find a version missing from the key set");
+      } catch (KeyczarException e) {
+        // Expected
+      }
+    } finally {
+      Files.delete(storeFile);
+    }
+  }
+
+  @Test
+  public final void testBadStore() throws Exception {
+    Path storeFile = Files.createTempFile("keyczar", ".store");
+    try {
+      Files.write(storeFile, "{\"not\": \"a store\"}".getBytes());
+      KeyczarStore.open(storeFile.toString());
+      fail("Should reject a file that is not a key store");
+    } catch (KeyczarException e) {
+      // Expected
+    } finally {
+      Files.delete(storeFile);
+    }
+  }
+
   @Test
   public final void testRsaDecrypt() throws Exception  {
     testDecrypt("/rsa");
@@ -112,6 +182,34 @@ public class CrypterTest extends TestCase {
     }
   }
 
+  @Test
+  public final void testThreadLocalStreamPool() throws Exception {
+    final Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    crypter.setStreamPool(StreamPoolStrategy.THREAD_LOCAL);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 100; i++) {
+              String ciphertext = crypter.encrypt(input + i);
+              assertEquals(input + i, crypter.decrypt(ciphertext));
+            }
+          } catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get());
+  }
+
   @Test
   public final void testBadAesCiphertexts() throws KeyczarException {
     Crypter crypter = new Crypter(TEST_DATA + "/aes");
@@ -129,4 +227,304 @@ public class CrypterTest extends TestCase {
       // Expected exception
     }    
   }
-}
\ No newline at end of file
+
+  @Test
+  public final void testAesStreamEncryptAndDecrypt() throws KeyczarException {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    // Sizes around the chunk boundaries of both directions
+    int[] sizes = {0, 1, 15, 16, 1023, 1024, 1025, 4096, 4097, 100000};
+    for (int size : sizes) {
+      byte[] plaintext = Util.rand(size);
+      ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+      crypter.encrypt(new ByteArrayInputStream(plaintext), ciphertext);
+      assertEquals(crypter.ciphertextSize(size), ciphertext.size());
+      // Both APIs share the ciphertext format
+      assertTrue(Arrays.equals(plaintext,
+          crypter.decrypt(ciphertext.toByteArray())));
+
+      ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+      crypter.decrypt(new ByteArrayInputStream(crypter.encrypt(plaintext)),
+          decrypted);
+      assertTrue(Arrays.equals(plaintext, decrypted.toByteArray()));
+    }
+  }
+
+  @Test
+  public final void testRsaStreamEncryptAndDecrypt() throws KeyczarException {
+    Crypter crypter = new Crypter(TEST_DATA + "/rsa");
+    ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+    crypter.encrypt(new ByteArrayInputStream(input.getBytes()), ciphertext);
+    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+    crypter.decrypt(new ByteArrayInputStream(ciphertext.toByteArray()),
+        decrypted);
+    assertEquals(input, new String(decrypted.toByteArray()));
+  }
+
+  @Test
+  public final void testBadAesStreamCiphertext() throws KeyczarException {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    byte[] ciphertext = crypter.encrypt(Util.rand(10000));
+    ciphertext[ciphertext.length - 1] ^= 1;
+    try {
+      crypter.decrypt(new ByteArrayInputStream(ciphertext),
+          new ByteArrayOutputStream());
+      fail("Tampered ciphertext decrypted");
+    } catch (InvalidSignatureException e) {
+      // Expected exception
+    }
+    try {
+      crypter.decrypt(new ByteArrayInputStream(new byte[3]),
+          new ByteArrayOutputStream());
+      fail("Short ciphertext decrypted");
+    } catch (ShortCiphertextException e) {
+      // Expected exception
+    }
+  }
+
+  @Test
+  public final void testAesGcmEncryptAndDecrypt() throws Exception {
+    MockKeyczarReader reader =
+      new MockKeyczarReader("Test", KeyPurpose.DECRYPT_AND_ENCRYPT, KeyType.AES);
+    reader.addKey(1, KeyStatus.PRIMARY, 128, CipherMode.GCM);
+    Crypter crypter = new Crypter(reader);
+    Path plaintextFile = Files.createTempFile("keyczar", ".in");
+    Path ciphertextFile = Files.createTempFile("keyczar", ".out");
+    Path decryptedFile = Files.createTempFile("keyczar", ".dec");
+    try {
+      for (int size : new int[] {0, 1, 16, 1025, 100000}) {
+        byte[] plaintext = Util.rand(size);
+        byte[] ciphertext = crypter.encrypt(plaintext);
+        // Header, nonce and tag, but no IV padding or HMAC
+        assertEquals(Keyczar.HEADER_SIZE + CipherMode.GCM_NONCE_SIZE + size
+            + CipherMode.GCM_TAG_SIZE, ciphertext.length);
+        assertTrue(Arrays.equals(plaintext, crypter.decrypt(ciphertext)));
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        crypter.encrypt(new ByteArrayInputStream(plaintext), streamed);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        crypter.decrypt(new ByteArrayInputStream(streamed.toByteArray()),
+            decrypted);
+        assertTrue(Arrays.equals(plaintext, decrypted.toByteArray()));
+
+        Files.write(plaintextFile, plaintext);
+        crypter.encryptFile(plaintextFile, ciphertextFile, 4096);
+        crypter.decryptFile(ciphertextFile, decryptedFile, 1000);
+        assertTrue(Arrays.equals(plaintext,
+            Files.readAllBytes(decryptedFile)));
+      }
+    } finally {
+      Files.delete(plaintextFile);
+      Files.delete(ciphertextFile);
+      Files.delete(decryptedFile);
+    }
+  }
+
+  @Test
+  public final void testBadAesGcmCiphertext() throws Exception {
+    MockKeyczarReader reader =
+      new MockKeyczarReader("Test", KeyPurpose.DECRYPT_AND_ENCRYPT, KeyType.AES);
+    reader.addKey(1, KeyStatus.PRIMARY, 128, CipherMode.GCM);
+    Crypter crypter = new Crypter(reader);
+    byte[] ciphertext = crypter.encrypt(input.getBytes());
+    // Flip a bit of the header, the nonce, the ciphertext and the tag
+    for (int i : new int[] {0, Keyczar.HEADER_SIZE, Keyczar.HEADER_SIZE
+        + CipherMode.GCM_NONCE_SIZE, ciphertext.length - 1}) {
+      byte[] tampered = ciphertext.clone();
+      tampered[i] ^= 1;
+      try {
+        crypter.decrypt(tampered);
+        fail("Tampered ciphertext decrypted");
+      } catch (KeyczarException e) {
+        // Expected exception. The version byte is rejected before the tag.
+        assertTrue(i == 0 || e instanceof InvalidSignatureException);
+      }
+    }
+  }
+
+  @Test
+  public final void testCbcDecryptsWithGcmPrimary() throws Exception {
+    MockKeyczarReader reader =
+      new MockKeyczarReader("Test", KeyPurpose.DECRYPT_AND_ENCRYPT, KeyType.AES);
+    reader.addKey(1, KeyStatus.ACTIVE);
+    reader.addKey(2, KeyStatus.PRIMARY, 128, CipherMode.GCM);
+    MockKeyczarReader legacyReader =
+      new MockKeyczarReader("Test", KeyPurpose.DECRYPT_AND_ENCRYPT, KeyType.AES);
+    legacyReader.addKey(1, KeyStatus.PRIMARY);
+    legacyReader.setKey(1, KeyczarKey.readKey(KeyType.AES, reader.getKey(1)));
+    byte[] legacyCiphertext =
+      new Crypter(legacyReader).encrypt(input.getBytes());
+
+    Crypter crypter = new Crypter(reader);
+    assertEquals(input, new String(crypter.decrypt(legacyCiphertext)));
+    byte[] ciphertext = crypter.encrypt(input.getBytes());
+    assertEquals(crypter.ciphertextSize(input.length()), ciphertext.length);
+    assertEquals(input, new String(crypter.decrypt(ciphertext)));
+  }
+
+  @Test
+  public final void testSegmentedEncryptAndDecrypt() throws KeyczarException {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    ForkJoinPool pool = new ForkJoinPool(4);
+    crypter.setForkJoinPool(pool);
+    try {
+      int segmentSize = 4096;
+      // The largest size is split across several tasks of the pool
+      for (int size : new int[] {0, 1, 4095, 4096, 4097, 3 << 20}) {
+        byte[] plaintext = Util.rand(size);
+        byte[] ciphertext = crypter.encryptSegmented(plaintext, segmentSize);
+        assertEquals(SegmentedCiphertext.ciphertextSize(size, segmentSize),
+            ciphertext.length);
+        assertTrue(Arrays.equals(plaintext, crypter.decrypt(ciphertext)));
+      }
+      byte[] plaintext = input.getBytes();
+      assertTrue(Arrays.equals(plaintext,
+          crypter.decrypt(crypter.encryptSegmented(plaintext))));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public final void testBadSegmentedCiphertext() throws KeyczarException {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    int segmentSize = 100;
+    byte[] ciphertext = crypter.encryptSegmented(Util.rand(1000), segmentSize);
+    int segment = segmentSize + CipherMode.GCM_TAG_SIZE;
+
+    byte[] tampered = ciphertext.clone();
+    tampered[SegmentedCiphertext.HEADER_SIZE + 5 * segment] ^= 1;
+    byte[] truncated =
+      Arrays.copyOf(ciphertext, ciphertext.length - segment);
+    byte[] reordered = ciphertext.clone();
+    System.arraycopy(ciphertext, SegmentedCiphertext.HEADER_SIZE, reordered,
+        SegmentedCiphertext.HEADER_SIZE + segment, segment);
+    System.arraycopy(ciphertext, SegmentedCiphertext.HEADER_SIZE + segment,
+        reordered, SegmentedCiphertext.HEADER_SIZE, segment);
+    byte[] resized = ciphertext.clone();
+    resized[SegmentedCiphertext.HEADER_SIZE - 1] ^= 1;
+
+    for (byte[] bad : new byte[][] {tampered, truncated, reordered, resized}) {
+      try {
+        crypter.decrypt(bad);
+        fail("Tampered ciphertext decrypted");
+      } catch (InvalidSignatureException e) {
+        // Expected exception
+      }
+    }
+  }
+
+  @Test
+  public final void testSegmentedRandomAccess() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    int segmentSize = 1000;
+    byte[] plaintext = Util.rand(10500);
+    byte[] ciphertext = crypter.encryptSegmented(plaintext, segmentSize);
+    Path ciphertextFile = Files.createTempFile("keyczar", ".out");
+    try {
+      Files.write(ciphertextFile, ciphertext);
+      SegmentedDecryptingChannel channel = crypter.openSegmented(
+          FileChannel.open(ciphertextFile, StandardOpenOption.READ));
+      assertEquals(plaintext.length, channel.size());
+      // Ranges within a segment, across segments and past the end
+      int[][] ranges = {{0, 10}, {999, 2}, {2500, 3000}, {10400, 100},
+          {10499, 1}, {0, 10500}};
+      for (int[] range : ranges) {
+        ByteBuffer read = ByteBuffer.allocate(range[1]);
+        channel.position(range[0]);
+        while (read.hasRemaining() && channel.read(read) >= 0) {
+          // Keep reading
+        }
+        assertTrue(Arrays.equals(
+            Arrays.copyOfRange(plaintext, range[0], range[0] + range[1]),
+            read.array()));
+      }
+      assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+      channel.close();
+
+      // Only reads of the tampered segment fail
+      ciphertext[SegmentedCiphertext.HEADER_SIZE
+          + 5 * (segmentSize + CipherMode.GCM_TAG_SIZE)] ^= 1;
+      Files.write(ciphertextFile, ciphertext);
+      channel = crypter.openSegmented(
+          FileChannel.open(ciphertextFile, StandardOpenOption.READ));
+      channel.position(4 * segmentSize);
+      assertEquals(segmentSize, channel.read(ByteBuffer.allocate(segmentSize)));
+      try {
+        channel.read(ByteBuffer.allocate(1));
+        fail("Tampered segment decrypted");
+      } catch (IOException e) {
+        assertTrue(e.getCause() instanceof InvalidSignatureException);
+      }
+      channel.position(6 * segmentSize);
+      assertEquals(segmentSize, channel.read(ByteBuffer.allocate(segmentSize)));
+      channel.close();
+
+      // Cut off at a segment boundary
+      Files.write(ciphertextFile, Arrays.copyOf(ciphertext,
+          ciphertext.length - 500 - CipherMode.GCM_TAG_SIZE));
+      try (FileChannel input =
+          FileChannel.open(ciphertextFile, StandardOpenOption.READ)) {
+        try {
+          crypter.openSegmented(input);
+          fail("Truncated ciphertext opened");
+        } catch (InvalidSignatureException e) {
+          // The input is closed even though no channel took it over
+          assertFalse(input.isOpen());
+        }
+      }
+    } finally {
+      Files.delete(ciphertextFile);
+    }
+  }
+
+  @Test
+  public final void testAesFileEncryptAndDecrypt() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    Path plaintextFile = Files.createTempFile("keyczar", ".in");
+    Path ciphertextFile = Files.createTempFile("keyczar", ".out");
+    Path decryptedFile = Files.createTempFile("keyczar", ".dec");
+    try {
+      for (int size : new int[] {0, 1, 1000, 100000}) {
+        byte[] plaintext = Util.rand(size);
+        Files.write(plaintextFile, plaintext);
+        // Small windows, so the files are mapped in several pieces
+        crypter.encryptFile(plaintextFile, ciphertextFile, 4096);
+        byte[] ciphertext = Files.readAllBytes(ciphertextFile);
+        assertEquals(crypter.ciphertextSize(size), ciphertext.length);
+        assertTrue(Arrays.equals(plaintext, crypter.decrypt(ciphertext)));
+
+        Files.write(ciphertextFile, crypter.encrypt(plaintext));
+        crypter.decryptFile(ciphertextFile, decryptedFile, 1000);
+        assertTrue(Arrays.equals(plaintext,
+            Files.readAllBytes(decryptedFile)));
+      }
+    } finally {
+      Files.delete(plaintextFile);
+      Files.delete(ciphertextFile);
+      Files.delete(decryptedFile);
+    }
+  }
+
+  @Test
+  public final void testBadAesFileCiphertext() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    Path ciphertextFile = Files.createTempFile("keyczar", ".out");
+    Path decryptedFile = Files.createTempFile("keyczar", ".dec");
+    Files.delete(decryptedFile);
+    try {
+      byte[] ciphertext = crypter.encrypt(Util.rand(10000));
+      ciphertext[100] ^= 1;
+      Files.write(ciphertextFile, ciphertext);
+      try {
+        crypter.decryptFile(ciphertextFile, decryptedFile);
+        fail("Tampered ciphertext decrypted");
+      } catch (InvalidSignatureException e) {
+        // Expected exception
+      }
+      // Nothing is written before the signature is verified
+      assertFalse(Files.exists(decryptedFile));
+    } finally {
+      Files.delete(ciphertextFile);
+    }
+  }
+}
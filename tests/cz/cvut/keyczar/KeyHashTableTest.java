@@ -0,0 +1,68 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import cz.cvut.keyczar.util.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the primitive key hash lookup table.
+ */
+public class KeyHashTableTest extends TestCase {
+
+  @Test
+  public final void testPutAndGet() throws Exception {
+    KeyHashTable<KeyczarKey> table = new KeyHashTable<KeyczarKey>();
+    List<KeyczarKey> keys = new ArrayList<KeyczarKey>();
+    // Enough keys to force several resizes
+    for (int i = 0; i < 100; i++) {
+      KeyczarKey key = HmacKey.generate();
+      keys.add(key);
+      table.put(key.hash(), key);
+    }
+    assertEquals(keys.size(), table.size());
+    for (KeyczarKey key : keys) {
+      assertSame(key, table.get(key.hash()));
+      assertSame(key, table.get(Util.toInt(key.hash())));
+    }
+  }
+
+  @Test
+  public final void testMissingHash() throws Exception {
+    KeyHashTable<KeyczarKey> table = new KeyHashTable<KeyczarKey>();
+    assertNull(table.get(0));
+    KeyczarKey key = HmacKey.generate();
+    table.put(key.hash(), key);
+    assertNull(table.get(Util.toInt(key.hash()) + 1));
+  }
+
+  @Test
+  public final void testReplace() throws Exception {
+    KeyHashTable<KeyczarKey> table = new KeyHashTable<KeyczarKey>();
+    KeyczarKey key = HmacKey.generate();
+    KeyczarKey sameKey = HmacKey.read(key.toString());
+    table.put(key.hash(), key);
+    table.put(sameKey.hash(), sameKey);
+    assertEquals(1, table.size());
+    assertSame(sameKey, table.get(key.hash()));
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import cz.cvut.keyczar.exceptions.KeyczarException;
+import cz.cvut.keyczar.interfaces.KeyczarReader;
+
+/**
+ * Tests the process-wide registry of parsed key sets.
+ */
+public class KeySetRegistryTest extends TestCase {
+  private static final String TEST_DATA = "./testdata";
+  private String input = "This is some test data";
+
+  @Override
+  protected void tearDown() {
+    KeySetRegistry.clear();
+  }
+
+  @Test
+  public final void testSharedKeys() throws Exception {
+    KeyczarReader reader = KeySetRegistry.get(TEST_DATA + "/rsa-sign");
+    // Equivalent locations find the same key set
+    assertSame(reader, KeySetRegistry.get(TEST_DATA + "/./rsa-sign/"));
+
+    Signer signer = new Signer(reader);
+    Verifier verifier = new Verifier(KeySetRegistry.get(TEST_DATA + "/rsa-sign"));
+    assertSame(signer.getPrimaryKey(), verifier.getPrimaryKey());
+    assertTrue(verifier.verify(input, signer.sign(input)));
+
+    // Signers of the same key set share their signing streams
+    long hits = signer.getSignCacheStats().getHits();
+    Signer other = new Signer(reader);
+    other.sign(input);
+    assertTrue(signer.getSignCacheStats().getHits() > hits);
+    assertEquals(0, other.getSignCacheStats().getMisses()
+        - signer.getSignCacheStats().getMisses());
+  }
+
+  @Test
+  public final void testInvalidate() throws Exception {
+    KeyczarReader reader = KeySetRegistry.get(TEST_DATA + "/hmac");
+    Verifier verifier = new Verifier(reader);
+    KeySetRegistry.invalidate(TEST_DATA + "/hmac");
+    KeyczarReader reread = KeySetRegistry.get(TEST_DATA + "/hmac");
+    assertNotSame(reader, reread);
+    assertNotSame(verifier.getPrimaryKey(),
+        new Verifier(reread).getPrimaryKey());
+    assertEquals(verifier.getPrimaryKey(), new Verifier(reread).getPrimaryKey());
+  }
+
+  @Test
+  public final void testReaderIdentity() throws Exception {
+    KeyczarFileReader fileReader =
+      new KeyczarFileReader(TEST_DATA + "/aes-crypted");
+    Crypter keyDecrypter = new Crypter(TEST_DATA + "/aes");
+    KeyczarEncryptedReader encryptedReader =
+      new KeyczarEncryptedReader(fileReader, keyDecrypter);
+    KeyczarReader reader = KeySetRegistry.get(encryptedReader);
+    assertSame(reader, KeySetRegistry.get(encryptedReader));
+    assertSame(reader, KeySetRegistry.get(reader));
+
+    Crypter crypter = new Crypter(reader);
+    assertEquals(input, crypter.decrypt(crypter.encrypt(input)));
+
+    // Encrypted key sets can't be registered through plain readers
+    try {
+      KeySetRegistry.get(fileReader);
+      fail("Should need an EncryptedReader");
+    } catch (KeyczarException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testUnacceptablePurpose() throws Exception {
+    KeyczarReader reader = KeySetRegistry.get(TEST_DATA + "/hmac");
+    try {
+      new Crypter(reader);
+      fail("Should not create a Crypter from a signing key set");
+    } catch (KeyczarException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testGenericKeyczarCopiesKeySet() throws Exception {
+    KeyczarReader reader = KeySetRegistry.get(TEST_DATA + "/rsa-sign");
+    Signer signer = new Signer(reader);
+    GenericKeyczar keyczar = new GenericKeyczar(reader);
+    assertNotSame(signer.kmd, keyczar.getMetadata());
+    assertNotSame(signer.getPrimaryKey(), keyczar.getPrimaryKey());
+    assertEquals(signer.getPrimaryKey(), keyczar.getPrimaryKey());
+  }
+}
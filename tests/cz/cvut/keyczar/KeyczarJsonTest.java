@@ -0,0 +1,109 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import cz.cvut.keyczar.enums.CipherMode;
+import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.util.Util;
+
+/**
+ * Tests that keys and metadata are read and written exactly as Gson reads
+ * and writes them.
+ */
+public class KeyczarJsonTest extends TestCase {
+  private static final String TEST_DATA = "./testdata";
+  private static final String[] KEY_SETS = { "aes", "hmac", "rsa", "rsa-sign",
+    "rsa-sign.public", "dsa", "dsa.public" };
+
+  @Test
+  public final void testKeySets() throws Exception {
+    for (String keySet : KEY_SETS) {
+      KeyczarFileReader reader =
+        new KeyczarFileReader(TEST_DATA + "/" + keySet);
+      KeyMetadata kmd = KeyMetadata.read(reader.getMetadata());
+      assertEquals(Util.gson().toJson(kmd), kmd.toString());
+      assertEquals(kmd.toString(), KeyMetadata.read(kmd.toString()).toString());
+      for (KeyVersion version : kmd.getVersions()) {
+        KeyczarKey key = KeyczarKey.readKey(kmd.getType(),
+            reader.getKey(version.getVersionNumber()));
+        assertWrittenLikeGson(key);
+      }
+    }
+  }
+
+  @Test
+  public final void testGeneratedKeys() throws Exception {
+    assertWrittenLikeGson(KeyczarKey.genKey(KeyType.AES));
+    assertWrittenLikeGson(KeyczarKey.genKey(KeyType.AES, 256, CipherMode.GCM));
+    assertWrittenLikeGson(KeyczarKey.genKey(KeyType.HMAC_SHA1));
+    assertWrittenLikeGson(KeyczarKey.genKey(KeyType.DSA_PRIV));
+    assertWrittenLikeGson(KeyczarKey.genKey(KeyType.RSA_PRIV, 1024));
+    // EC keys need the GooKey provider, so only their JSON is compared
+    EcPublicKey ecKey = KeyczarJson.fromJson(
+        "{\"x509\": \"MFkwEwYHKoZIzj0CAQ\", \"size\": 256}",
+        new EcPublicKey());
+    assertEquals(Util.gson().toJson(ecKey), ecKey.toString());
+  }
+
+  @Test
+  public final void testReadLikeGson() throws Exception {
+    // Unknown fields and enum constants, nulls, quoted primitives and
+    // characters escaped HTML-safe
+    String json = "{\"name\": \"<a href='x'>&</a>\", \"comment\": [1, {}],"
+        + " \"purpose\": \"UNKNOWN\", \"type\": \"AES\", \"encrypted\": null,"
+        + " \"versions\": [{\"status\": \"PRIMARY\", \"versionNumber\": \"2\","
+        + " \"exportable\": \"true\", \"hash\": null}]}";
+    KeyMetadata kmd = KeyMetadata.read(json);
+    assertNull(kmd.getPurpose());
+    assertEquals(Util.gson().toJson(
+        Util.gson().fromJson(json, KeyMetadata.class)), kmd.toString());
+
+    KeyMetadata defaults = KeyMetadata.read("{}");
+    assertEquals(Util.gson().toJson(
+        Util.gson().fromJson("{}", KeyMetadata.class)), defaults.toString());
+    assertEquals(KeyPurpose.TEST, defaults.getPurpose());
+  }
+
+  @Test
+  public final void testMalformed() throws Exception {
+    String[] malformed = { "{\"name\": }", "{\"versions\": {}}",
+      "{\"encrypted\": []}", "{} {}", "[]" };
+    for (String json : malformed) {
+      try {
+        KeyMetadata.read(json);
+        fail("Should not read " + json);
+      } catch (JsonSyntaxException e) {
+        // Expected
+      } catch (JsonIOException e) {
+        // Expected for trailing data
+      }
+    }
+  }
+
+  private static void assertWrittenLikeGson(KeyczarKey key)
+      throws Exception {
+    String json = key.toString();
+    assertEquals(Util.gson().toJson(key), json);
+    assertEquals(json, KeyczarKey.readKey(key.getType(), json).toString());
+  }
+}
@@ -26,6 +26,11 @@ import cz.cvut.keyczar.enums.KeyStatus;
 import cz.cvut.keyczar.enums.KeyType;
 import cz.cvut.keyczar.exceptions.KeyczarException;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
 /**
  * 
  * Mocks out KeyczarReader and uses it to influence the creation of a
@@ -81,6 +86,13 @@ public class KeyczarToolTest extends TestCase {
     Assert.assertEquals(192, mock.getKeySize(4)); // adding fourth key
   }
   
+  @Test
+  public final void testAddKeyUnknownMode() {
+    String[] args = {"addkey", "--status=active", "--mode=gmc"};
+    KeyczarTool.main(args);
+    Assert.assertEquals(3, mock.numKeys()); // no key was added
+  }
+
   @Test
   public final void testPublicKeys() throws KeyczarException {
     pubMock.addKey(33, KeyStatus.PRIMARY, 512); // use 512-bit keys for speed
@@ -115,6 +127,35 @@ public class KeyczarToolTest extends TestCase {
     Assert.assertFalse(mock.existsVersion(99));
   }
   
+  @Test
+  public final void testPackAndUnpack() throws Exception {
+    Path directory = Files.createTempDirectory("keyczar");
+    Path storeFile = directory.resolve("store");
+    Path keys = Files.createDirectory(directory.resolve("keys"));
+    try {
+      KeyczarTool.main(new String[] {"pack", "--store=" + storeFile});
+      KeyczarStore store = KeyczarStore.open(storeFile.toString());
+      Assert.assertEquals(Collections.singleton("TEST"), store.getNames());
+      Assert.assertEquals(mock.getMetadata(),
+          store.getReader("TEST").getMetadata());
+
+      KeyczarTool.main(new String[] {"unpack", "--store=" + storeFile,
+          "--location=" + keys});
+      KeyczarFileReader reader = new KeyczarFileReader(keys.toString());
+      Assert.assertEquals(mock.getMetadata(), reader.getMetadata());
+      for (int version : new int[] {42, 77, 99}) {
+        Assert.assertEquals(mock.getKey(version), reader.getKey(version));
+      }
+    } finally {
+      for (File file : keys.toFile().listFiles()) {
+        file.delete();
+      }
+      Files.delete(keys);
+      Files.deleteIfExists(storeFile);
+      Files.delete(directory);
+    }
+  }
+
   @Override
   public final void tearDown() {
     KeyczarTool.setReader(null); // remove mock reader
@@ -20,13 +20,33 @@ package cz.cvut.keyczar;
 import junit.framework.TestCase;
 
 import org.junit.Test;
+import cz.cvut.keyczar.enums.KeyOrder;
+import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.KeyStatus;
+import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.enums.Operation;
+import cz.cvut.keyczar.enums.StreamPoolStrategy;
 import cz.cvut.keyczar.exceptions.BadVersionException;
 import cz.cvut.keyczar.exceptions.KeyNotFoundException;
 import cz.cvut.keyczar.exceptions.KeyczarException;
+import cz.cvut.keyczar.exceptions.ShortBufferException;
 import cz.cvut.keyczar.exceptions.ShortSignatureException;
+import cz.cvut.keyczar.interfaces.KeyczarReader;
+import cz.cvut.keyczar.interfaces.SigningStream;
+import cz.cvut.keyczar.util.Base64Coder;
+import cz.cvut.keyczar.util.Util;
 
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Tests Signer class for signing and verifying with HMAC, RSA, and DSA.
@@ -109,6 +129,179 @@ public class SignerTest extends TestCase {
     assertTrue(hmacSigner.verify(buffer, sigBuffer));
   }
 
+  @Test
+  public final void testHmacSignBatch() throws KeyczarException {
+    Signer hmacSigner = new Signer(TEST_DATA + "/hmac");
+    byte[][] inputs = { inputBytes, new byte[0], "Some other string".getBytes() };
+    byte[][] sigs = hmacSigner.signAll(inputs);
+    assertEquals(inputs.length, sigs.length);
+    for (int i = 0; i < inputs.length; i++) {
+      assertTrue(hmacSigner.verify(inputs[i], sigs[i]));
+      // Batch signatures are interchangeable with single ones
+      assertTrue(Arrays.equals(hmacSigner.sign(inputs[i]), sigs[i]));
+    }
+
+    try {
+      hmacSigner.signBatch(Arrays.asList(ByteBuffer.wrap(inputBytes)),
+          ByteBuffer.allocate(hmacSigner.digestSize() - 1));
+      fail("Expected ShortBufferException");
+    } catch (ShortBufferException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testDsaSignBatch() throws KeyczarException {
+    Signer dsaSigner = new Signer(TEST_DATA + "/dsa");
+    byte[][] inputs = { inputBytes, "Some other string".getBytes() };
+    byte[][] sigs = dsaSigner.signAll(inputs);
+    assertTrue(dsaSigner.verify(inputs[0], sigs[0]));
+    assertTrue(dsaSigner.verify(inputs[1], sigs[1]));
+    assertFalse(dsaSigner.verify(inputs[0], sigs[1]));
+  }
+
+  @Test
+  public final void testHmacSignFile() throws Exception {
+    Signer hmacSigner = new Signer(TEST_DATA + "/hmac");
+    byte[] contents = Util.rand(10000);
+    Path file = Files.createTempFile("keyczar", ".in");
+    try {
+      Files.write(file, contents);
+      // Small windows, so the file is mapped in several pieces
+      byte[] sig = hmacSigner.signFile(file, 1000);
+      assertTrue(Arrays.equals(hmacSigner.sign(contents), sig));
+      assertTrue(Arrays.equals(sig, hmacSigner.signFile(file)));
+      assertTrue(hmacSigner.verifyFile(file, sig, 999));
+      contents[5000] ^= 1;
+      Files.write(file, contents);
+      assertFalse(hmacSigner.verifyFile(file, sig));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public final void testDsaSignFile() throws Exception {
+    Signer dsaSigner = new Signer(TEST_DATA + "/dsa");
+    Path file = Files.createTempFile("keyczar", ".in");
+    try {
+      Files.write(file, Util.rand(10000));
+      byte[] sig = dsaSigner.signFile(file, 4096);
+      assertTrue(dsaSigner.verify(Files.readAllBytes(file), sig));
+      assertTrue(dsaSigner.verifyFile(file, sig, 1000));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public final void testHmacMatchesJce() throws Exception {
+    byte[] message = input.getBytes();
+    // Keys shorter than, as long as and longer than a SHA-1 block
+    for (int size : new int[] {128, 256, 512, 1024}) {
+      HmacKey key = HmacKey.generate(size);
+      Mac mac = Mac.getInstance("HmacSHA1");
+      mac.init(new SecretKeySpec(key.keyBytes(), "HmacSHA1"));
+      byte[] expected = mac.doFinal(message);
+
+      SigningStream stream = (SigningStream) key.getStream();
+      // The stream is reused, as it is by the stream caches
+      for (int i = 0; i < 2; i++) {
+        ByteBuffer signature = ByteBuffer.allocate(stream.digestSize());
+        stream.initSign();
+        stream.updateSign(ByteBuffer.wrap(message));
+        stream.sign(signature);
+        assertTrue(Arrays.equals(expected, signature.array()));
+      }
+    }
+  }
+
+  @Test
+  public final void testHmacMetricsSink() throws Exception {
+    Signer hmacSigner = new Signer(TEST_DATA + "/hmac");
+    StripedMetricsSink metrics = new StripedMetricsSink();
+    hmacSigner.setMetricsSink(metrics);
+    byte[] sig = hmacSigner.sign(inputBytes);
+    hmacSigner.signAll(new byte[][] { inputBytes, inputBytes });
+    assertTrue(hmacSigner.verify(inputBytes, sig));
+
+    StripedMetricsSink.OperationMetrics signs =
+      metrics.get(Operation.SIGN, KeyType.HMAC_SHA1, 2);
+    assertEquals(3, signs.getCount());
+    assertEquals(3 * inputBytes.length, signs.getBytes());
+    assertTrue(signs.getTotalNanos() > 0);
+    assertTrue(signs.getLatencyPercentile(50) > 0);
+    long[] histogram = signs.getHistogram();
+    long total = 0;
+    for (long n : histogram) {
+      total += n;
+    }
+    assertEquals(3, total);
+    assertEquals(1, metrics.get(Operation.VERIFY, KeyType.HMAC_SHA1, 2)
+        .getCount());
+    // Nothing was recorded for the active key
+    assertNull(metrics.get(Operation.VERIFY, KeyType.HMAC_SHA1, 1));
+  }
+
+  private final void testVerifyBatch(String subDir) throws Exception {
+    Verifier verifier = new Verifier(TEST_DATA + subDir);
+    RandomAccessFile activeInput =
+      new RandomAccessFile(TEST_DATA + subDir + "/1.out", "r");
+    byte[] activeSignature = Base64Coder.decode(activeInput.readLine());
+    activeInput.close();
+    RandomAccessFile primaryInput =
+      new RandomAccessFile(TEST_DATA + subDir + "/2.out", "r");
+    byte[] primarySignature = Base64Coder.decode(primaryInput.readLine());
+    primaryInput.close();
+
+    byte[] wrongBytes = "Wrong String".getBytes();
+    byte[][] data = { inputBytes, inputBytes, wrongBytes, inputBytes };
+    byte[][] sigs =
+      { activeSignature, primarySignature, activeSignature, primarySignature };
+    boolean[] results = verifier.verifyAll(data, sigs);
+    assertTrue(Arrays.equals(new boolean[] { true, true, false, true },
+        results));
+  }
+
+  @Test
+  public final void testHmacVerifyBatch() throws Exception {
+    testVerifyBatch("/hmac");
+  }
+
+  @Test
+  public final void testRsaVerifyBatch() throws Exception {
+    testVerifyBatch("/rsa-sign");
+  }
+
+  @Test
+  public final void testHmacConstantTimeVerify() throws Exception {
+    System.setProperty("difficulty", "CONSTANT_TIME");
+    try {
+      testSignerVerify("/hmac");
+      testBadVerify("/hmac");
+      Signer hmacSigner = new Signer(TEST_DATA + "/hmac");
+      byte[] sig = hmacSigner.sign(inputBytes);
+      assertTrue(hmacSigner.verify(inputBytes, sig));
+      // Corrupt the last byte of the MAC
+      sig[sig.length - 1] ^= 1;
+      assertFalse(hmacSigner.verify(inputBytes, sig));
+    } finally {
+      System.clearProperty("difficulty");
+    }
+  }
+
+  @Test
+  public final void testHmacThreadLocalStreamPool() throws Exception {
+    Signer hmacSigner = new Signer(TEST_DATA + "/hmac");
+    hmacSigner.setStreamPool(StreamPoolStrategy.THREAD_LOCAL);
+    for (int i = 0; i < 10; i++) {
+      String sig = hmacSigner.sign(input + i);
+      assertTrue(hmacSigner.verify(input + i, sig));
+      assertFalse(hmacSigner.verify(input, sig));
+    }
+    testSignerVerify("/hmac");
+  }
+
   @Test
   public final void testHmacVerify() throws Exception {
     testSignerVerify("/hmac");
@@ -158,6 +351,81 @@ public class SignerTest extends TestCase {
   public final void testBadRsaVerify() throws Exception {
     testBadVerify("/rsa-sign");
   }
+
+  /**
+   * Returns a reader of the given key set with the key hashes recorded in its
+   * metadata, which lists the version numbers of the keys it reads.
+   */
+  private static KeyczarReader hashedReader(String subDir,
+      final List<Integer> read) throws KeyczarException {
+    // KeyczarTool records key hashes whenever it loads a key set
+    GenericKeyczar keyczar = new GenericKeyczar(TEST_DATA + subDir);
+    final String metadata = keyczar.getMetadata().toString();
+    final KeyczarFileReader fileReader = new KeyczarFileReader(TEST_DATA + subDir);
+    return new KeyczarReader() {
+      public String getKey(int version) throws KeyczarException {
+        read.add(version);
+        return fileReader.getKey(version);
+      }
+
+      public String getMetadata() {
+        return metadata;
+      }
+    };
+  }
+
+  @Test
+  public final void testKeysReadOnFirstUse() throws Exception {
+    List<Integer> read = new ArrayList<Integer>();
+    Verifier verifier = new Verifier(hashedReader("/rsa-sign", read));
+    assertTrue(read.isEmpty());
+
+    RandomAccessFile activeInput =
+      new RandomAccessFile(TEST_DATA + "/rsa-sign/1.out", "r");
+    String activeSignature = activeInput.readLine();
+    activeInput.close();
+    assertTrue(verifier.verify(input, activeSignature));
+    assertTrue(verifier.verify(input, activeSignature));
+    assertEquals(Arrays.asList(1), read);
+  }
+
+  @Test
+  public final void testKeysReadWithoutRecordedHashes() throws Exception {
+    // The test key sets predate recorded hashes, so reading any key by its
+    // hash reads them all
+    Verifier verifier = new Verifier(TEST_DATA + "/rsa-sign");
+    RandomAccessFile activeInput =
+      new RandomAccessFile(TEST_DATA + "/rsa-sign/1.out", "r");
+    String activeSignature = activeInput.readLine();
+    activeInput.close();
+    assertTrue(verifier.verify(input, activeSignature));
+    assertFalse(verifier.verify("Wrong string", activeSignature));
+  }
+
+  @Test
+  public final void testRecordedHashMismatch() throws Exception {
+    GenericKeyczar keyczar = new GenericKeyczar(TEST_DATA + "/hmac");
+    KeyMetadata kmd = keyczar.getMetadata();
+    // Swap the recorded hashes of both versions
+    KeyVersion first = kmd.getVersion(1);
+    KeyVersion second = kmd.getVersion(2);
+    byte[] firstHash = first.getHash();
+    first.setHash(second.getHash());
+    second.setHash(firstHash);
+    MockKeyczarReader reader = new MockKeyczarReader("Test",
+        KeyPurpose.SIGN_AND_VERIFY, KeyType.HMAC_SHA1);
+    reader.setMetadata(kmd);
+    reader.setKey(1, keyczar.getKey(first));
+    reader.setKey(2, keyczar.getKey(second));
+
+    Signer signer = new Signer(reader);
+    try {
+      signer.sign(input);
+      fail("Should reject a key that doesn't match its recorded hash");
+    } catch (KeyczarException e) {
+      // Expected
+    }
+  }
   
   
   private final void testUnversionedSignAndVerify(String subDir)
@@ -182,6 +450,83 @@ public class SignerTest extends TestCase {
     testUnversionedSignAndVerify("/rsa-sign");
   }
   
+  /**
+   * Returns an unversioned signer whose primary key is the given version of
+   * the given key set.
+   */
+  private static UnversionedSigner versionSigner(MockKeyczarReader reader,
+      KeyType type, int version) throws KeyczarException {
+    MockKeyczarReader versionReader =
+      new MockKeyczarReader("Test", KeyPurpose.SIGN_AND_VERIFY, type);
+    versionReader.addKey(1, KeyStatus.PRIMARY);
+    versionReader.setKey(1, KeyczarKey.readKey(type, reader.getKey(version)));
+    return new UnversionedSigner(versionReader);
+  }
+
+  @Test
+  public final void testUnversionedMostRecentFirst() throws Exception {
+    MockKeyczarReader reader =
+      new MockKeyczarReader("Test", KeyPurpose.SIGN_AND_VERIFY, KeyType.HMAC_SHA1);
+    reader.addKey(1, KeyStatus.PRIMARY);
+    reader.addKey(2, KeyStatus.ACTIVE);
+    reader.addKey(3, KeyStatus.ACTIVE);
+    UnversionedVerifier verifier = new UnversionedVerifier(reader);
+    verifier.setKeyOrder(KeyOrder.MOST_RECENT_FIRST);
+    // The primary key first, then the newest versions
+    assertEquals(Arrays.asList(1, 3, 2), versions(verifier.getKeyStats()));
+
+    byte[] sig = versionSigner(reader, KeyType.HMAC_SHA1, 2).sign(inputBytes);
+    assertTrue(verifier.verify(inputBytes, sig));
+    assertEquals(Arrays.asList(1, 2, 3), versions(verifier.getKeyStats()));
+    assertTrue(verifier.verify(inputBytes, sig));
+    List<UnversionedKeyStats> stats = verifier.getKeyStats();
+    // Version 3 was only tried before version 2 moved ahead of it
+    assertEquals(2, stats.get(0).getAttempts());
+    assertEquals(2, stats.get(1).getAttempts());
+    assertEquals(2, stats.get(1).getHits());
+    assertEquals(1, stats.get(2).getAttempts());
+
+    sig[sig.length - 1] ^= 1;
+    assertFalse(verifier.verify(inputBytes, sig));
+    for (UnversionedKeyStats keyStats : verifier.getKeyStats()) {
+      assertEquals(keyStats.getVersion() == 2 ? 2 : 0, keyStats.getHits());
+    }
+  }
+
+  @Test
+  public final void testUnversionedParallelVerification() throws Exception {
+    MockKeyczarReader reader =
+      new MockKeyczarReader("Test", KeyPurpose.SIGN_AND_VERIFY, KeyType.RSA_PRIV);
+    reader.addKey(1, KeyStatus.PRIMARY, 1024);
+    reader.addKey(2, KeyStatus.ACTIVE, 1024);
+    reader.addKey(3, KeyStatus.ACTIVE, 1024);
+    UnversionedVerifier verifier = new UnversionedVerifier(reader);
+    ForkJoinPool pool = new ForkJoinPool(3);
+    verifier.setParallelVerification(pool);
+    try {
+      for (int version = 1; version <= 3; version++) {
+        byte[] sig =
+          versionSigner(reader, KeyType.RSA_PRIV, version).sign(inputBytes);
+        assertTrue(verifier.verify(inputBytes, sig));
+        sig[sig.length - 1] ^= 1;
+        assertFalse(verifier.verify(inputBytes, sig));
+      }
+    } finally {
+      pool.shutdown();
+    }
+    for (UnversionedKeyStats keyStats : verifier.getKeyStats()) {
+      assertEquals(1, keyStats.getHits());
+    }
+  }
+
+  private static List<Integer> versions(List<UnversionedKeyStats> stats) {
+    List<Integer> versions = new ArrayList<Integer>();
+    for (UnversionedKeyStats keyStats : stats) {
+      versions.add(keyStats.getVersion());
+    }
+    return versions;
+  }
+
   @Test
   public final void testHmacBadSigs() throws KeyczarException {
     Signer hmacSigner = new Signer(TEST_DATA + "/hmac");
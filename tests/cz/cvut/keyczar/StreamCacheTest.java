@@ -0,0 +1,135 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import cz.cvut.keyczar.enums.KeyPurpose;
+import cz.cvut.keyczar.enums.KeyStatus;
+import cz.cvut.keyczar.enums.KeyType;
+import cz.cvut.keyczar.interfaces.SigningStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the limits, eviction and counters of the queue based stream cache.
+ */
+public class StreamCacheTest extends TestCase {
+  private Signer signer;
+  private List<KeyczarKey> keys;
+
+  @Override
+  protected void setUp() throws Exception {
+    MockKeyczarReader reader = new MockKeyczarReader("Test",
+        KeyPurpose.SIGN_AND_VERIFY, KeyType.HMAC_SHA1);
+    reader.addKey(1, KeyStatus.PRIMARY);
+    reader.addKey(2, KeyStatus.ACTIVE);
+    reader.addKey(3, KeyStatus.ACTIVE);
+    signer = new Signer(reader);
+    keys = new ArrayList<KeyczarKey>();
+    for (Keyczar.KeyHandle handle : signer.versionMap.values()) {
+      keys.add(handle.get());
+    }
+  }
+
+  @Test
+  public final void testHitsAndMisses() throws Exception {
+    QueueStreamCache<SigningStream> cache =
+      new QueueStreamCache<SigningStream>(4, 4, 60000);
+    KeyczarKey key = keys.get(0);
+    assertNull(cache.get(key));
+    cache.put(key, (SigningStream) key.getStream());
+    assertNotNull(cache.get(key));
+    assertNull(cache.get(key));
+
+    StreamCacheStats stats = cache.stats();
+    assertEquals(1, stats.getHits());
+    assertEquals(2, stats.getMisses());
+    assertEquals(0, stats.getEvictions());
+    assertEquals(0, stats.getSize());
+  }
+
+  @Test
+  public final void testStreamsPerKeyLimit() throws Exception {
+    QueueStreamCache<SigningStream> cache =
+      new QueueStreamCache<SigningStream>(2, 4, 60000);
+    KeyczarKey key = keys.get(0);
+    for (int i = 0; i < 5; i++) {
+      cache.put(key, (SigningStream) key.getStream());
+    }
+    assertEquals(2, cache.stats().getSize());
+    assertEquals(3, cache.stats().getEvictions());
+  }
+
+  @Test
+  public final void testKeyLimitEvictsLeastRecentlyUsed() throws Exception {
+    QueueStreamCache<SigningStream> cache =
+      new QueueStreamCache<SigningStream>(4, 2, 60000);
+    for (KeyczarKey key : keys) {
+      cache.put(key, (SigningStream) key.getStream());
+      Thread.sleep(1);
+    }
+    assertEquals(2, cache.stats().getSize());
+    assertEquals(1, cache.stats().getEvictions());
+    assertNull(cache.get(keys.get(0)));
+    assertNotNull(cache.get(keys.get(1)));
+    assertNotNull(cache.get(keys.get(2)));
+  }
+
+  @Test
+  public final void testIdleExpiry() throws Exception {
+    QueueStreamCache<SigningStream> cache =
+      new QueueStreamCache<SigningStream>(4, 4, 100);
+    KeyczarKey idle = keys.get(0);
+    KeyczarKey busy = keys.get(1);
+    cache.put(idle, (SigningStream) idle.getStream());
+    Thread.sleep(200);
+    cache.put(busy, (SigningStream) busy.getStream());
+    cache.sweep(System.nanoTime());
+    assertNull(cache.get(idle));
+    assertNotNull(cache.get(busy));
+    assertEquals(1, cache.stats().getEvictions());
+  }
+
+  @Test
+  public final void testUnloadedKeyEviction() throws Exception {
+    QueueStreamCache<SigningStream> cache =
+      new QueueStreamCache<SigningStream>(4, 4, 60000);
+    KeyczarKey loaded = keys.get(0);
+    KeyczarKey unloaded = HmacKey.generate();
+    cache.put(loaded, (SigningStream) loaded.getStream());
+    cache.put(unloaded, (SigningStream) unloaded.getStream());
+    cache.sweep(System.nanoTime());
+    assertNotNull(cache.get(loaded));
+    assertNull(cache.get(unloaded));
+    assertEquals(1, cache.stats().getEvictions());
+  }
+
+  @Test
+  public final void testCollectedKeySetIsUnloaded() throws Exception {
+    KeyczarKey key = keys.get(0);
+    assertTrue(LoadedKeys.isLoaded(key));
+    signer = null;
+    for (int i = 0; i < 100 && LoadedKeys.isLoaded(key); i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertFalse(LoadedKeys.isLoaded(key));
+  }
+}
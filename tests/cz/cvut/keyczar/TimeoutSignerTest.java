@@ -21,6 +21,10 @@ import junit.framework.TestCase;
 
 import org.junit.Test;
 import cz.cvut.keyczar.exceptions.KeyczarException;
+import cz.cvut.keyczar.util.Base64Coder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Tests Signer class for signing and verifying timeout signatures
@@ -58,6 +62,23 @@ public class TimeoutSignerTest extends TestCase {
     testTimeoutSignAndVerify(signer);
   }
   
+  @Test
+  public final void testHmacByteBuffers() throws KeyczarException {
+    TimeoutSigner signer = new TimeoutSigner(TEST_DATA + "/hmac");
+    byte[] sig = Base64Coder.decode(signer.timeoutSign(input,
+        System.currentTimeMillis() + 10000000));
+    // The expiration time is read big-endian whatever the buffer order is
+    ByteBuffer signature = ByteBuffer.wrap(sig).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer data = ByteBuffer.allocateDirect(input.length());
+    data.put(input.getBytes());
+    data.flip();
+    assertTrue(signer.verify(data, signature));
+
+    sig[sig.length - 1] ^= 1;
+    data.rewind();
+    assertFalse(signer.verify(data, ByteBuffer.wrap(sig)));
+  }
+
   @Test
   public final void testDsa() throws KeyczarException,
       InterruptedException {
@@ -0,0 +1,189 @@
+package cz.cvut.keyczar.homework;
+
+
+import cz.cvut.keyczar.Verifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NioVerificationServerTest {
+
+	private static final String MESSAGE = CreateSignedFile.MESSAGE;
+	private static final byte[] GOOD_PREAMBLE
+			= new byte[]{0, 92, 17, -97, -123};
+	private static final byte[] GOOD_SIGNATURE = new byte[]{
+			-10, -53, -115, -79, -8, 62, -112, -10, 115, -4, -85,
+			15, 95, 84, 58, -13, 22, 117, -114, -125
+	};
+
+	private NioVerificationServer server;
+	private List<Socket> sockets = new ArrayList<Socket>();
+
+	@Before
+	public void setUp() throws Throwable {
+		startServer(new NioVerificationServer(new Verifier("keys"),
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2));
+	}
+
+	@After
+	public void tearDown() throws Throwable {
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		server.close();
+	}
+
+	@Test
+	public void answersRequests() throws Throwable {
+		Socket socket = connect();
+		BufferedReader fromServer = readerOf(socket);
+		assertEquals("READY", fromServer.readLine());
+		writeToServer(socket, GOOD_PREAMBLE, GOOD_SIGNATURE);
+		assertEquals("OK", fromServer.readLine());
+		writeToServer(socket, GOOD_PREAMBLE, new byte[20]);
+		assertEquals("NOT OK", fromServer.readLine());
+		writeToServer(socket, new byte[5], new byte[20]);
+		assertEquals("ERROR: Key with hash identifier 0 not found",
+				fromServer.readLine());
+	}
+
+	@Test
+	public void gotByeOnClose() throws Throwable {
+		Socket socket = connect();
+		BufferedReader fromServer = readerOf(socket);
+		assertEquals("READY", fromServer.readLine());
+		socket.getOutputStream().write(MESSAGE.getBytes());
+		socket.shutdownOutput();
+		assertEquals("BYE", fromServer.readLine());
+		assertNull(fromServer.readLine());
+	}
+
+	@Test
+	public void answersPipelinedRequestsInOrder() throws Throwable {
+		Socket socket = connect();
+		BufferedReader fromServer = readerOf(socket);
+		ByteArrayOutputStream requests = new ByteArrayOutputStream();
+		for (int i = 0; i < 20; i++) {
+			writeRequest(requests, GOOD_PREAMBLE,
+					i % 2 == 0 ? GOOD_SIGNATURE : new byte[20]);
+		}
+		socket.getOutputStream().write(requests.toByteArray());
+		socket.shutdownOutput();
+		assertEquals("READY", fromServer.readLine());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i % 2 == 0 ? "OK" : "NOT OK", fromServer.readLine());
+		}
+		assertEquals("BYE", fromServer.readLine());
+	}
+
+	@Test
+	public void servesClientsConcurrently() throws Throwable {
+		ExecutorService clients = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(clients.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						Socket socket = connect();
+						BufferedReader fromServer = readerOf(socket);
+						assertEquals("READY", fromServer.readLine());
+						for (int j = 0; j < 10; j++) {
+							writeToServer(socket, GOOD_PREAMBLE, GOOD_SIGNATURE);
+							assertEquals("OK", fromServer.readLine());
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		}
+		finally {
+			clients.shutdownNow();
+		}
+	}
+
+	@Test
+	public void keepsServingWhenAcceptFails() throws Throwable {
+		server.close();
+		final AtomicInteger acceptCalls = new AtomicInteger();
+		startServer(new NioVerificationServer(new Verifier("keys"),
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2) {
+			@Override
+			SocketChannel acceptChannel() throws IOException {
+				int call = acceptCalls.incrementAndGet();
+				if (call <= 2) {
+					throw new IOException("Too many open files");
+				}
+				SocketChannel channel = super.acceptChannel();
+				if (call == 3) {
+					// Fail setting up the accepted connection
+					channel.close();
+				}
+				return channel;
+			}
+		});
+
+		Socket failed = connect();
+		assertNull(readerOf(failed).readLine());
+
+		Socket socket = connect();
+		BufferedReader fromServer = readerOf(socket);
+		assertEquals("READY", fromServer.readLine());
+		writeToServer(socket, GOOD_PREAMBLE, GOOD_SIGNATURE);
+		assertEquals("OK", fromServer.readLine());
+	}
+
+	private void startServer(NioVerificationServer server) {
+		this.server = server;
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+	}
+
+	private synchronized Socket connect() throws IOException {
+		Socket socket = new Socket(server.getAddress().getAddress(),
+				server.getAddress().getPort());
+		socket.setSoTimeout(10000);
+		sockets.add(socket);
+		return socket;
+	}
+
+	private static BufferedReader readerOf(Socket socket) throws IOException {
+		return new BufferedReader(
+				new InputStreamReader(socket.getInputStream()));
+	}
+
+	private static void writeToServer(Socket socket, byte[] preamble,
+			byte[] hMAC) throws IOException {
+		ByteArrayOutputStream request = new ByteArrayOutputStream();
+		writeRequest(request, preamble, hMAC);
+		socket.getOutputStream().write(request.toByteArray());
+	}
+
+	private static void writeRequest(OutputStream toServer, byte[] preamble,
+			byte[] hMAC) throws IOException {
+		toServer.write(MESSAGE.getBytes());
+		toServer.write('\0');
+		toServer.write(preamble);
+		toServer.write(hMAC);
+	}
+
+}
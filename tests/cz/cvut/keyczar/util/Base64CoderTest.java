@@ -0,0 +1,190 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar.util;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import cz.cvut.keyczar.exceptions.Base64DecodingException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests the web-safe Base64 encoding of Strings, arrays, buffers and streams.
+ */
+public class Base64CoderTest extends TestCase {
+  private final Random random = new Random(42);
+
+  @Test
+  public final void testKnownValues() throws Exception {
+    assertEquals("", Base64Coder.encode(new byte[0]));
+    assertEquals("Zg", Base64Coder.encode("f".getBytes()));
+    assertEquals("Zm8", Base64Coder.encode("fo".getBytes()));
+    assertEquals("Zm9v", Base64Coder.encode("foo".getBytes()));
+    assertEquals("-_8",
+        Base64Coder.encode(new byte[] {(byte) 0xfb, (byte) 0xff}));
+    assertEquals("foo", new String(Base64Coder.decode("Zm9v")));
+    assertEquals("fo", new String(Base64Coder.decode("Zm8=")));
+    assertEquals("f", new String(Base64Coder.decode("Zg==")));
+    assertEquals("foobar", new String(Base64Coder.decode(" Zm9v\r\nY\tmFy\n")));
+    assertEquals(0, Base64Coder.decode("").length);
+  }
+
+  @Test
+  public final void testLengths() throws Exception {
+    for (int length = 0; length < 100; length++) {
+      byte[] input = randomBytes(length);
+      String encoded = Base64Coder.encode(input);
+      assertEquals(Base64Coder.encodedLength(length), encoded.length());
+      assertEquals(length, Base64Coder.decodedLength(encoded.length()));
+      assertTrue(Arrays.equals(input, Base64Coder.decode(encoded)));
+    }
+  }
+
+  @Test
+  public final void testIllegalInput() throws Exception {
+    String[] illegal = { "Zm9vY", "Zm9v+", "Zm9v/w", "Zm=9v", "Zg===",
+      "Zm9v\u00e9", "Zm9v\u20ac" };
+    for (String input : illegal) {
+      try {
+        Base64Coder.decode(input);
+        fail("Should not decode " + input);
+      } catch (Base64DecodingException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public final void testArrays() throws Exception {
+    byte[] input = randomBytes(1000);
+    byte[] encoded = new byte[Base64Coder.encodedLength(998) + 2];
+    assertEquals(encoded.length - 2,
+        Base64Coder.encode(input, 1, 998, encoded, 1));
+    String expected = Base64Coder.encode(Arrays.copyOfRange(input, 1, 999));
+    assertEquals(expected,
+        new String(encoded, 1, encoded.length - 2, StandardCharsets.US_ASCII));
+
+    byte[] decoded = new byte[Base64Coder.decodedLength(encoded.length)];
+    assertEquals(998,
+        Base64Coder.decode(encoded, 1, encoded.length - 2, decoded, 0));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(input, 1, 999),
+        Arrays.copyOf(decoded, 998)));
+
+    try {
+      Base64Coder.encode(input, 0, input.length, encoded, 0);
+      fail("Output is too small");
+    } catch (IndexOutOfBoundsException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testBuffers() throws Exception {
+    byte[] input = randomBytes(10000);
+    String expected = Base64Coder.encode(input);
+    for (boolean direct : new boolean[] {false, true}) {
+      ByteBuffer in = allocate(input.length, direct);
+      in.put(input).flip();
+      ByteBuffer encoded = allocate(Base64Coder.encodedLength(input.length),
+          direct);
+      assertEquals(encoded.capacity(), Base64Coder.encode(in, encoded));
+      assertFalse(in.hasRemaining());
+      assertFalse(encoded.hasRemaining());
+      encoded.flip();
+      assertEquals(expected,
+          StandardCharsets.US_ASCII.decode(encoded.duplicate()).toString());
+
+      ByteBuffer decoded = allocate(Base64Coder.decodedLength(
+          encoded.remaining()), direct);
+      assertEquals(input.length, Base64Coder.decode(encoded, decoded));
+      decoded.flip();
+      assertEquals(ByteBuffer.wrap(input), decoded);
+    }
+
+    try {
+      Base64Coder.encode(ByteBuffer.wrap(input), ByteBuffer.allocate(100));
+      fail("Output is too small");
+    } catch (BufferOverflowException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testStreams() throws Exception {
+    byte[] input = randomBytes(20000);
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    OutputStream encoder = Base64Coder.encodingStream(encoded);
+    // Writes of every size, including single bytes
+    for (int pos = 0, len = 0; pos < input.length; pos += len, len++) {
+      len = Math.min(len, input.length - pos);
+      if (len == 1) {
+        encoder.write(input[pos]);
+      } else {
+        encoder.write(input, pos, len);
+      }
+    }
+    encoder.close();
+    assertEquals(Base64Coder.encode(input),
+        new String(encoded.toByteArray(), StandardCharsets.US_ASCII));
+
+    // Line breaks split groups of four characters across chunks
+    String wrapped = Base64Coder.encode(input).replaceAll("(.{75})", "$1\r\n");
+    InputStream decoder = Base64Coder.decodingStream(new ByteArrayInputStream(
+        wrapped.getBytes(StandardCharsets.US_ASCII)));
+    ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+    byte[] chunk = new byte[777];
+    int read;
+    while ((read = decoder.read(chunk)) >= 0) {
+      decoded.write(chunk, 0, read);
+    }
+    decoder.close();
+    assertTrue(Arrays.equals(input, decoded.toByteArray()));
+
+    decoder = Base64Coder.decodingStream(new ByteArrayInputStream(
+        "Zm9vY".getBytes(StandardCharsets.US_ASCII)));
+    assertEquals('f', decoder.read());
+    assertEquals('o', decoder.read());
+    assertEquals('o', decoder.read());
+    try {
+      decoder.read();
+      fail("Should not decode an illegal length");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof Base64DecodingException);
+    }
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static ByteBuffer allocate(int capacity, boolean direct) {
+    return direct ? ByteBuffer.allocateDirect(capacity)
+        : ByteBuffer.allocate(capacity);
+  }
+}
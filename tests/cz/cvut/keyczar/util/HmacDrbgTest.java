@@ -0,0 +1,133 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar.util;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Tests the per-thread HMAC_DRBG behind Util.rand.
+ */
+public class HmacDrbgTest extends TestCase {
+  private final byte[] seed = "entropy input and nonce".getBytes();
+  private final byte[] personalization = "personalization".getBytes();
+
+  @Override
+  protected void tearDown() {
+    HmacDrbg.setReseedInterval(HmacDrbg.DEFAULT_RESEED_INTERVAL);
+  }
+
+  @Test
+  public final void testMatchesSpecification() throws Exception {
+    // Instantiate and generate as written in NIST SP 800-90A, section 10.1.2
+    byte[] k = new byte[32];
+    byte[] v = new byte[32];
+    Arrays.fill(v, (byte) 0x01);
+    byte[] seedMaterial = concat(seed, personalization);
+    k = hmac(k, v, new byte[] {0x00}, seedMaterial);
+    v = hmac(k, v);
+    k = hmac(k, v, new byte[] {0x01}, seedMaterial);
+    v = hmac(k, v);
+    byte[] expected = new byte[HmacDrbg.BLOCK_SIZE];
+    for (int pos = 0; pos < expected.length; pos += v.length) {
+      v = hmac(k, v);
+      System.arraycopy(v, 0, expected, pos, v.length);
+    }
+
+    byte[] output = new byte[expected.length];
+    new HmacDrbg(seed, personalization).generate(output, 0, output.length);
+    assertTrue(Arrays.equals(expected, output));
+  }
+
+  @Test
+  public final void testRequestSizes() throws Exception {
+    byte[] expected = new byte[3 * HmacDrbg.BLOCK_SIZE + 100];
+    new HmacDrbg(seed, personalization).generate(expected, 0, expected.length);
+
+    // The same stream of bytes, however it is split into requests
+    HmacDrbg drbg = new HmacDrbg(seed, personalization);
+    byte[] output = new byte[expected.length];
+    for (int pos = 0, len = 1; pos < output.length; pos += len, len += 7) {
+      len = Math.min(len, output.length - pos);
+      drbg.generate(output, pos, len);
+    }
+    assertTrue(Arrays.equals(expected, output));
+
+    byte[] other = new byte[expected.length];
+    new HmacDrbg(seed, "other".getBytes()).generate(other, 0, other.length);
+    assertFalse(Arrays.equals(expected, other));
+  }
+
+  @Test
+  public final void testReseed() throws Exception {
+    byte[] expected = new byte[2 * HmacDrbg.BLOCK_SIZE];
+    new HmacDrbg(seed, personalization).generate(expected, 0, expected.length);
+
+    HmacDrbg.setReseedInterval(HmacDrbg.BLOCK_SIZE);
+    byte[] output = new byte[expected.length];
+    new HmacDrbg(seed, personalization).generate(output, 0, output.length);
+    // Only the block after the reseed differs
+    assertTrue(Arrays.equals(Arrays.copyOf(expected, HmacDrbg.BLOCK_SIZE),
+        Arrays.copyOf(output, HmacDrbg.BLOCK_SIZE)));
+    assertFalse(Arrays.equals(expected, output));
+
+    try {
+      HmacDrbg.setReseedInterval(-1);
+      fail("Should not accept a negative interval");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testThreads() throws Exception {
+    final byte[] first = new byte[32];
+    final byte[] second = new byte[32];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        Util.rand(second);
+      }
+    };
+    thread.start();
+    Util.rand(first);
+    thread.join();
+    assertFalse(Arrays.equals(first, second));
+    assertFalse(Arrays.equals(new byte[32], first));
+  }
+
+  private static byte[] hmac(byte[] key, byte[]... inputs) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(key, "HmacSHA256"));
+    for (byte[] input : inputs) {
+      mac.update(input);
+    }
+    return mac.doFinal();
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+}
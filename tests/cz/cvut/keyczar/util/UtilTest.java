@@ -0,0 +1,99 @@
+/*
+ * Copyright 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.cvut.keyczar.util;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import cz.cvut.keyczar.exceptions.KeyczarException;
+import cz.cvut.keyczar.exceptions.ShortBufferException;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Tests the hashing methods of Util.
+ */
+public class UtilTest extends TestCase {
+  private final byte[] first = "first input".getBytes();
+  private final byte[] second = "second".getBytes();
+
+  @Test
+  public final void testHash() throws Exception {
+    MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+    sha1.update(first);
+    sha1.update(second);
+    byte[] expected = sha1.digest();
+    assertTrue(Arrays.equals(expected, Util.hash(first, second)));
+    // Repeated calls start from a fresh digest
+    assertTrue(Arrays.equals(expected, Util.hash(first, second)));
+
+    ByteBuffer firstBuffer = ByteBuffer.wrap(first);
+    ByteBuffer output = ByteBuffer.allocate(expected.length + 2);
+    output.position(1);
+    assertEquals(expected.length,
+        Util.hash(output, firstBuffer, ByteBuffer.wrap(second)));
+    assertEquals(expected.length + 1, output.position());
+    assertEquals(0, firstBuffer.position());
+    assertTrue(Arrays.equals(expected,
+        Arrays.copyOfRange(output.array(), 1, expected.length + 1)));
+
+    ByteBuffer directOutput = ByteBuffer.allocateDirect(expected.length);
+    Util.hash(directOutput, ByteBuffer.wrap(first), ByteBuffer.wrap(second));
+    directOutput.flip();
+    assertEquals(ByteBuffer.wrap(expected), directOutput);
+  }
+
+  @Test
+  public final void testOtherAlgorithms() throws Exception {
+    byte[] expected = MessageDigest.getInstance("SHA-256").digest(first);
+    assertTrue(Arrays.equals(expected, Util.hash("SHA-256", first)));
+    ByteBuffer output = ByteBuffer.allocate(expected.length);
+    Util.hash("SHA-256", output, ByteBuffer.wrap(first));
+    assertTrue(Arrays.equals(expected, output.array()));
+    // The SHA-1 digest of the thread is unaffected
+    assertEquals(20, Util.hash(first).length);
+
+    try {
+      Util.hash("NO-SUCH-DIGEST", first);
+      fail("Should not find the algorithm");
+    } catch (KeyczarException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testPrefixHash() throws Exception {
+    byte[] expected = Util.hash(Util.fromInt(first.length), first,
+        Util.fromInt(second.length), second);
+    assertTrue(Arrays.equals(expected, Util.prefixHash(first, second)));
+
+    ByteBuffer output = ByteBuffer.allocate(expected.length);
+    Util.prefixHash(output, ByteBuffer.wrap(first), ByteBuffer.wrap(second));
+    assertTrue(Arrays.equals(expected, output.array()));
+
+    try {
+      Util.prefixHash(ByteBuffer.allocate(4), ByteBuffer.wrap(first));
+      fail("Output is too short");
+    } catch (ShortBufferException e) {
+      // Expected
+    }
+    // A failed call leaves nothing behind for the next one
+    assertTrue(Arrays.equals(expected, Util.prefixHash(first, second)));
+  }
+}